@@ -273,6 +273,9 @@ public class A4Preferences {
    /** True if Alloy Analyzer should let warning be nonfatal. */
    public static final BooleanPref WarningNonfatal = new BooleanPref("WarningNonfatal", "Allow warnings");
 
+   /** True if Alloy Analyzer should typecheck the model in the background while the user is typing. */
+   public static final BooleanPref BackgroundCompile = new BooleanPref("BackgroundCompile", "Typecheck while typing");
+
    /** True if Alloy Analyzer should automatically visualize the latest instance. */
    public static final BooleanPref AutoVisualize = new BooleanPref("AutoVisualize", "Visualize automatically");
 
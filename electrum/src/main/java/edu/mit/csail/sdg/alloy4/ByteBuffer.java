@@ -97,18 +97,36 @@ public final class ByteBuffer {
       return write(str.substring(0, str.length()-6)).w('.').write(str.substring(str.length()-6)).w(' ');
    }
 
+   /** Returns the number of bytes in this byte buffer. */
+   public long size() { return ((long)(list.size()-1)) * SIZE + n; }
+
+   /** Removes the entire content. */
+   public void clear() {
+      byte[] first = list.getFirst();
+      list.clear();
+      list.add(first);
+      n = 0;
+   }
+
    /** Write the entire content into the given file using Flate compression (see RFC1951) then return the number of bytes written. */
    public long dumpFlate(RandomAccessFile os) throws IOException {
-      Deflater zip = new Deflater(Deflater.BEST_COMPRESSION);
+      return dumpFlate(os, new Deflater(Deflater.BEST_COMPRESSION), true);
+   }
+
+   /** Write the entire content into the given file using the given Flate compressor (see RFC1951) then return the number of bytes written.
+    * <p> If finish==false, then the compressor may keep some of the content until the next call (so the content can be written in pieces);
+    * if finish==true, then this is the last piece, so the compressor will write out everything.
+    */
+   public long dumpFlate(RandomAccessFile os, Deflater zip, boolean finish) throws IOException {
       byte[] output = new byte[8192];
-      Iterator<byte[]> it = list.iterator(); // when null, that means we have told the Deflater that no more input would be coming
+      Iterator<byte[]> it = list.iterator(); // when null, that means we have given every chunk to the Deflater
       long ans = 0; // the number of bytes written out so far
       while(true) {
          if (it!=null && zip.needsInput() && it.hasNext()) {
             byte[] in = it.next();
-            if (in == list.getLast()) { zip.setInput(in, 0, n); it=null; zip.finish(); } else { zip.setInput(in, 0, SIZE); }
+            if (in == list.getLast()) { zip.setInput(in, 0, n); it=null; if (finish) zip.finish(); } else { zip.setInput(in, 0, SIZE); }
          }
-         if (it==null && zip.finished()) break;
+         if (it==null && (finish ? zip.finished() : zip.needsInput())) break;
          int count = zip.deflate(output);
          if (count > 0) {
             ans = ans + count;
@@ -125,6 +143,6 @@ public final class ByteBuffer {
       byte[] last = list.getLast();
       for(byte[] x: list) if (x!=last) os.write(x);
       if (n>0) os.write(last, 0, n);
-      return ((long)(list.size()-1)) * SIZE + n;
+      return size();
    }
 }
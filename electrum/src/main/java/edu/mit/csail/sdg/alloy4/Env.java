@@ -15,9 +15,7 @@
 
 package edu.mit.csail.sdg.alloy4;
 
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.Arrays;
 
 /** Mutable; implements a undoable map based on hashCode() and equals(); null key and values are allowed.
  *
@@ -31,76 +29,181 @@ import java.util.Map;
  *       the new variable "hides" the old mapping; and when the new variable falls
  *       out of scope, the previous mapping is once again "revealed".
  *
+ * <p>   In addition, enter() starts a new frame that hides every existing mapping (as when calling a function),
+ *       and leave() discards every mapping made since the matching enter() and reveals the old ones again.
+ *
+ * <p>   Internally, the bindings are kept in arrays in the order they were made (so put and remove are O(1)
+ *       without allocating), and an open-addressing hashtable maps each key to its latest binding.
+ *       Keys are compared by identity first, so keys such as ExprVar (whose equals() is identity) are cheap to look up.
+ *
  * @param <V> - the type for Value
  */
 
 public final class Env<K,V> {
 
-   /** If a key is bound to one or more values, this stores the first value.
-    * <p>
-    * For example: if key K is bound to list of values V1,V2,V3...Vn, then map1.get(K) returns V1
-    * <p>
-    * Invariant:  map2.containsKey(x) implies (map1.containsKey(x) && map2.get(x).size()>0)
-    */
-   private final Map<K,V> map1 = new LinkedHashMap<K,V>();
+   /** This marks a binding that was removed while newer bindings for other keys were still in place. */
+   private static final Object DEAD = new Object();
 
-   /** If a key is bound to more than one value, this stores every value except the first value.
-    * <p>
-    * For example: if key K is bound to list of values V1,V2,V3...Vn, then map2.get(K) returns the sublist V2..Vn
-    * <p>
-    * Invariant:  map2.containsKey(x) implies (map1.containsKey(x) && map2.get(x).size()>0)
-    */
-   private final Map<K,LinkedList<V>> map2 = new LinkedHashMap<K,LinkedList<V>>();
+   /** The key of each binding, in the order they were made; keys[i]==DEAD if binding i has been removed. */
+   private Object[] keys = null;
+
+   /** The value of each binding. */
+   private Object[] values = null;
+
+   /** For each binding, the index of the older binding for the same key that it hides (or -1 if there is none). */
+   private int[] hidden = null;
+
+   /** The number of entries in use in keys/values/hidden. */
+   private int size = 0;
+
+   /** Bindings whose index is smaller than this are hidden by the latest call to enter(). */
+   private int floor = 0;
+
+   /** The hashtable; each slot is 0 if never used, -1 if the key no longer has any binding, or else 1 + the index of the key's latest binding. */
+   private int[] table = null;
+
+   /** The number of nonzero slots in the hashtable. */
+   private int used = 0;
 
    /** Constructs an initially empty environment. */
    public Env () { }
 
+   /** Returns true if k is the same key as "key". */
+   private static boolean same(Object key, Object k) { return k==key || (key!=null && key.equals(k)); }
+
+   /** Returns the hashtable slot for the given key, or -1 if the key is not in the hashtable. */
+   private int find(Object key) {
+      if (table==null) return -1;
+      int h = (key==null) ? 0 : key.hashCode();
+      int mask = table.length-1, i = (h ^ (h>>>16)) & mask;
+      while(true) {
+         int s = table[i];
+         if (s==0) return -1;
+         if (s>0 && same(key, keys[s-1])) return i;
+         i = (i+1) & mask;
+      }
+   }
+
+   /** Returns the index of the visible latest binding for the given key, or -1 if there is none. */
+   private int latest(Object key) {
+      int slot = find(key);
+      if (slot<0) return -1;
+      int i = table[slot]-1;
+      return i>=floor ? i : -1;
+   }
+
    /** Returns true if the key is mapped to one or more values. */
-   public boolean has (K key) { return map1.containsKey(key); }
+   public boolean has (K key) { return latest(key)>=0; }
 
    /** Returns the latest value associated with the key (and returns null if none).
     *
     * <p> Since null is also a possible value, if you get null as the answer,
     * you need to call has(key) to determine whether the key really has a mapping or not.
     */
+   @SuppressWarnings("unchecked")
    public V get (K key) {
-      LinkedList<V> list = map2.get(key);
-      return (list != null) ? list.getLast() : map1.get(key);
+      int i = latest(key);
+      return i>=0 ? (V)(values[i]) : null;
    }
 
    /** Associates the key with the value (which can be null). */
    public void put (K key, V value) {
-      LinkedList<V> list = map2.get(key);
-      if (list != null) {
-         list.add(value);
-      } else if (!map1.containsKey(key)) {
-         map1.put(key, value);
-      } else {
-         list = new LinkedList<V>();
-         list.add(value);
-         map2.put(key, list);
+      if (keys==null) { keys=new Object[8]; values=new Object[8]; hidden=new int[8]; table=new int[16]; }
+      else if (size==keys.length) { keys=Arrays.copyOf(keys, size*2); values=Arrays.copyOf(values, size*2); hidden=Arrays.copyOf(hidden, size*2); }
+      int h = (key==null) ? 0 : key.hashCode();
+      int mask = table.length-1, i = (h ^ (h>>>16)) & mask, free = -1;
+      while(true) {
+         int s = table[i];
+         if (s==0) break;
+         if (s<0) { if (free<0) free=i; }
+         else if (same(key, keys[s-1])) { free=i; break; }
+         i = (i+1) & mask;
+      }
+      if (free<0) { free=i; used++; }
+      keys[size] = key;
+      values[size] = value;
+      hidden[size] = table[free]>0 ? table[free]-1 : -1;
+      size++;
+      table[free] = size;
+      if (used*2 > table.length) rehash();
+   }
+
+   /** Rebuilds the hashtable from the current bindings (dropping the slots of keys that no longer have any binding). */
+   private void rehash() {
+      int n = 16;
+      while(n < size*4) n = n*2;
+      table = new int[n];
+      used = 0;
+      int mask = n-1;
+      for(int j=0; j<size; j++) if (keys[j]!=DEAD) {
+         Object key = keys[j];
+         int h = (key==null) ? 0 : key.hashCode(), i = (h ^ (h>>>16)) & mask;
+         while(table[i]!=0 && !same(key, keys[table[i]-1])) i = (i+1) & mask;
+         if (table[i]==0) used++;
+         table[i] = j+1;
       }
    }
 
+   /** Removes binding i (which must be the latest binding for its key), and reveals the binding it hides. */
+   private void unbind(int slot, int i) {
+      table[slot] = hidden[i]>=0 ? hidden[i]+1 : -1;
+      keys[i] = DEAD;
+      values[i] = null;
+      while(size>floor && keys[size-1]==DEAD) { size--; keys[size]=null; }
+   }
+
    /** Removes the latest mapping for the key (and if the key had previous mappings, they become visible).
     * If there are no mappings for the key, then this method does nothing.
     */
    public void remove (K key) {
-      LinkedList<V> list = map2.get(key);
-      if (list == null) map1.remove(key); else if (list.size() == 1) map2.remove(key); else list.removeLast();
+      int slot = find(key);
+      if (slot<0) return;
+      int i = table[slot]-1;
+      if (i>=floor) unbind(slot, i);
+   }
+
+   /** Hides every existing mapping until the matching call to leave(); returns the value to pass to leave(). */
+   public int enter() {
+      int ans = floor;
+      floor = size;
+      return ans;
+   }
+
+   /** Removes every mapping made since the matching call to enter(), and reveals the mappings that it hid.
+    * @param mark - the value returned by the matching call to enter()
+    */
+   public void leave(int mark) {
+      while(size>floor) {
+         int i = size-1;
+         if (keys[i]!=DEAD) unbind(find(keys[i]), i); else { size--; keys[size]=null; }
+      }
+      floor = mark;
+      while(size>floor && keys[size-1]==DEAD) { size--; keys[size]=null; }
    }
 
    /** Removes all mappings. */
    public void clear() {
-      map1.clear();
-      map2.clear();
+      if (keys==null) return;
+      Arrays.fill(keys, 0, size, null);
+      Arrays.fill(values, 0, size, null);
+      Arrays.fill(table, 0);
+      size = 0;
+      floor = 0;
+      used = 0;
    }
 
    /** Make a shallow copy of this environment. */
    public Env<K,V> dup() {
       Env<K,V> ans = new Env<K,V>();
-      ans.map1.putAll(map1);
-      for(Map.Entry<K,LinkedList<V>> e: map2.entrySet()) ans.map2.put(e.getKey(), new LinkedList<V>(e.getValue()));
+      if (keys!=null) {
+         ans.keys = keys.clone();
+         ans.values = values.clone();
+         ans.hidden = hidden.clone();
+         ans.table = table.clone();
+         ans.size = size;
+         ans.floor = floor;
+         ans.used = used;
+      }
       return ans;
    }
 }
@@ -19,20 +19,42 @@ import java.awt.Color;
 import java.awt.Polygon;
 import java.awt.Shape;
 import java.awt.geom.PathIterator;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
 
 /** Graphical convenience methods for producing PDF files.
  *
  * <p> This implementation explicitly generates a very simple 8.5 inch by 11 inch one-page PDF consisting of graphical operations.
+ * The graphical operations are compressed and written to the file as they are issued, so they never need to be all in memory at once.
  * Hopefully this class will no longer be needed in the future once Java comes with better PDF support.
  */
 
-public final strictfp class OurPDFWriter {
+public final strictfp class OurPDFWriter implements Closeable {
 
    /** The filename. */
    private final String filename;
 
+   /** When the buffer holds more than this many bytes, it is compressed and written to the file. */
+   private static final int FLUSH = 1<<20;
+
+   /** The file (null if close() has been called successfully). */
+   private RandomAccessFile out;
+
+   /** The compressor for the list of graphical operations. */
+   private final Deflater zip = new Deflater(Deflater.BEST_COMPRESSION);
+
+   /** The byte offset of the Font object and the Content object in the file. */
+   private final long fontOffset, contentOffset;
+
+   /** The number of compressed bytes of graphical operations written to the file so far. */
+   private long ct = 0;
+
+   /** If nonnull, this is the first exception that occurred when writing graphical operations to the file. */
+   private IOException failure = null;
+
    /** The page width (in terms of dots). */
    private final long width;
 
@@ -45,17 +67,31 @@ public final strictfp class OurPDFWriter {
    /** Latest line style (0=normal, 1=bold, 2=dotted, 3=dashed) */
    private int line = 0;
 
-   /** The buffer that will store the list of graphical operations issued so far (null if close() has been called successfully) */
+   /** The buffer that stores the graphical operations that have not been written to the file yet (null if close() has been called successfully) */
    private ByteBuffer buf = new ByteBuffer();
 
    /** Begin a blank PDF file with the given dots-per-inch and the given scale (the given file, if existed, will be overwritten)
     * @throws IllegalArgumentException if dpi is less than 50 or is greater than 3000
     */
-   public OurPDFWriter(String filename, int dpi, double scale) {
+   public OurPDFWriter(String filename, int dpi, double scale) throws IOException {
       if (dpi<50 || dpi>3000) throw new IllegalArgumentException("The DPI must be between 50 and 3000");
       this.filename = filename;
       width = dpi*8L + (dpi/2L); // "8.5 inches"
       height = dpi*11L;          // "11 inches"
+      // Write %PDF-1.3, followed by a non-ASCII comment to force the PDF into binary mode, then the Font, then the start of the Content
+      try {
+         out = new RandomAccessFile(filename, "rw");
+         out.setLength(0);
+         byte[] head = new byte[]{'%', 'P', 'D', 'F', '-', '1', '.', '3', 10, '%', -127, 10, 10};
+         out.write(head);
+         fontOffset = head.length;
+         contentOffset = fontOffset + out(out, fontID + " 0 obj << /Type /Font /Subtype /Type1 /BaseFont"
+               + " /Helvetica /Encoding /WinAnsiEncoding >> endobj\n\n");
+         out(out, contentID + " 0 obj << /Length " + SPACE + " /Filter /FlateDecode >> stream\r\n");
+      } catch(IOException ex) {
+         Util.close(out);
+         throw ex;
+      }
       // Write the default settings, and flip (0, 0) into the top-left corner of the page, scale the page, then leave 0.5" margin
       buf.write("q\n" + "1 J\n" + "1 j\n" + "[] 0 d\n" + "1 w\n" + "1 0 0 -1 0 ").writes(height).write("cm\n");
       buf.writes(scale).write("0 0 ").writes(scale).writes(dpi/2.0).writes(dpi/2.0).write("cm\n");
@@ -88,7 +124,7 @@ public final strictfp class OurPDFWriter {
 
    /** Draws a line from (x1, y1) to (x2, y2). */
    public OurPDFWriter drawLine(int x1, int y1, int x2, int y2) {
-      buf.writes(x1).writes(y1).write("m ").writes(x2).writes(y2).write("l S\n"); return this;
+      buf.writes(x1).writes(y1).write("m ").writes(x2).writes(y2).write("l S\n"); return flush();
    }
 
    /** Draws a circle of the given radius, centered at (0, 0). */
@@ -99,7 +135,7 @@ public final strictfp class OurPDFWriter {
       buf.writes(     -k).writes( radius).writes(-radius).writes(      k).writes(-radius).write("0 c ");
       buf.writes(-radius).writes(     -k).writes(     -k).writes(-radius).write("0 ")    .writes(-radius).write("c ");
       buf.writes(      k).writes(-radius).writes( radius).writes(     -k).writes(radius) .write(fillOrNot ? "0 c f\n" : "0 c S\n");
-      return this;
+      return flush();
    }
 
    /** Draws a shape. */
@@ -128,6 +164,15 @@ public final strictfp class OurPDFWriter {
          }
       }
       buf.write(fillOrNot ? "f\n" : "S\n");
+      return flush();
+   }
+
+   /** If the buffer is big enough, then compress it and write it to the file (if this fails, close() will throw the exception). */
+   private OurPDFWriter flush() {
+      if (buf.size() > FLUSH && failure==null) {
+         try { ct = ct + buf.dumpFlate(out, zip, false); } catch(IOException ex) { failure = ex; }
+         buf.clear();
+      }
       return this;
    }
 
@@ -210,6 +255,12 @@ public final strictfp class OurPDFWriter {
     *  %%EOF\n
     */
 
+   /** The object IDs of the Font, the Content, the Page, the Pages, and the Catalog. */
+   private static final long fontID = 1, contentID = 2, pageID = 3, pagesID = 4, catalogID = 5;
+
+   /** We reserve 20 bytes for the size of the Content, which is far far more than enough. */
+   private static final String SPACE = "                    ";
+
    /** Helper method that writes the given String to the output file, then return the number of bytes written. */
    private static int out(RandomAccessFile file, String string) throws IOException {
       byte[] array = string.getBytes("UTF-8");
@@ -220,28 +271,16 @@ public final strictfp class OurPDFWriter {
    /** Close and save this PDF object. */
    public void close() throws IOException {
       if (buf == null) return; // already closed
-      final boolean compressOrNot = true;
-      RandomAccessFile out = null;
       try {
-         String space = "                    "; // reserve 20 bytes for the file size, which is far far more than enough
-         final long fontID = 1, contentID = 2, pageID = 3, pagesID = 4, catalogID = 5, offset[] = new long[6];
-         // Write %PDF-1.3, followed by a non-ASCII comment to force the PDF into binary mode
-         out = new RandomAccessFile(filename, "rw");
-         out.setLength(0);
-         byte[] head = new byte[]{'%', 'P', 'D', 'F', '-', '1', '.', '3', 10, '%', -127, 10, 10};
-         out.write(head);
-         long now = head.length;
-         // Font
-         offset[1] = now;
-         now += out(out, fontID + " 0 obj << /Type /Font /Subtype /Type1 /BaseFont"
-               + " /Helvetica /Encoding /WinAnsiEncoding >> endobj\n\n");
+         if (failure!=null) throw failure;
+         final long offset[] = new long[6];
+         offset[1] = fontOffset;
+         offset[2] = contentOffset;
          // Content
-         offset[2] = now;
-         now += out(out, contentID + " 0 obj << /Length " + space
-               + (compressOrNot ? " /Filter /FlateDecode" : "") + " >> stream\r\n");
          buf.write("Q\n");
-         final long ct = compressOrNot ? buf.dumpFlate(out) : buf.dump(out);
-         now += ct + out(out, "endstream endobj\n\n");
+         ct = ct + buf.dumpFlate(out, zip, true);
+         zip.end();
+         long now = out.getFilePointer() + out(out, "endstream endobj\n\n");
          // Page
          offset[3] = now;
          now += out(out, pageID + " 0 obj << /Type /Page /Parent " + pagesID + " 0 R /Contents " + contentID + " 0 R >> endobj\n\n");
@@ -265,13 +304,24 @@ public final strictfp class OurPDFWriter {
          out.seek(offset[2]);
          out(out, contentID + " 0 obj << /Length " + ct); // move the file pointer back so we can write out the real Content Size
          out.close();
+         out = null;
          buf = null; // only set buf to null if the file was saved successfully and no exception was thrown
       } catch(Throwable ex) {
-         Util.close(out);
+         abort();
          if (ex instanceof IOException) throw (IOException)ex;
          if (ex instanceof OutOfMemoryError) throw new IOException("Out of memory trying to save the PDF file to " + filename);
          if (ex instanceof StackOverflowError) throw new IOException("Out of memory trying to save the PDF file to " + filename);
          throw new IOException("Error writing the PDF file to " + filename + " (" + ex + ")");
       }
    }
+
+   /** Abandons this PDF file: the compressor is released, and the partially written file is deleted (this does nothing if close() has succeeded already). */
+   public void abort() {
+      if (buf == null) return; // already closed or abandoned
+      buf = null;
+      zip.end();
+      Util.close(out);
+      out = null;
+      new File(filename).delete();
+   }
 }
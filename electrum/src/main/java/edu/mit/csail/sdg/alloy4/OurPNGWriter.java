@@ -16,11 +16,13 @@
 package edu.mit.csail.sdg.alloy4;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-
-import javax.imageio.ImageIO;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
 
 /** Graphical convenience methods for producing PNG files. */
 
@@ -29,16 +31,114 @@ public final strictfp class OurPNGWriter {
    /** The constructor is private, since this utility class never needs to be instantiated. */
    private OurPNGWriter () { }
 
-   /** Writes the image as a PNG file with the given horizontal and vertical dots-per-inch. */
-   public static void writePNG (BufferedImage image, String filename, double dpiX, double dpiY) throws IOException {
-      try {
-         ImageIO.write(image, "PNG", new File(filename)); // some versions of Java sometimes throws an exception during saving...
-         setDPI(filename, dpiX, dpiY);
-      } catch(Throwable ex) {
-         if (ex instanceof IOException) throw (IOException)ex;
-         if (ex instanceof StackOverflowError) throw new IOException("Out of memory trying to save the PNG file to " + filename);
-         if (ex instanceof OutOfMemoryError) throw new IOException("Out of memory trying to save the PNG file to " + filename);
-         throw new IOException("Error writing the PNG file to " + filename + " (" + ex + ")");
+   /** Mutable; this writes a PNG file a few rows at a time, so that the whole image never needs to be in memory at once.
+    * <p> The caller must write exactly as many rows as the height of the image, then call close().
+    */
+   public static final class RowWriter implements Closeable {
+
+      /** The filename. */
+      private final String filename;
+
+      /** The width and height of the image. */
+      private final int width, height;
+
+      /** The number of rows written so far. */
+      private int rows = 0;
+
+      /** The file (null if close() has been called successfully). */
+      private OutputStream out;
+
+      /** The compressor for the pixels. */
+      private final Deflater zip = new Deflater();
+
+      /** The current row: a filter type byte followed by the red, green, and blue byte of each pixel. */
+      private final byte[] row;
+
+      /** The IDAT chunk being filled: 4 bytes for the chunk type, followed by the compressed pixels. */
+      private final byte[] chunk = new byte[4 + 65536];
+
+      /** The number of bytes in the IDAT chunk being filled (including the 4 bytes for the chunk type). */
+      private int chunkSize = 4;
+
+      /** Begin a PNG file with the given width and height and the given horizontal and vertical dots-per-inch
+       * (the given file, if existed, will be overwritten)
+       */
+      public RowWriter(String filename, int width, int height, double dpiX, double dpiY) throws IOException {
+         if (width<1 || height<1) throw new IllegalArgumentException("The width and height must be positive.");
+         if (width > (Integer.MAX_VALUE-1)/3) throw new IllegalArgumentException("The width is too large.");
+         this.filename = filename;
+         this.width = width;
+         this.height = height;
+         this.row = new byte[1 + width*3];
+         chunk[0]='I'; chunk[1]='D'; chunk[2]='A'; chunk[3]='T';
+         try {
+            out = new BufferedOutputStream(new FileOutputStream(filename), 65536);
+            out.write(new byte[]{(byte)137, 'P', 'N', 'G', 13, 10, 26, 10});
+            // The IHDR chunk says each pixel is 8-bit red, green, blue; with the default compression and filtering, and no interlacing
+            writeChunk(out, new int[]{'I', 'H', 'D', 'R', width>>>24, width>>>16, width>>>8, width, height>>>24, height>>>16, height>>>8, height, 8, 2, 0, 0, 0});
+            int x = (int) (dpiX/0.0254), y = (int) (dpiY/0.0254); // Translate dots-per-inch into dots-per-meter
+            writeChunk(out, new int[] {'p', 'H', 'Y', 's', x>>>24, x>>>16, x>>>8, x, y>>>24, y>>>16, y>>>8, y, 1});
+         } catch(IOException ex) {
+            Util.close(out);
+            throw ex;
+         }
+      }
+
+      /** Compress whatever the compressor has for us, and write out the IDAT chunk whenever it fills up. */
+      private void deflate() throws IOException {
+         while(true) {
+            if (chunkSize == chunk.length) { writeChunk(out, chunk, chunkSize); chunkSize = 4; }
+            int count = zip.deflate(chunk, chunkSize, chunk.length - chunkSize);
+            if (count <= 0) return;
+            chunkSize = chunkSize + count;
+         }
+      }
+
+      /** Writes the first n rows of the given image as the next n rows of the PNG file (the image must be exactly as wide as the PNG file). */
+      public void write(BufferedImage image, int n) throws IOException {
+         if (image.getWidth() != width) throw new IllegalArgumentException("The image has the wrong width.");
+         if (n<0 || n>image.getHeight() || n>height-rows) throw new IllegalArgumentException("The number of rows is incorrect.");
+         int[] rgb = new int[width];
+         try {
+            for(int y=0; y<n; y++) {
+               image.getRGB(0, y, width, 1, rgb, 0, width);
+               row[0] = 0; // We don't filter the row
+               for(int x=0, i=1; x<width; x++) { int c=rgb[x]; row[i++]=(byte)(c>>16); row[i++]=(byte)(c>>8); row[i++]=(byte)c; }
+               zip.setInput(row);
+               deflate();
+               rows++;
+            }
+         } catch(IOException ex) {
+            abort();
+            throw new IOException("Error writing the PNG file to " + filename + " (" + ex + ")");
+         }
+      }
+
+      /** Close and save this PNG file (if not every row has been written, then this closes the file and throws an exception). */
+      public void close() throws IOException {
+         if (out == null) return; // already closed
+         try {
+            if (rows != height) throw new IOException("Only " + rows + " of the " + height + " rows have been written.");
+            zip.finish();
+            while(!zip.finished()) deflate();
+            zip.end();
+            if (chunkSize > 4) writeChunk(out, chunk, chunkSize);
+            writeChunk(out, new int[]{'I', 'E', 'N', 'D'});
+            out.close();
+            out = null;
+         } catch(IOException ex) {
+            abort();
+            throw new IOException("Error writing the PNG file to " + filename + " (" + ex.getMessage() + ")");
+         }
+      }
+
+      /** Abandons this PNG file: the compressor is released, and the partially written file is deleted (this does nothing if close() has succeeded already). */
+      public void abort() {
+         if (out == null) return; // already closed or abandoned
+         zip.end();
+         Util.close(out);
+         out = null;
+         new File(filename).delete();
       }
    }
 
@@ -66,52 +166,21 @@ public final strictfp class OurPNGWriter {
     * 4 bytes: Checksum
     */
 
-   /** Modifies the given PNG file to have the given horizontal and vertical dots-per-inch. */
-   private static void setDPI (String filename, double dpiX, double dpiY) throws IOException {
-      RandomAccessFile f = null;
-      try {
-         f = new RandomAccessFile(filename, "rw");
-         for(long total=f.length(), pos=8; pos<total;) { // Jump to the right place for inserting the pHYs chunk, then insert it
-            f.seek(pos);
-            int a1 = f.read(); if (a1 < 0) break;
-            int a2 = f.read(); if (a2 < 0) break;
-            int a3 = f.read(); if (a3 < 0) break;
-            int a4 = f.read(); if (a4 < 0) break;
-            int b1 = f.read(); if (b1 < 0) break;
-            int b2 = f.read(); if (b2 < 0) break;
-            int b3 = f.read(); if (b3 < 0) break;
-            int b4 = f.read(); if (b4 < 0) break;
-            int jump = (a1<<24) | (a2<<16) | (a3<<8) | a4;
-            if (jump<0 || (total-pos)-12<jump) throw new IOException("PNG chunk size exceeds the rest of the file.");
-            if ((b1=='I' && b2=='D' && b3=='A' && b4=='T') || (b1=='p' && b2=='H' && b3=='Y' && b4=='s')) {
-               Util.shift(f, (b1=='p' ? (pos+12+jump) : pos), pos+21); // skip over the existing pHYs chunk if we see it
-               f.seek(pos);
-               writeDPI(f, dpiX, dpiY);
-               f.close();
-               f = null;
-               return; // use a "return" rather than "break" so that we don't enter the line that throws the IOException
-            }
-            pos = pos + 12 + jump;
-         }
-         throw new IOException("PNG is missing the IDAT chunk");
-      } finally {
-         Util.close(f);
-      }
-   }
-
-   /** Write a "pHYs" chunk into the given file with the given horizontal and vertical dots-per-inch. */
-   private static void writeDPI (RandomAccessFile file, double dpiX, double dpiY) throws IOException {
-      int x = (int) (dpiX/0.0254), y = (int) (dpiY/0.0254); // Translate dots-per-inch into dots-per-meter
-      writeChunk(file, new int[] {'p', 'H', 'Y', 's', x>>>24, x>>>16, x>>>8, x, y>>>24, y>>>16, y>>>8, y, 1});
+   /** Write the given chunk into the given stream;  Note: data.length must be at least 4. */
+   private static void writeChunk (OutputStream out, int[] data) throws IOException {
+      byte[] array = new byte[data.length];
+      for(int i=0; i<data.length; i++) array[i] = (byte) data[i];
+      writeChunk(out, array, array.length);
    }
 
-   /** Write the given chunk into the given file;  Note: data.length must be at least 4. */
-   private static void writeChunk (RandomAccessFile file, int[] data) throws IOException {
-      int crc = (-1), len = data.length - 4;
-      file.write((len>>>24) & 255); file.write((len>>>16) & 255); file.write((len>>>8) & 255); file.write(len & 255);
-      for(int i=0; i<data.length; i++) { int x = data[i]; crc = table[(crc ^ x) & 255] ^ (crc >>> 8); file.write(x & 255); }
+   /** Write the first n bytes of the given array as a chunk into the given stream;  Note: n must be at least 4. */
+   private static void writeChunk (OutputStream out, byte[] data, int n) throws IOException {
+      int crc = (-1), len = n - 4;
+      out.write((len>>>24) & 255); out.write((len>>>16) & 255); out.write((len>>>8) & 255); out.write(len & 255);
+      for(int i=0; i<n; i++) crc = table[(crc ^ data[i]) & 255] ^ (crc >>> 8);
+      out.write(data, 0, n);
       crc = crc ^ (-1);
-      file.write((crc>>>24) & 255); file.write((crc>>>16) & 255); file.write((crc>>>8) & 255); file.write(crc & 255);
+      out.write((crc>>>24) & 255); out.write((crc>>>16) & 255); out.write((crc>>>8) & 255); out.write(crc & 255);
    }
 
    /** This precomputed table makes it faster to calculate CRC; this is based on the suggestion in the PNG specification. */
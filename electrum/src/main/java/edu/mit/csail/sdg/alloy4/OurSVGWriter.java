@@ -0,0 +1,194 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4;
+
+import java.awt.Color;
+import java.awt.Shape;
+import java.awt.geom.PathIterator;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/** Graphical convenience methods for producing SVG files.
+ *
+ * <p> This implementation generates a simple SVG image consisting of lines and paths (text is drawn as outlines by the caller).
+ * The graphical operations are written to the file as they are issued, so they never need to be all in memory at once.
+ */
+
+public final strictfp class OurSVGWriter implements Closeable {
+
+   /** The filename. */
+   private final String filename;
+
+   /** The file (null if close() has been called successfully, or if abort() has been called). */
+   private Writer out;
+
+   /** If nonnull, this is the first exception that occurred when writing graphical operations to the file. */
+   private IOException failure = null;
+
+   /** The current translation. */
+   private double dx = 0, dy = 0;
+
+   /** Latest color expressed as RGB. */
+   private int color = 0;
+
+   /** Latest line style (0=normal, 1=bold, 2=dotted, 3=dashed) */
+   private int line = 0;
+
+   /** True if a group with the latest color and line style has been opened. */
+   private boolean open = false;
+
+   /** This is used to build each graphical operation before it is written to the file. */
+   private final StringBuilder sb = new StringBuilder();
+
+   /** Begin an SVG file with the given width and height (in terms of the coordinates used for drawing) and the given scale
+    * (the given file, if existed, will be overwritten)
+    */
+   public OurSVGWriter(String filename, double width, double height, double scale) throws IOException {
+      this.filename = filename;
+      try {
+         out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), "UTF-8"));
+         sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<svg xmlns=\"http://www.w3.org/2000/svg\" version=\"1.1\"");
+         sb.append(" width=\""); num(width*scale); sb.append("\" height=\""); num(height*scale);
+         sb.append("\" viewBox=\"0 0 "); num(width); sb.append(' '); num(height); sb.append("\">\n");
+         sb.append("<rect width=\"100%\" height=\"100%\" fill=\"white\"/>\n");
+         sb.append("<g stroke-linecap=\"round\" stroke-linejoin=\"round\">\n");
+         out.write(sb.toString());
+         sb.setLength(0);
+      } catch(IOException ex) {
+         Util.close(out);
+         throw ex;
+      }
+   }
+
+   /** Appends the given number to sb (with at most 2 digits after the decimal point). */
+   private void num(double x) {
+      long n = Math.round(x*100);
+      if (n<0) { sb.append('-'); n = -n; }
+      sb.append(n/100);
+      if (n%100 != 0) { sb.append('.').append(n/10%10); if (n%10 != 0) sb.append(n%10); }
+   }
+
+   /** Appends the given point (after translation) to sb. */
+   private void point(char cmd, double x, double y) { sb.append(cmd); num(x+dx); sb.append(' '); num(y+dy); }
+
+   /** Closes the current group (if any), so that the next graphical operation will open a group with the latest color and line style. */
+   private void restyle() {
+      if (open) { sb.append("</g>\n"); open = false; }
+   }
+
+   /** Changes the color for subsequent graphical drawing. */
+   public OurSVGWriter setColor(Color color) {
+      int rgb = color.getRGB() & 0xFFFFFF;
+      if (this.color != rgb) { this.color = rgb; restyle(); }
+      return this;
+   }
+
+   /** Changes the line style to be normal. */
+   public OurSVGWriter setNormalLine()  { if (line!=0) restyle(); line=0; return this; }
+
+   /** Changes the line style to be bold. */
+   public OurSVGWriter setBoldLine()  { if (line!=1) restyle(); line=1; return this; }
+
+   /** Changes the line style to be dotted. */
+   public OurSVGWriter setDottedLine()  { if (line!=2) restyle(); line=2; return this; }
+
+   /** Changes the line style to be dashed. */
+   public OurSVGWriter setDashedLine()  { if (line!=3) restyle(); line=3; return this; }
+
+   /** Shifts the coordinate space by the given amount. */
+   public OurSVGWriter shiftCoordinateSpace(int x, int y)  { dx = dx + x; dy = dy + y; return this; }
+
+   /** Begins a graphical operation (opening a group with the latest color and line style if needed). */
+   private void begin() {
+      if (open) return;
+      String c = Integer.toHexString(0x1000000 | color).substring(1);
+      sb.append("<g stroke=\"#").append(c).append("\" fill=\"#").append(c).append("\" stroke-width=\"").append(line==1 ? "2.6" : "1.3").append('"');
+      if (line==2) sb.append(" stroke-dasharray=\"1 3\""); else if (line==3) sb.append(" stroke-dasharray=\"6 3\" stroke-dashoffset=\"5\"");
+      sb.append(">\n");
+      open = true;
+   }
+
+   /** Draws a line from (x1, y1) to (x2, y2). */
+   public OurSVGWriter drawLine(int x1, int y1, int x2, int y2) {
+      begin();
+      sb.append("<path fill=\"none\" d=\""); point('M', x1, y1); point('L', x2, y2); sb.append("\"/>\n");
+      return flush();
+   }
+
+   /** Draws a circle of the given radius, centered at (0, 0). */
+   public OurSVGWriter drawCircle(int radius, boolean fillOrNot) {
+      begin();
+      sb.append(fillOrNot ? "<circle stroke=\"none\" cx=\"" : "<circle fill=\"none\" cx=\"");
+      num(dx); sb.append("\" cy=\""); num(dy); sb.append("\" r=\"").append(radius).append("\"/>\n");
+      return flush();
+   }
+
+   /** Draws a shape. */
+   public OurSVGWriter drawShape(Shape shape, boolean fillOrNot) {
+      begin();
+      sb.append(fillOrNot ? "<path stroke=\"none\" d=\"" : "<path fill=\"none\" d=\"");
+      double pt[] = new double[6];
+      for(PathIterator it = shape.getPathIterator(null); !it.isDone(); it.next()) switch(it.currentSegment(pt)) {
+         case PathIterator.SEG_MOVETO:  point('M', pt[0], pt[1]); break;
+         case PathIterator.SEG_LINETO:  point('L', pt[0], pt[1]); break;
+         case PathIterator.SEG_QUADTO:  point('Q', pt[0], pt[1]); point(' ', pt[2], pt[3]); break;
+         case PathIterator.SEG_CUBICTO: point('C', pt[0], pt[1]); point(' ', pt[2], pt[3]); point(' ', pt[4], pt[5]); break;
+         case PathIterator.SEG_CLOSE:   sb.append('Z'); break;
+      }
+      sb.append("\"/>\n");
+      return flush();
+   }
+
+   /** Write the pending graphical operations to the file (if this fails, close() will throw the exception). */
+   private OurSVGWriter flush() {
+      if (failure==null) {
+         try { out.write(sb.toString()); } catch(IOException ex) { failure = ex; }
+      }
+      sb.setLength(0);
+      return this;
+   }
+
+   /** Close and save this SVG object. */
+   public void close() throws IOException {
+      if (out == null) return; // already closed
+      try {
+         if (failure!=null) throw failure;
+         restyle();
+         sb.append("</g>\n</svg>\n");
+         out.write(sb.toString());
+         sb.setLength(0);
+         out.close();
+         out = null; // only set out to null if the file was saved successfully and no exception was thrown
+      } catch(Throwable ex) {
+         Util.close(out);
+         if (ex instanceof IOException) throw (IOException)ex;
+         throw new IOException("Error writing the SVG file to " + filename + " (" + ex + ")");
+      }
+   }
+
+   /** Abandons this SVG file: the partially written file is deleted (this does nothing if close() has succeeded already). */
+   public void abort() {
+      if (out == null) return; // already closed or abandoned
+      Util.close(out);
+      out = null;
+      new File(filename).delete();
+   }
+}
@@ -295,6 +295,20 @@ public final class OurTabbedSyntaxWidget {
       listeners.fire(this, Event.STATUS_CHANGE);
    }
 
+   /** Highlights the text buffers that are already open, based on the location information in the set of Pos objects;
+    * unlike shade(), this does not open or switch tabs, move the caret, or take the keyboard focus.
+    */
+   public void mark(Iterable<Pos> set, Color color) {
+      for(Pos p: set) if (p!=null && p.filename.length()>0 && p.y>0 && p.x>0) for(OurSyntaxWidget text: tabs) {
+         if (!text.getFilename().equals(p.filename)) continue;
+         int c = text.getLineStartOffset(p.y-1) + p.x - 1;
+         int d = text.getLineStartOffset(p.y2-1) + p.x2 - 1;
+         text.shade(color, c, d+1);
+         break;
+      }
+      adjustLabelColor();
+   }
+
    /** Highlights the text editor, based on the location information in the Pos object. */
    public void shade(Pos pos) { shade(Util.asList(pos), new Color(0.9f, 0.4f, 0.4f), true); }
 }
@@ -20,6 +20,7 @@ import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
+import java.util.ArrayList;
 import java.util.IdentityHashMap;
 import java.util.List;
 
@@ -71,7 +72,7 @@ public abstract class OurTree extends JTree {
       /** This method is called by Swing to return an object to be drawn. */
       public Component getTreeCellRendererComponent
       (JTree tree, Object value, boolean isSelected, boolean expanded, boolean isLeaf, int row, boolean isFocused) {
-         String string = tree.convertValueToText(value, isSelected, expanded, isLeaf, row, isFocused);
+         String string = (value instanceof Page) ? value.toString() : tree.convertValueToText(value, isSelected, expanded, isLeaf, row, isFocused);
          this.isFocused = isFocused;
          this.isSelected = isSelected;
          setText(string);
@@ -97,6 +98,33 @@ public abstract class OurTree extends JTree {
       }
    }
 
+   /** Immutable; this is a placeholder node that stands for a range of children of a node that has too many children to show at once. */
+   public static final class Page {
+      /** The children of the original node. */
+      private final List<?> list;
+      /** The first child in the range. */
+      public final int from;
+      /** One past the last child in the range. */
+      public final int to;
+      /** Constructs a placeholder for the children from list[from] up to (but excluding) list[to]. */
+      private Page(List<?> list, int from, int to) { this.list=list; this.from=from; this.to=to; }
+      /** Returns a human readable description of the range. */
+      @Override public String toString() { return "[" + (from+1) + " .. " + to + "]"; }
+   }
+
+   /** The maximum number of children to show under one node; longer lists of children are split into pages. */
+   private static final int PAGE = 100;
+
+   /** Returns the children from list[from] up to (but excluding) list[to], grouped into at most PAGE pages if there are more than PAGE of them. */
+   private static List<?> page(List<?> list, int from, int to) {
+      if (to-from <= PAGE) return (from==0 && to==list.size()) ? list : list.subList(from, to);
+      int size = PAGE;
+      while((long)size*PAGE < to-from) size = size*PAGE;
+      List<Page> ans = new ArrayList<Page>();
+      for(int i=from; i<to; i=i+size) ans.add(new Page(list, i, Math.min(to, i+size)));
+      return ans;
+   }
+
    /** This ensures the class can be serialized reliably. */
    private static final long serialVersionUID = 0;
 
@@ -109,15 +137,22 @@ public abstract class OurTree extends JTree {
    /** Subclass should override this method to return whether a given item should be double-height or not (default = no). */
    protected boolean do_isDouble(Object object) { return false; }
 
-   /** Subclass should call this when all fields are initialized; we won't call do_root() and do_ask() until subclass calls this. */
+   /** Subclass should call this when all fields are initialized; we won't call do_root() and do_ask() until subclass calls this.
+    * (Subclass can call this again to discard every node computed so far.)
+    */
    protected final void do_start() {
       // Create a custom TreeModel that calls do_root() and do_ask() whenever the tree needs expansion
+      // (and that splits long lists of children into pages, so that Swing never has to lay out too many rows at once)
       setModel(new TreeModel() {
          // Cache the parent->child list so that we always get the exact same OBJECT REFERENCE when navigating the tree
          private final IdentityHashMap<Object,List<?>> map = new IdentityHashMap<Object,List<?>>();
          public Object getChild(Object parent, int index) {
             List<?> ans = map.get(parent);
-            if (ans==null) { ans = do_ask(parent); map.put(parent, ans); }
+            if (ans==null) {
+               if (parent instanceof Page) { Page p = (Page)parent; ans = page(p.list, p.from, p.to); }
+               else { ans = do_ask(parent); ans = page(ans, 0, ans.size()); }
+               map.put(parent, ans);
+            }
             return (index >= 0 && index < ans.size()) ? ans.get(index) : null;
          }
          public int getIndexOfChild(Object parent, Object child) {
@@ -157,7 +192,7 @@ public abstract class OurTree extends JTree {
       addTreeSelectionListener(new TreeSelectionListener() {
          public void valueChanged(TreeSelectionEvent e) {
             TreePath path = OurTree.this.getSelectionPath();
-            if (path!=null) OurTree.this.listeners.fire(OurTree.this, Listener.Event.CLICK, path.getLastPathComponent());
+            if (path!=null && !(path.getLastPathComponent() instanceof Page)) OurTree.this.listeners.fire(OurTree.this, Listener.Event.CLICK, path.getLastPathComponent());
          }
       });
    }
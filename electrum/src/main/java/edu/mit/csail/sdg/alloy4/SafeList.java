@@ -17,6 +17,7 @@ package edu.mit.csail.sdg.alloy4;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -36,7 +37,7 @@ import edu.mit.csail.sdg.alloy4.ConstList.TempList;
  * The iterator is guaranteed to iterate over exactly the elements
  * that existed at the time that the iterator was created.
  *
- * <p><b>Thread Safety:</b>  Safe.
+ * <p><b>Thread Safety:</b>  Safe (reads never block; concurrent writers to the same list are serialized).
  *
  * @param <T> - the type of element
  */
@@ -46,66 +47,104 @@ public final class SafeList<T> implements Serializable, Iterable<T> {
    /** This ensures the class can be serialized reliably. */
    private static final long serialVersionUID = 0;
 
+   /** The append-only storage shared by an original SafeList and all its unmodifiable copies.
+    *
+    * <p> Writers lock this object (so independent lists never contend with each other), while readers never lock:
+    * an element is written before the size that covers it, and elements are never changed once written,
+    * so a reader that sees size N is guaranteed to see the first N elements in the current array.
+    */
+   private static final class Store implements Serializable {
+      /** This ensures the class can be serialized reliably. */
+      private static final long serialVersionUID = 0;
+      /** The elements; only the first "size" entries are used. */
+      private volatile Object[] array;
+      /** The number of elements. */
+      private volatile int size;
+      /** Constructs an empty storage with the given initial capacity. */
+      private Store(int initialCapacity) { array = new Object[initialCapacity>0 ? initialCapacity : 8]; }
+      /** Make sure the array can hold at least n elements. */
+      private void ensure(int n) {
+         Object[] old = array;
+         if (n > old.length) array = Arrays.copyOf(old, Math.max(n, old.length*2));
+      }
+      /** Appends an element. */
+      private synchronized void add(Object item) {
+         int n = size;
+         ensure(n+1);
+         array[n] = item;
+         size = n+1;
+      }
+      /** Appends every element in the given array. */
+      private synchronized void addAll(Object[] items) {
+         int n = size;
+         ensure(n + items.length);
+         System.arraycopy(items, 0, array, n, items.length);
+         size = n + items.length;
+      }
+   }
+
    /** The actual list of elements; it will be shared by an original SafeList and all its unmodifiable copies. */
-   private final List<T> list;
+   private final Store store;
 
    /** If negative, that means this instance is mutable; otherwise, it is the list size at the time of the copy. */
    private final int max;
 
    /** Constructs a modifiable empty list. */
    public SafeList() {
-      list = new ArrayList<T>();
+      store = new Store(0);
       max = (-1);
    }
 
    /** Constructs a modifiable empty list with the initial capacity. */
    public SafeList(int initialCapacity) {
-      list = new ArrayList<T>(initialCapacity);
+      store = new Store(initialCapacity);
       max = (-1);
    }
 
    /** Constructs a modifiable list containing the elements from the given collection. */
    public SafeList(Collection<? extends T> initialValue) {
-      list = new ArrayList<T>(initialValue);
+      Object[] items = initialValue.toArray();
+      store = new Store(items.length);
+      store.addAll(items);
       max = (-1);
    }
 
    /** Constructs a modifiable list containing the elements from the given iterable. */
    public SafeList(Iterable<? extends T> initialValue) {
-      list = new ArrayList<T>();
+      store = new Store(0);
       max = (-1);
-      for(T obj: initialValue) list.add(obj);
+      for(T obj: initialValue) store.add(obj);
    }
 
-   /** Private constructor for assigning exact values to "list" and "max". */
-   private SafeList(List<T> list, int max) {
-      this.list = list;
+   /** Private constructor for assigning exact values to "store" and "max". */
+   private SafeList(Store store, int max) {
+      this.store = store;
       this.max = max;
    }
 
    /** Constructs an unmodifiable copy of an existing SafeList. */
    public SafeList<T> dup() {
-      synchronized(SafeList.class) { return new SafeList<T>(list, size()); }
+      return new SafeList<T>(store, size());
    }
 
    /** Constructs a modifiable ArrayList containing the same elements as this list. */
+   @SuppressWarnings("unchecked")
    public List<T> makeCopy() {
-      synchronized(SafeList.class) {
-         int n = size();
-         ArrayList<T> ans = new ArrayList<T>(n);
-         for(int i=0; i<n; i++) ans.add(list.get(i));
-         return ans;
-      }
+      int n = size();
+      Object[] array = store.array;
+      ArrayList<T> ans = new ArrayList<T>(n);
+      for(int i=0; i<n; i++) ans.add((T)(array[i]));
+      return ans;
    }
 
    /** Constructs an unmodifiable ConstList containing the same elements as this list. */
+   @SuppressWarnings("unchecked")
    public ConstList<T> makeConstList() {
-      synchronized(SafeList.class) {
-         int n = size();
-         TempList<T> ans = new TempList<T>(n);
-         for(int i=0; i<n; i++) ans.add(list.get(i));
-         return ans.makeConst();
-      }
+      int n = size();
+      Object[] array = store.array;
+      TempList<T> ans = new TempList<T>(n);
+      for(int i=0; i<n; i++) ans.add((T)(array[i]));
+      return ans.makeConst();
    }
 
    /** Computes a hash code that is consistent with SafeList's equals() and java.util.List's hashCode() methods. */
@@ -150,31 +189,26 @@ public final class SafeList<T> implements Serializable, Iterable<T> {
 
    /** Add an element into the list. */
    public boolean add(T item) {
-      synchronized(SafeList.class) {
-         if (max>=0) throw new UnsupportedOperationException(); else return list.add(item);
-      }
+      if (max>=0) throw new UnsupportedOperationException();
+      store.add(item);
+      return true;
    }
 
    /** Add a collection of elements into the list. */
    public void addAll(Collection<? extends T> items) {
-      synchronized(SafeList.class) {
-         if (max>=0) throw new UnsupportedOperationException();
-         list.addAll(items);
-      }
+      if (max>=0) throw new UnsupportedOperationException();
+      store.addAll(items.toArray());
    }
 
    /** Get an element from the list. */
+   @SuppressWarnings("unchecked")
    public T get(int i) {
-      synchronized(SafeList.class) {
-         if (max>=0 && i>=max) throw new IndexOutOfBoundsException(); else return list.get(i);
-      }
+      if (i<0 || i>=size()) throw new IndexOutOfBoundsException(); else return (T)(store.array[i]);
    }
 
    /** Returns the size of the list. */
    public int size() {
-      synchronized(SafeList.class) {
-         if (max>=0) return max; else return list.size();
-      }
+      if (max>=0) return max; else return store.size;
    }
 
    /** Returns true if the list is empty. */
@@ -191,22 +225,18 @@ public final class SafeList<T> implements Serializable, Iterable<T> {
     * at the time that the iterator was created (even if the list is modified after that point).
     */
    public Iterator<T> iterator() {
-      synchronized(SafeList.class) {
-         return new Iterator<T>() {
-            private final int imax = (max>=0 ? max : list.size());
-            private int now = 0;
-            public final T next() {
-               if (now >= imax) throw new NoSuchElementException();
-               synchronized(SafeList.class) {
-                  T answer = list.get(now);
-                  now++;
-                  return answer;
-               }
-            }
-            public final boolean hasNext() { return now < imax; }
-            public final void remove() { throw new UnsupportedOperationException(); }
-         };
-      }
+      final int imax = size();
+      final Object[] array = store.array; // read after the size, so it holds at least imax elements
+      return new Iterator<T>() {
+         private int now = 0;
+         @SuppressWarnings("unchecked")
+         public final T next() {
+            if (now >= imax) throw new NoSuchElementException();
+            return (T)(array[now++]);
+         }
+         public final boolean hasNext() { return now < imax; }
+         public final void remove() { throw new UnsupportedOperationException(); }
+      };
    }
 
    /** Returns a String representation of this list. */
@@ -26,9 +26,15 @@ import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -115,7 +121,18 @@ public final class Util {
 
    /** Converts Windows/Mac/Unix linebreaks into '\n', and replace non-tab non-linebreak control characters into space. */
    public static String convertLineBreak(String input) {
-      return input.replace("\r\n","\n").replace('\r','\n').replaceAll("[\000-\010\013\014\016-\037]"," ");
+      // Most inputs are already clean, so we first scan for anything to convert, and return the input itself if there is none
+      int n=input.length(), i=0;
+      for(; i<n; i++) { char c=input.charAt(i); if (c<32 && c!='\t' && c!='\n') break; }
+      if (i>=n) return input;
+      StringBuilder sb = new StringBuilder(n);
+      sb.append(input, 0, i);
+      for(; i<n; i++) {
+         char c=input.charAt(i);
+         if (c=='\r') { sb.append('\n'); if (i+1<n && input.charAt(i+1)=='\n') i++; continue; }
+         sb.append((c<32 && c!='\t' && c!='\n') ? ' ' : c);
+      }
+      return sb.toString();
    }
 
    /** Attempt to close the file/stream/reader/writer and return true if and only if we successfully closed it.
@@ -160,61 +177,120 @@ public final class Util {
 
    /** Read everything into a String; throws IOException if an error occurred.
     * (If filename begins with Util.jarPrefix() then we read from the JAR instead)
+    *
+    * <p> The bytes are decoded and the line breaks are normalized (as in convertLineBreak) in a single pass,
+    * so the returned String is the only full-size copy of the content that we make.
+    * We first try UTF-8; if that fails, we try the platform's default charset;
+    * if that also fails, we use "ISO-8859-1" which should always succeed but may map some characters wrong.
     */
    public static String readAll(String filename) throws FileNotFoundException, IOException {
       String JAR = jarPrefix();
       boolean fromJar=false;
       if (filename.startsWith(JAR)) { fromJar=true; filename=filename.substring(JAR.length()).replace('\\', '/'); }
-      InputStream fis=null;
-      int now=0, max=4096;
-      if (!fromJar) {
-         long maxL = new File(filename).length();
-         max = (int)maxL;
-         if (max != maxL) throw new IOException("File too big to fit in memory");
-      }
-      byte[] buf;
+      CodingErrorAction r = CodingErrorAction.REPORT;
+      CodingErrorAction i = CodingErrorAction.IGNORE;
       try {
-         buf = new byte[max];
-         fis = fromJar ? Util.class.getClassLoader().getResourceAsStream(filename) : new FileInputStream(filename);
-         if (fis==null) throw new FileNotFoundException("File \""+filename+"\" cannot be found");
-         while(true) {
-            if (now >= max) {
-               max = now + 4096;
-               if (max<now) throw new IOException("File too big to fit in memory");
-               byte[] buf2 = new byte[max];
-               if (now>0) System.arraycopy(buf, 0, buf2, 0, now);
-               buf = buf2;
+         try {
+            return readAll(filename, fromJar, Charset.forName("UTF-8").newDecoder().onMalformedInput(r).onUnmappableCharacter(r));
+         } catch(CharacterCodingException ex) {
+            try {
+               return readAll(filename, fromJar, Charset.defaultCharset().newDecoder().onMalformedInput(r).onUnmappableCharacter(r));
+            } catch(CharacterCodingException ex2) {
+               return readAll(filename, fromJar, Charset.forName("ISO-8859-1").newDecoder().onMalformedInput(i).onUnmappableCharacter(i));
             }
-            int r = fis.read(buf, now, max-now);
-            if (r<0) break;
-            now = now + r;
          }
       } catch(OutOfMemoryError ex) {
          System.gc();
          throw new IOException("There is insufficient memory.");
+      }
+   }
+
+   /** Decode the entire file using the given decoder, and convert the line breaks on the fly.
+    * <p> Note: we never memory-map the file, since a mapped file cannot be overwritten on Windows until the mapping is garbage collected,
+    * and the files we read are often saved again by the editor soon after.
+    * @throws CharacterCodingException if the decoder is set to REPORT and the content is not valid for its charset
+    */
+   private static String readAll(String filename, boolean fromJar, CharsetDecoder decoder) throws FileNotFoundException, IOException {
+      InputStream fis=null;
+      try {
+         fis = fromJar ? Util.class.getClassLoader().getResourceAsStream(filename) : new FileInputStream(filename);
+         if (fis==null) throw new FileNotFoundException("File \""+filename+"\" cannot be found");
+         LineBreakSink sink;
+         if (!fromJar) {
+            FileChannel ch = ((FileInputStream)fis).getChannel();
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("File too big to fit in memory");
+            sink = new LineBreakSink((int)size);
+         } else {
+            sink = new LineBreakSink(4096);
+         }
+         ReadableByteChannel ch = fromJar ? Channels.newChannel(fis) : ((FileInputStream)fis).getChannel();
+         ByteBuffer bbuf = ByteBuffer.allocate(16384);
+         while(true) {
+            int n = ch.read(bbuf);
+            bbuf.flip();
+            sink.decode(decoder, bbuf, n<0);
+            if (n<0) return sink.finish(decoder);
+            bbuf.compact();
+         }
       } finally {
          close(fis);
       }
-      CodingErrorAction r = CodingErrorAction.REPORT;
-      CodingErrorAction i = CodingErrorAction.IGNORE;
-      ByteBuffer bbuf;
-      String ans = "";
-      try {
-         // We first try UTF-8;
-         bbuf=ByteBuffer.wrap(buf, 0, now);
-         ans=Charset.forName("UTF-8").newDecoder().onMalformedInput(r).onUnmappableCharacter(r).decode(bbuf).toString();
-      } catch(CharacterCodingException ex) {
-         try {
-            // if that fails, we try using the platform's default charset
-            bbuf=ByteBuffer.wrap(buf, 0, now);
-            ans=Charset.defaultCharset().newDecoder().onMalformedInput(r).onUnmappableCharacter(r).decode(bbuf).toString();
-         } catch(CharacterCodingException ex2) {
-            // if that also fails, we try using "ISO-8859-1" which should always succeed but may map some characters wrong
-            bbuf=ByteBuffer.wrap(buf, 0, now);
-            ans=Charset.forName("ISO-8859-1").newDecoder().onMalformedInput(i).onUnmappableCharacter(i).decode(bbuf).toString();
+   }
+
+   /** This accumulates decoded characters while converting Windows/Mac/Unix linebreaks into '\n'
+    * and replacing non-tab non-linebreak control characters by space (exactly as convertLineBreak does).
+    */
+   private static final class LineBreakSink {
+      /** The converted characters so far. */
+      private char[] buf;
+      /** The number of valid characters in buf. */
+      private int len;
+      /** True if the last character we received was '\r'. */
+      private boolean cr;
+      /** The temporary buffer that the decoder writes into. */
+      private final CharBuffer tmp = CharBuffer.allocate(8192);
+      /** Constructs a sink with the given initial capacity. */
+      LineBreakSink(int capacity) { buf = new char[Math.max(capacity, 16)]; }
+      /** Decode as much of the input as possible, and append the result. */
+      void decode(CharsetDecoder decoder, ByteBuffer in, boolean endOfInput) throws CharacterCodingException {
+         while(true) {
+            CoderResult res = decoder.decode(in, tmp, endOfInput);
+            drain();
+            if (res.isUnderflow()) return;
+            if (res.isError()) res.throwException();
+         }
+      }
+      /** Flush the decoder, then return the result as a String. */
+      String finish(CharsetDecoder decoder) throws CharacterCodingException {
+         while(true) {
+            CoderResult res = decoder.flush(tmp);
+            drain();
+            if (res.isUnderflow()) return new String(buf, 0, len);
+            if (res.isError()) res.throwException();
+         }
+      }
+      /** Move the characters from tmp into buf, converting them along the way. */
+      private void drain() {
+         tmp.flip();
+         int n = tmp.remaining();
+         if (len + n > buf.length) {
+            int max = Math.max(len + n, buf.length + (buf.length >> 1));
+            if (max < 0) throw new OutOfMemoryError();
+            char[] buf2 = new char[max];
+            System.arraycopy(buf, 0, buf2, 0, len);
+            buf = buf2;
+         }
+         char[] src = tmp.array();
+         for(int i=0; i<n; i++) {
+            char c = src[i];
+            if (c=='\r') { cr=true; buf[len++]='\n'; continue; }
+            if (c=='\n' && cr) { cr=false; continue; }
+            cr=false;
+            buf[len++] = (c<32 && c!='\t' && c!='\n') ? ' ' : c;
          }
+         tmp.clear();
       }
-      return convertLineBreak(ans);
    }
 
    /** Open then overwrite the file with the given content; throws Err if an error occurred. */
@@ -157,6 +157,13 @@ public final class CompModule extends Browsable implements Module {
 	/** The list of (CommandName,Command,Expr) triples; NOTE: duplicate command names are allowed. */
 	private final List<Command> commands = new ArrayList<Command>();
 
+	/** Maps each field label to the fields with that label in this module's sigs (ordered by sig, then by field);
+	 * null if it has not been computed yet or has been invalidated. */
+	private Map<String,List<Field>> label2fields = null;
+
+	/** Maps each sig in this module to its position in the "sigs" map; computed along with "label2fields". */
+	private Map<Sig,Integer> sig2rank = null;
+
 	//============================================================================================================================//
 
 	/** Mutable; this class represents the current typechecking context. */
@@ -1028,7 +1035,7 @@ public final class CompModule extends Browsable implements Module {
 		res.new2old.put(realSig, oldS);
 		res.sig2module.put(realSig, u);
 		for(CompModule m: res.allModules) {
-			for(Map.Entry<String,Sig> e: m.sigs.entrySet()) if (e.getValue()==oldS) e.setValue(realSig);
+			if (m.sigs.get(name)==oldS) m.sigs.put(name, realSig); // sigs are always keyed by their base name
 			for(Map.Entry<String,Sig> e: m.params.entrySet()) if (e.getValue()==oldS) e.setValue(realSig);
 		}
 		if (res.exactSigs.remove(oldS)) res.exactSigs.add(realSig);
@@ -1358,6 +1365,7 @@ public final class CompModule extends Browsable implements Module {
 			cx.remove("this");
 			String[] names = new String[d.names.size()];  for(int i=0; i<names.length; i++) names[i] = d.names.get(i).label;
 			Field[] fields = s.addTrickyField(d.span(), d.isPrivate, d.disjoint, d.disjoint2, null, d.isVar, names, bound); // [HASLab]
+			for(Field f: fields) m.indexField(f);
 		    final VisitQuery<Sig> q = new VisitQuery<Sig>() { // [HASLab]
 		      @Override public final Sig visit(Sig x) { if (x.isVariable!=null) return x; else return null; }
 		    };
@@ -1477,7 +1485,7 @@ public final class CompModule extends Browsable implements Module {
 		if (!errors.isEmpty()) throw errors.pick();
 		// Typecheck the defined fields
 		for(Sig oldS: root.new2old.keySet()) resolveFieldDecl(root, rep, oldS, warns, true);
-		if (Version.experimental && root.seenDollar) resolveMeta(root);
+		if (Version.experimental && root.seenDollar) { resolveMeta(root); for(CompModule m: root.allModules) m.label2fields = null; }
 		// Reject name clash
 		rejectNameClash(root.allModules);
 		// Typecheck the function bodies, assertions, and facts (which can refer to function declarations)
@@ -1504,6 +1512,33 @@ public final class CompModule extends Browsable implements Module {
 		globals.put(name, value);
 	}
 
+	/** Returns the fields with the given label in this module's sigs, ordered by sig then by field (same as scanning every sig). */
+	private List<Field> getFieldsByLabel(String label) {
+		if (label2fields==null) {
+			label2fields = new HashMap<String,List<Field>>();
+			sig2rank = new HashMap<Sig,Integer>();
+			for(Sig s: sigs.values()) {
+				sig2rank.put(s, sig2rank.size());
+				for(Field f: s.getFields()) indexField(f);
+			}
+		}
+		List<Field> ans = label2fields.get(label);
+		return ans!=null ? ans : new ArrayList<Field>(0);
+	}
+
+	/** Add a newly created field into label2fields (if it has been computed), keeping it ordered by sig. */
+	private void indexField(Field f) {
+		if (label2fields==null) return;
+		List<Field> list = label2fields.get(f.label);
+		if (list==null) { list = new ArrayList<Field>(1); label2fields.put(f.label, list); }
+		Integer rank = sig2rank.get(f.sig);
+		int i = list.size();
+		// Fields are usually added in sig order, so this loop almost never iterates;
+		// fields of the same sig are always added in order, so we only need to compare the sigs.
+		if (rank!=null) while(i>0) { Integer r = sig2rank.get(list.get(i-1).sig); if (r==null || r<=rank) break; i--; }
+		list.add(i, f);
+	}
+
 	/** Resolve the name based on the current context and this module. */
 	private Expr populate(TempList<Expr> ch, TempList<String> re, Decl rootfield, Sig rootsig, boolean rootfunparam, Func rootfunbody, Pos pos, String fullname, Expr THIS) {
 		// Return object can be Func(with > 0 arguments) or Expr
@@ -1566,8 +1601,7 @@ public final class CompModule extends Browsable implements Module {
 		// (2) But can refer to anything else visible.
 		// All else: we can call, and can refer to anything visible.
 		for(CompModule m: getAllNameableModules())
-			for(Sig s: m.sigs.values()) if (m==this || s.isPrivate==null)
-				for(Field f: s.getFields()) if (f.isMeta==null && (m==this || f.isPrivate==null) && f.label.equals(name))
+			for(Field f: m.getFieldsByLabel(name)) if ((m==this || f.sig.isPrivate==null) && f.isMeta==null && (m==this || f.isPrivate==null))
 					if (resolution==1) {
 						Expr x=null;
 						if (rootsig==null)
@@ -12,7 +12,6 @@ import java.util.ArrayList;
 import java.util.TreeSet;
 import java.util.Map;
 import java.util.LinkedHashMap;
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.Reader;
 import java.io.IOException;
@@ -2813,9 +2812,9 @@ public class CompParser extends java_cup.runtime.lr_parser {
         if (content==null && loaded!=null) content = loaded.get(filename);
         if (content==null) content = Util.readAll(filename);
         if (loaded!=null) loaded.put(filename,content);
-        content = Util.convertLineBreak(content);
+        content = Util.convertLineBreak(content); // returns the same String if it was already converted (eg. by Util.readAll)
         isr = new StringReader(content);
-        CompFilter s = new CompFilter(u, seenDollar, filename, lineOffset, new BufferedReader(isr));
+        CompFilter s = new CompFilter(u, seenDollar, filename, lineOffset, isr);
         CompParser p = new CompParser(s);
         p.alloymodule=u;
         try {p.parse();} catch(Throwable ex) {if (ex instanceof Err) throw (Err)ex; throw new ErrorFatal("Parser Exception", ex);}
@@ -6493,14 +6492,14 @@ class CUP$CompParser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 162: // SuperP ::= SuperP Expr 
             {
-              Expr RESULT =null;
+              List<Expr> RESULT =null;
 		int aleft = ((java_cup.runtime.Symbol)CUP$CompParser$stack.elementAt(CUP$CompParser$top-1)).left;
 		int aright = ((java_cup.runtime.Symbol)CUP$CompParser$stack.elementAt(CUP$CompParser$top-1)).right;
-		Expr a = (Expr)((java_cup.runtime.Symbol) CUP$CompParser$stack.elementAt(CUP$CompParser$top-1)).value;
+		List<Expr> a = (List<Expr>)((java_cup.runtime.Symbol) CUP$CompParser$stack.elementAt(CUP$CompParser$top-1)).value;
 		int bleft = ((java_cup.runtime.Symbol)CUP$CompParser$stack.peek()).left;
 		int bright = ((java_cup.runtime.Symbol)CUP$CompParser$stack.peek()).right;
 		Expr b = (Expr)((java_cup.runtime.Symbol) CUP$CompParser$stack.peek()).value;
-		 RESULT=ExprBinary.Op.AND.make(null, null, a, b);  
+		 a.add(b); RESULT=a;                               
               CUP$CompParser$result = parser.getSymbolFactory().newSymbol("SuperP",25, ((java_cup.runtime.Symbol)CUP$CompParser$stack.elementAt(CUP$CompParser$top-1)), ((java_cup.runtime.Symbol)CUP$CompParser$stack.peek()), RESULT);
             }
           return CUP$CompParser$result;
@@ -6508,11 +6507,11 @@ class CUP$CompParser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 161: // SuperP ::= Expr 
             {
-              Expr RESULT =null;
+              List<Expr> RESULT =null;
 		int aleft = ((java_cup.runtime.Symbol)CUP$CompParser$stack.peek()).left;
 		int aright = ((java_cup.runtime.Symbol)CUP$CompParser$stack.peek()).right;
 		Expr a = (Expr)((java_cup.runtime.Symbol) CUP$CompParser$stack.peek()).value;
-		 RESULT=a;                                         
+		 RESULT=new ArrayList<Expr>(); RESULT.add(a);      
               CUP$CompParser$result = parser.getSymbolFactory().newSymbol("SuperP",25, ((java_cup.runtime.Symbol)CUP$CompParser$stack.peek()), ((java_cup.runtime.Symbol)CUP$CompParser$stack.peek()), RESULT);
             }
           return CUP$CompParser$result;
@@ -6541,11 +6540,11 @@ class CUP$CompParser$actions {
 		Pos a = (Pos)((java_cup.runtime.Symbol) CUP$CompParser$stack.elementAt(CUP$CompParser$top-2)).value;
 		int xleft = ((java_cup.runtime.Symbol)CUP$CompParser$stack.elementAt(CUP$CompParser$top-1)).left;
 		int xright = ((java_cup.runtime.Symbol)CUP$CompParser$stack.elementAt(CUP$CompParser$top-1)).right;
-		Expr x = (Expr)((java_cup.runtime.Symbol) CUP$CompParser$stack.elementAt(CUP$CompParser$top-1)).value;
+		List<Expr> x = (List<Expr>)((java_cup.runtime.Symbol) CUP$CompParser$stack.elementAt(CUP$CompParser$top-1)).value;
 		int bleft = ((java_cup.runtime.Symbol)CUP$CompParser$stack.peek()).left;
 		int bright = ((java_cup.runtime.Symbol)CUP$CompParser$stack.peek()).right;
 		Pos b = (Pos)((java_cup.runtime.Symbol) CUP$CompParser$stack.peek()).value;
-		 RESULT=ExprUnary.Op.NOOP.make(a.merge(b), x);     
+		 RESULT=ExprUnary.Op.NOOP.make(a.merge(b), x.size()==1 ? x.get(0) : ExprList.make(null, null, ExprList.Op.AND, x)); 
               CUP$CompParser$result = parser.getSymbolFactory().newSymbol("Super",23, ((java_cup.runtime.Symbol)CUP$CompParser$stack.elementAt(CUP$CompParser$top-2)), ((java_cup.runtime.Symbol)CUP$CompParser$stack.peek()), RESULT);
             }
           return CUP$CompParser$result;
@@ -16,48 +16,100 @@
 package edu.mit.csail.sdg.alloy4compiler.sim;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Immutable; represents an atom.
  *
- * <p> Outside of this class, we guarantee for any SimAtom x and y, then "x.equals(y) iff x==y".
- * <br> Even though that means "equals()" and "==" are equivalent,
- * <br> the equals() method is much slower than "==" for SimAtom,
- * <br> so you should always try to use "==" on SimAtom.
+ * <p> We guarantee for any SimAtom x and y, then "x.equals(y) iff x==y".
  *
  * <p><b>Thread Safety:</b>  Safe.
  */
 
 public final class SimAtom {
 
-    /** This map is used to canonicalize the atoms. */
-    private static final WeakHashMap<SimAtom,WeakReference<SimAtom>> map = new WeakHashMap<SimAtom,WeakReference<SimAtom>>();
+    /** This map is used to canonicalize the atoms; it maps each label to a weak reference to its atom (which is cleared once the atom is no longer used).
+     * <br> Looking up an existing atom never takes a lock, so threads that evaluate at the same time do not wait for each other.
+     */
+    private static final ConcurrentHashMap<String,Ref> map = new ConcurrentHashMap<String,Ref>();
+
+    /** The references whose atoms have been garbage collected (so that their entries can be removed from the map). */
+    private static final ReferenceQueue<SimAtom> cleared = new ReferenceQueue<SimAtom>();
+
+    /** Immutable; this is a weak reference to an atom that remembers the label it is stored under. */
+    private static final class Ref extends WeakReference<SimAtom> {
+        /** The label of the atom. */
+        final String label;
+        /** Constructs a weak reference to the given atom. */
+        Ref(SimAtom atom) { super(atom, cleared); label = atom.string; }
+    }
+
+    /** The smallest integer whose atom is cached in the ints array. */
+    private static final int MININT = -1024;
+
+    /** The largest integer whose atom is cached in the ints array. */
+    private static final int MAXINT = 1023;
+
+    /** This caches the atoms for the integers MININT..MAXINT so that make(int) does not need to format the integer and look it up each time.
+     * <br> Each entry is filled in on demand; if two threads race to fill in the same entry, they will both store the same canonical atom.
+     */
+    private static final SimAtom[] ints = new SimAtom[MAXINT - MININT + 1];
+
+    /** This is used to give each atom a distinct id. */
+    private static final AtomicInteger ids = new AtomicInteger();
 
     /** The String label for the atom; all distinct atoms have distinct labels. */
-    private String string;
+    private final String string;
+
+    /** A number that is distinct for each atom that is alive; it is used by SimTuple to compute its hash code. */
+    final int id;
+
+    /** If nonnull, this atom is the canonical decimal representation of this 32-bit integer. */
+    private final Integer num;
 
     /** Construct a SimAtom; this constructor must only be called by make() since we want to canonicalize all SimAtom instances out there. */
-    private SimAtom(String x) { this.string = x; }
+    private SimAtom(String x) {
+        this.string = x;
+        this.id = ids.getAndIncrement();
+        Integer num = null;
+        if (x.length()>0 && (x.charAt(0)=='-' || (x.charAt(0)>='0' && x.charAt(0)<='9'))) {
+           try { num = Integer.valueOf(x); if (!num.toString().equals(x)) num = null; } catch(NumberFormatException ex) { }
+        }
+        this.num = num;
+    }
 
     /** Construct a SimAtom for the given label, or if an existing SimAtom hasn't been garbage collected yet then return that instead. */
     public static SimAtom make(String label) {
-        synchronized(map) {
-            SimAtom x = new SimAtom(label);
-            WeakReference<SimAtom> ans = map.get(x);
-            if (ans != null) { SimAtom y = ans.get(); if (y!=null) return y; }
-            map.put(x, new WeakReference<SimAtom>(x));
-            return x;
+        Ref ref = map.get(label);
+        SimAtom ans = (ref==null) ? null : ref.get();
+        if (ans != null) return ans;
+        for(Reference<? extends SimAtom> old; (old = cleared.poll()) != null;) map.remove(((Ref)old).label, old);
+        SimAtom x = new SimAtom(label);
+        Ref mine = new Ref(x);
+        while(true) {
+            ref = map.putIfAbsent(label, mine);
+            if (ref == null) return x;
+            ans = ref.get();
+            if (ans != null) return ans; // another thread has made this atom first
+            if (map.replace(label, ref, mine)) return x; // the old atom has been garbage collected, so we replace its entry
         }
     }
 
     /** Construct a SimAtom for the given integer, or if an existing SimAtom hasn't been garbage collected yet then return that instead. */
-    public static SimAtom make(int i) { return make(String.valueOf(i)); }
+    public static SimAtom make(int i) {
+        if (i<MININT || i>MAXINT) return make(String.valueOf(i));
+        SimAtom ans = ints[i - MININT];
+        if (ans == null) ints[i - MININT] = (ans = make(String.valueOf(i)));
+        return ans;
+    }
 
     /** Construct a SimAtom for the given integer, or if an existing SimAtom hasn't been garbage collected yet then return that instead. */
-    public static SimAtom make(long i) { return make(String.valueOf(i)); }
+    public static SimAtom make(long i) { return (i>=MININT && i<=MAXINT) ? make((int)i) : make(String.valueOf(i)); }
 
     /** Preconstructed atom representing emptystring. */
     public static final SimAtom EMPTYSTRING = make("");
@@ -69,15 +121,14 @@ public final class SimAtom {
     public static final SimAtom ONE = make("1");
 
     /** Write this atom as "..". */
-    void write(BufferedOutputStream out) throws IOException {
-        byte array[] = string.getBytes("UTF-8");
+    void write(Writer out) throws IOException {
         out.write('\"');
-        for(int n=array.length, i=0; i<n; i++) {
-            byte b = array[i];
-            if (b=='\n') { out.write('\\'); out.write('n'); }
-            else if (b=='\"') { out.write('\\'); out.write(b); }
-            else if (b>0 && b<=' ') out.write(' ');
-            else out.write(b);
+        for(int n=string.length(), i=0; i<n; i++) {
+            char c = string.charAt(i);
+            if (c=='\n') { out.write('\\'); out.write('n'); }
+            else if (c=='\"' || c=='\\') { out.write('\\'); out.write(c); }
+            else if (c>0 && c<=' ') out.write(' ');
+            else out.write(c);
         }
         out.write('\"');
     }
@@ -111,6 +162,7 @@ public final class SimAtom {
      * If the atom does not start with "-" or "0-9", then return defaultValue.
      */
     public Integer toInt(Integer defaultValue) throws NumberFormatException {
+        if (num!=null) return num;
         int ans=0, i=0, n=string.length();
         if (n==0) return defaultValue;
         // Due to Java's 2's complement arithmetic, this will successfully
@@ -128,14 +180,7 @@ public final class SimAtom {
 
     /** {@inheritDoc} */
     @Override public boolean equals(Object that) {
-        if (this==that) return true;
-        if (!(that instanceof SimAtom)) return false;
-        SimAtom x = (SimAtom)that;
-        if (string==x.string) return true; else if (string.equals(x.string)) {string=x.string; return true;} else return false;
-        // Change it so we share the same String; this is thread safe since String objects are immutable
-        // so it doesn't matter if some thread sees the old String and some sees the new String.
-        // JLS 3rd Edition 17.7 guarantees that writes and reads of references are atomic though not necessarily visible,
-        // so another thread will either see the old String or the new String.
+        return this==that; // since all atoms are canonicalized, two atoms are equal iff they are the same object
     }
 
     /** {@inheritDoc} */
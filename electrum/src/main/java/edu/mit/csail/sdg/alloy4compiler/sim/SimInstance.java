@@ -17,16 +17,34 @@ package edu.mit.csail.sdg.alloy4compiler.sim;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import edu.mit.csail.sdg.alloy4.ConstList.TempList;
 import edu.mit.csail.sdg.alloy4.Env;
@@ -52,13 +70,29 @@ public final class SimInstance extends VisitReturn<Object> {
     public final Module root;
 
     /** This maps the current local variables (LET, QUANT, Function Param) to the actual SimTupleset/Integer/Boolean */
-    private Env<ExprVar,Object> env = new Env<ExprVar,Object>();
+    Env<ExprVar,Object> env = new Env<ExprVar,Object>();
 
     /** This stores the "call backs" where you can supply Java code to efficiently handle certain functions/predicates. */
     private final Map<Func,SimCallback> callbacks;
 
     /** The exact values of each sig, field, and skolem (Note: it must not cache the value of any "defined" field, nor any builtin sig) */
-    private final Map<Expr,SimTupleset> sfs = new LinkedHashMap<Expr,SimTupleset>();
+    private Map<Expr,SimTupleset> sfs = new LinkedHashMap<Expr,SimTupleset>();
+
+    /** True if the sfs map may be shared with a copy of this instance (so it must be copied before it can be changed).
+     * <br> Since every SimTupleset is immutable, a copy of this instance only needs to copy the map itself, and only when one of them is changed.
+     */
+    private boolean shared = false;
+
+    /** For each atom label prefix used by makeAtom(), this maps it to a number i such that prefix+j is already an atom for every j&lt;i. */
+    private Map<String,Integer> fresh = new HashMap<String,Integer>();
+
+    /** Returns the sfs map, after making sure it is not shared with any other instance (so that it can be changed). */
+    private Map<Expr,SimTupleset> sfs() {
+        if (trace!=null) trace.changed();
+        if (!closedValues.isEmpty()) closedValues.clear();
+        if (shared) { sfs = new LinkedHashMap<Expr,SimTupleset>(sfs); shared = false; }
+        return sfs;
+    }
 
     /** If nonnull, it caches the current value of STRING (this value must be cleared or updated when you change the value of sigs/fields/vars) */
     private SimTupleset cacheSTRING = null;
@@ -69,6 +103,14 @@ public final class SimInstance extends VisitReturn<Object> {
     /** Caches parameter-less functions to a Boolean, Integer, or SimTupleset. */
     private final Map<Func,Object> cacheForConstants = new IdentityHashMap<Func,Object>();
 
+    /** Caches the Plan of every quantification-expression evaluated so far (since it only depends on the expression). */
+    private final Map<ExprQt,Plan> plans;
+
+    /** Caches the value of every closed conjunct (see Plan.closed) evaluated so far by the outermost quantification-expression being evaluated
+     * (this is cleared once it finishes, and whenever the sig/field/var values or callbacks change).
+     */
+    private final Map<Expr,Boolean> closedValues = new IdentityHashMap<Expr,Boolean>();
+
     /** This is used to detect "function recursion" (which we currently do not allow). */
     private final List<Func> current_function = new ArrayList<Func>();
 
@@ -87,50 +129,210 @@ public final class SimInstance extends VisitReturn<Object> {
     /** The maximum allowed integer based on the chosen bitwidth. */
     private final int max;
 
+    /** The default maximum number of candidate values that the "set" or "some" quantified variables of a quantification-expression may range over. */
+    public static final long DEFAULT_MAX_ENUMERATION = 1L << 20;
+
+    /** The maximum number of candidate values that the "set" or "some" quantified variables of a quantification-expression may range over (since they range over the subsets of their bounds). */
+    private long maxEnumeration = DEFAULT_MAX_ENUMERATION;
+
+    /** Returns the maximum number of candidate values that the "set" or "some" quantified variables of a quantification-expression may range over. */
+    public long getMaxEnumeration() { return maxEnumeration; }
+
+    /** Changes the maximum number of candidate values that the "set" or "some" quantified variables of a quantification-expression may range over;
+     * evaluating a quantification-expression that has not found its answer by then throws an ErrorType rather than continuing the enumeration.
+     */
+    public void setMaxEnumeration(long maxEnumeration) throws ErrorAPI {
+        if (maxEnumeration < 1) throw new ErrorAPI("The maximum enumeration must be positive.");
+        this.maxEnumeration = maxEnumeration;
+    }
+
+    /** The number of threads that validate() and cform() may use (1 means everything is evaluated by the calling thread). */
+    private int parallelism = 1;
+
+    /** Returns the number of threads that validate() and cform() may use. */
+    public int getParallelism() { return parallelism; }
+
+    /** Changes the number of threads that validate() and cform() may use;
+     * if it is more than 1, then validate() checks the constraints in parallel,
+     * and the outermost "all", "some", and "no" quantification-expressions evaluate the values of their first variable in parallel.
+     * <p> Each thread evaluates on its own copy of this instance, and the answer is the same as if it were evaluated sequentially
+     * (except that the candidate values enumerated by every thread count towards the same maximum enumeration, so a parallel
+     * evaluation may report that the maximum is exceeded where a sequential evaluation would have stopped early).
+     */
+    public void setParallelism(int parallelism) throws ErrorAPI {
+        if (parallelism < 1) throw new ErrorAPI("The parallelism must be positive.");
+        if (pool!=null && pool.getParallelism()!=parallelism) { pool.shutdown(); pool = null; }
+        this.parallelism = parallelism;
+    }
+
+    /** If nonnull, this instance is one of the states of this trace, which evaluates the temporal operators (and then we never evaluate in parallel). */
+    SimTrace trace = null;
+
+    /** If nonnull, this is the pool of threads used by validate() and cform() (its threads are daemon threads, which stop when they are idle for a while). */
+    private ForkJoinPool pool = null;
+
+    /** True if this instance is a private copy used by a worker thread of a parallel evaluation (so it must not split its work again). */
+    private boolean worker = false;
+
+    /** The number of quantification-expressions currently being evaluated by this instance. */
+    private int depth = 0;
+
     /** Whether the was overflow the last time "trunc" was called */
     private boolean wasOverflow;
     public boolean wasOverflow() { return wasOverflow; }
 
-    /** Helper method that encodes the given string using UTF-8 and write to the output stream. */
-    private static void write(BufferedOutputStream out, String string) throws IOException {
-        out.write(string.getBytes("UTF-8"));
-    }
+    /** The number of times "trunc" has been called (so that a parallel evaluation can tell which copy called it last). */
+    private long truncs = 0;
+
+    /** The first bytes of a binary snapshot (a text snapshot never starts with a NUL byte). */
+    private static final byte[] BINARY = new byte[]{0, 'S', 'I', 'M'};
+
+    /** The current version of the binary snapshot format. */
+    private static final int BINARY_VERSION = 1;
+
+    /** The largest number of atoms, relations, or tuples in one relation, that a binary snapshot may declare. */
+    private static final int BINARY_MAX_COUNT = 1 << 26;
+
+    /** The largest tuple arity that a binary snapshot may declare. */
+    private static final int BINARY_MAX_ARITY = 1024;
+
+    /** The largest atom name or key (in UTF-8 bytes) that a binary snapshot may declare. */
+    private static final int BINARY_MAX_STRING = 1 << 20;
 
-    /** Write the bitwidth, maxseq, set of all atoms, and map of all sig/field/var into the given file. */
+    /** The largest number of atoms or tuples that we allocate room for before we have actually read them. */
+    private static final int BINARY_PREALLOCATE = 4096;
+
+    /** Write the bitwidth, maxseq, set of all atoms, and map of all sig/field/var into the given file as text.
+     * <p> If the filename ends with ".gz", then the file will be gzip-compressed.
+     */
     public void write(String filename) throws IOException {
+        write(filename, false);
+    }
+
+    /** Write the bitwidth, maxseq, set of all atoms, and map of all sig/field/var into the given file as text or in the binary format.
+     * <p> If the filename ends with ".gz", then the file will be gzip-compressed.
+     */
+    public void write(String filename, boolean binary) throws IOException {
         FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
+        GZIPOutputStream gz = null;
         try {
             fos = new FileOutputStream(filename);
-            bos = new BufferedOutputStream(fos);
-            write(bos);
-            bos.flush();
-            bos.close();
-            bos = null;
+            if (filename.endsWith(".gz")) {
+                gz = new GZIPOutputStream(fos, 8192);
+                write(gz, binary);
+                gz.finish();
+            } else {
+                write(fos, binary);
+            }
             fos.close();
             fos = null;
         } finally {
-            Util.close(bos);
             Util.close(fos);
         }
     }
 
-    /** Write the bitwidth, maxseq, set of all atoms, and map of all sig/field/var into the given file. */
-    private void write(BufferedOutputStream out) throws IOException {
-        write(out, "maxseq = " + maxseq + ("\n" + "bitwidth = ") + bitwidth + "\n");
+    /** Write the bitwidth, maxseq, set of all atoms, and map of all sig/field/var into the given stream as text or in the binary format.
+     * <p> The stream is flushed but not closed. This method can be called concurrently on different SimInstance objects.
+     */
+    public void write(OutputStream out, boolean binary) throws IOException {
+        if (binary) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+            writeBinary(dos);
+            dos.flush();
+        } else {
+            Writer w = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+            write(w);
+            w.flush();
+        }
+    }
+
+    /** Write the bitwidth, maxseq, set of all atoms, and map of all sig/field/var into the given writer. */
+    private void write(Writer out) throws IOException {
+        out.write("maxseq = " + maxseq + ("\n" + "bitwidth = ") + bitwidth + "\n");
         for(Map.Entry<Expr,SimTupleset> entry: sfs.entrySet()) {
-            Expr e = entry.getKey();
-            if (e instanceof Sig) write(out, "sig " + ((Sig)e).label + " = ");
-            else if (e instanceof Field) write(out, "field " + ((Field)e).sig.label + " " + ((Field)e).label + " = ");
-            else if (e instanceof ExprVar) write(out, "var " + ((ExprVar)e).label + " = ");
-            else continue;
+            String key = key(entry.getKey());
+            if (key==null) continue;
+            out.write(key);
+            out.write(" = ");
             entry.getValue().write(out);
             out.write('\n');
         }
     }
 
-    /** Temporary buffer used by the parser; access to this buffer must be synchronized on SimInstance's class. */
-    private static byte[] readcache = null;
+    /** Returns the key under which the value of the given sig/field/var is stored in a snapshot (or null if it is not stored). */
+    private static String key(Expr e) {
+        if (e instanceof Sig) return "sig " + ((Sig)e).label;
+        if (e instanceof Field) return "field " + ((Field)e).sig.label + " " + ((Field)e).label;
+        if (e instanceof ExprVar) return "var " + ((ExprVar)e).label;
+        return null;
+    }
+
+    /** Write the bitwidth, maxseq, set of all atoms, and map of all sig/field/var in the binary format.
+     * <p> After the header, every distinct atom is written once, and every tuple refers to its atoms by their indices in that table.
+     */
+    private void writeBinary(DataOutputStream out) throws IOException {
+        out.write(BINARY);
+        writeNat(out, BINARY_VERSION);
+        writeNat(out, maxseq);
+        writeNat(out, bitwidth);
+        IdentityHashMap<SimAtom,Integer> index = new IdentityHashMap<SimAtom,Integer>();
+        List<SimAtom> atoms = new ArrayList<SimAtom>();
+        List<Map.Entry<Expr,SimTupleset>> entries = new ArrayList<Map.Entry<Expr,SimTupleset>>();
+        for(Map.Entry<Expr,SimTupleset> entry: sfs.entrySet()) if (key(entry.getKey())!=null) {
+            entries.add(entry);
+            for(SimTuple t: entry.getValue()) for(SimAtom a: t) if (!index.containsKey(a)) { index.put(a, atoms.size()); atoms.add(a); }
+        }
+        writeNat(out, atoms.size());
+        for(SimAtom a: atoms) writeString(out, a.toString());
+        writeNat(out, entries.size());
+        for(Map.Entry<Expr,SimTupleset> entry: entries) {
+            SimTupleset ts = entry.getValue();
+            writeString(out, key(entry.getKey()));
+            writeNat(out, ts.arity());
+            writeNat(out, ts.size());
+            for(SimTuple t: ts) for(SimAtom a: t) writeNat(out, index.get(a));
+        }
+    }
+
+    /** Helper method that writes a non-negative integer using 7 bits per byte. */
+    private static void writeNat(DataOutputStream out, int n) throws IOException {
+        while((n & ~0x7F) != 0) { out.write((n & 0x7F) | 0x80); n = n >>> 7; }
+        out.write(n);
+    }
+
+    /** Helper method that writes a string as its length followed by its UTF-8 encoding. */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] array = string.getBytes("UTF-8");
+        writeNat(out, array.length);
+        out.write(array);
+    }
+
+    /** Helper method that reads a non-negative integer written by writeNat(). */
+    private static int readNat(DataInputStream in) throws IOException {
+        int n = 0;
+        for(int shift = 0; shift < 32; shift = shift + 7) {
+            int c = in.readUnsignedByte();
+            n = n | ((c & 0x7F) << shift);
+            if ((c & 0x80) == 0) { if (n<0) break; return n; }
+        }
+        throw new IOException("Malformed integer in the binary snapshot.");
+    }
+
+    /** Helper method that reads a non-negative integer written by writeNat(), and checks that it does not exceed the given limit.
+     * @throws ErrorSyntax if the integer exceeds the limit (so that a corrupt count cannot make us allocate a huge array)
+     */
+    private static int readNat(DataInputStream in, int limit, String what) throws IOException, ErrorSyntax {
+        int n = readNat(in);
+        if (n > limit) throw new ErrorSyntax("The binary snapshot declares " + n + " " + what + ", but at most " + limit + " are allowed.");
+        return n;
+    }
+
+    /** Helper method that reads a string written by writeString(). */
+    private static String readString(DataInputStream in) throws IOException, ErrorSyntax {
+        byte[] array = new byte[readNat(in, BINARY_MAX_STRING, "bytes in a string")];
+        in.readFully(array);
+        return new String(array, "UTF-8");
+    }
 
     /** Helper method that read a non-negative integer followed by a line break. */
     private static int readNonNegativeIntThenLinebreak(BufferedInputStream bis) throws IOException {
@@ -146,15 +348,15 @@ public final class SimInstance extends VisitReturn<Object> {
     }
 
     /** Helper method that read "key =" then return the key part (with leading and trailing spaces removed).
-     * This method can only be called after you've synchronized on SimInstance's class.
+     * @param buffer - a temporary buffer owned by the caller; buffer[0] may be replaced by a larger array
      */
-    private static String readkey(BufferedInputStream bis) throws IOException {
+    private static String readkey(BufferedInputStream bis, byte[][] buffer) throws IOException {
+        byte[] readcache = buffer[0];
         int n = 0;
         while(true) {
             int c = bis.read();
             if (c<0) return "";
             if (c=='=') break;
-            if (readcache==null) readcache = new byte[64]; // to ensure proper detection of out-of-memory error, this number must be 2^n for some n>=0
             while(n >= readcache.length) {
                byte[] readcache2 = new byte[readcache.length * 2];
                System.arraycopy(readcache, 0, readcache2, 0, readcache.length);
@@ -163,63 +365,111 @@ public final class SimInstance extends VisitReturn<Object> {
             readcache[n] = (byte)c;
             n++;
         }
+        buffer[0] = readcache;
         while(n>0 && readcache[n-1]>0 && readcache[n-1]<=' ') n--; // skip trailing spaces
         int i = 0;
         while(i<n && readcache[i]>0 && readcache[i]<=' ') i++; // skip leading space
         return new String(readcache, i, n-i, "UTF-8");
     }
 
-    /** Construct a new simulation context by reading the given file. */
-    public static synchronized SimInstance read(Module root, String filename, List<ExprVar> vars) throws Err, IOException {
+    /** Construct a new simulation context by reading the given file.
+     * <p> The file can be in the text format or in the binary format, and can be gzip-compressed; this is detected automatically.
+     * <p> This method is reentrant, so several files can be read concurrently.
+     */
+    public static SimInstance read(Module root, String filename, List<ExprVar> vars) throws Err, IOException {
         FileInputStream fis = null;
-        BufferedInputStream bis = null;
         try {
             fis = new FileInputStream(filename);
-            bis = new BufferedInputStream(fis);
-            // read maxseq
-            if (!readkey(bis).equals("maxseq")) throw new IOException("Expecting maxseq = ...");
-            int maxseq = readNonNegativeIntThenLinebreak(bis);
-            // read bitwidth
-            if (!readkey(bis).equals("bitwidth")) throw new IOException("Expecting bitwidth = ...");
-            int bitwidth = readNonNegativeIntThenLinebreak(bis);
-            // construct the SimInstance object with no atoms and no relations
-            SimInstance ans = new SimInstance(root, bitwidth, maxseq);
-            // parse all the relations
-            Map<String,SimTupleset> sfs = new HashMap<String,SimTupleset>();
-            while(true) {
-                String key = readkey(bis);
-                if (key.length() == 0) break; // we don't expect any more data after this
-                sfs.put(key, SimTupleset.read(bis));
-            }
-            // now for each user-supplied sig, if we saw its value earlier, then assign its value in the new SimInstance's sfs map
-            for(final Sig s: root.getAllReachableSigs()) if (!s.builtin) {
-                SimTupleset ts = sfs.get("sig " + s.label);
-                if (ts!=null) ans.sfs.put(s, ts);
-                for(final Field f: s.getFields()) if (!f.defined) {
-                    ts = sfs.get("field " + s.label + " " + f.label);
-                    if (ts!=null) ans.sfs.put(f, ts);
-                }
-            }
-            // now for each user-supplied var, if we saw its value earlier, then assign its value in the new SimInstance's sfs map
-            if (vars!=null) for(ExprVar v: vars) {
-                SimTupleset ts = sfs.get("var " + v.label);
-                if (ts!=null) ans.sfs.put(v, ts);
-            }
-            // close the files then return the answer
-            bis.close();
-            bis = null;
+            SimInstance ans = read(root, fis, vars);
             fis.close();
             fis = null;
             return ans;
         } finally {
-            // free the temporary array
-            readcache = null;
-            // if an exception occurred, we'll try to close to files anyway, since open file descriptors is a scarce resource
-            Util.close(bis);
+            // if an exception occurred, we'll try to close the file anyway, since open file descriptors is a scarce resource
             Util.close(fis);
         }
     }
 
+    /** Construct a new simulation context by reading the given stream (which is not closed by this method).
+     * <p> The stream can be in the text format or in the binary format, and can be gzip-compressed; this is detected automatically.
+     * <p> This method is reentrant, so several streams can be read concurrently.
+     */
+    public static SimInstance read(Module root, InputStream in, List<ExprVar> vars) throws Err, IOException {
+        BufferedInputStream bis = new BufferedInputStream(in);
+        bis.mark(2);
+        int c1 = bis.read(), c2 = bis.read();
+        bis.reset();
+        if (c1==0x1F && c2==0x8B) { bis = new BufferedInputStream(new GZIPInputStream(bis)); bis.mark(1); c1 = bis.read(); bis.reset(); }
+        if (c1==0) return readBinary(root, new DataInputStream(bis), vars);
+        byte[][] buffer = new byte[][]{ new byte[64] }; // to ensure proper detection of out-of-memory error, this number must be 2^n for some n>=0
+        // read maxseq
+        if (!readkey(bis, buffer).equals("maxseq")) throw new IOException("Expecting maxseq = ...");
+        int maxseq = readNonNegativeIntThenLinebreak(bis);
+        // read bitwidth
+        if (!readkey(bis, buffer).equals("bitwidth")) throw new IOException("Expecting bitwidth = ...");
+        int bitwidth = readNonNegativeIntThenLinebreak(bis);
+        // parse all the relations
+        Map<String,SimTupleset> sfs = new HashMap<String,SimTupleset>();
+        while(true) {
+            String key = readkey(bis, buffer);
+            if (key.length() == 0) break; // we don't expect any more data after this
+            sfs.put(key, SimTupleset.read(bis));
+        }
+        return make(root, bitwidth, maxseq, sfs, vars);
+    }
+
+    /** Construct a new simulation context by reading the binary format written by writeBinary(). */
+    private static SimInstance readBinary(Module root, DataInputStream in, List<ExprVar> vars) throws Err, IOException {
+        for(int i=0; i<BINARY.length; i++) if (in.readUnsignedByte() != BINARY[i]) throw new IOException("Expecting a binary snapshot.");
+        int version = readNat(in);
+        if (version != BINARY_VERSION) throw new IOException("Unsupported binary snapshot version " + version + ".");
+        int maxseq = readNat(in);
+        int bitwidth = readNat(in);
+        // the counts are only trusted up to a limit, and the lists grow as their elements are actually read
+        int count = readNat(in, BINARY_MAX_COUNT, "atoms");
+        List<SimAtom> atoms = new ArrayList<SimAtom>(Math.min(count, BINARY_PREALLOCATE));
+        for(int i=0; i<count; i++) atoms.add(SimAtom.make(readString(in)));
+        Map<String,SimTupleset> sfs = new HashMap<String,SimTupleset>();
+        for(int i=readNat(in, BINARY_MAX_COUNT, "relations"); i>0; i--) {
+            String key = readString(in);
+            int arity = readNat(in, BINARY_MAX_ARITY, "columns"), n = readNat(in, BINARY_MAX_COUNT, "tuples");
+            if (arity==0 && n>0) throw new IOException("Tuple arity cannot be 0.");
+            List<SimTuple> tuples = new ArrayList<SimTuple>(Math.min(n, BINARY_PREALLOCATE));
+            SimAtom[] array = new SimAtom[arity];
+            for(int j=0; j<n; j++) {
+                for(int k=0; k<arity; k++) {
+                    int x = readNat(in);
+                    if (x >= atoms.size()) throw new IOException("Atom index out of range in the binary snapshot.");
+                    array[k] = atoms.get(x);
+                }
+                tuples.add(SimTuple.make(Arrays.asList(array)));
+            }
+            sfs.put(key, SimTupleset.make(tuples));
+        }
+        return make(root, bitwidth, maxseq, sfs, vars);
+    }
+
+    /** Construct a new simulation context from the given map of "sig/field/var" keys to their values. */
+    private static SimInstance make(Module root, int bitwidth, int maxseq, Map<String,SimTupleset> sfs, List<ExprVar> vars) throws Err {
+        // construct the SimInstance object with no atoms and no relations
+        SimInstance ans = new SimInstance(root, bitwidth, maxseq);
+        // now for each user-supplied sig, if we saw its value earlier, then assign its value in the new SimInstance's sfs map
+        for(final Sig s: root.getAllReachableSigs()) if (!s.builtin) {
+            SimTupleset ts = sfs.get(key(s));
+            if (ts!=null) ans.sfs().put(s, ts);
+            for(final Field f: s.getFields()) if (!f.defined) {
+                ts = sfs.get(key(f));
+                if (ts!=null) ans.sfs().put(f, ts);
+            }
+        }
+        // now for each user-supplied var, if we saw its value earlier, then assign its value in the new SimInstance's sfs map
+        if (vars!=null) for(ExprVar v: vars) {
+            SimTupleset ts = sfs.get(key(v));
+            if (ts!=null) ans.sfs().put(v, ts);
+        }
+        return ans;
+    }
+
     /** Construct a new simulation context with the given bitwidth and the given maximum sequence length. */
     public SimInstance(Module root, int bitwidth, int maxseq) throws Err {
         if (bitwidth<0 || bitwidth>32) throw new ErrorType("Bitwidth must be between 0 and 32.");
@@ -227,29 +477,50 @@ public final class SimInstance extends VisitReturn<Object> {
         this.bitwidth = bitwidth;
         this.maxseq = maxseq;
         this.callbacks = new HashMap<Func,SimCallback>();
+        this.plans = new IdentityHashMap<ExprQt,Plan>();
         if (bitwidth==32) { max=Integer.MAX_VALUE; min=Integer.MIN_VALUE; } else { max=Util.max(bitwidth); min=(0-max)-1; }
         if (maxseq < 0)   throw new ErrorSyntax("The maximum sequence length cannot be negative.");
         if (maxseq > 0 && maxseq > max) throw new ErrorSyntax("With integer bitwidth of "+bitwidth+", you cannot have sequence length longer than "+max);
         shiftmask = Util.shiftmask(bitwidth);
     }
 
-    /** Construct a deep copy of this instance (except that it shares the same root Module object as the old instance) */
+    /** Construct a copy of this instance (which shares the same root Module object as the old instance).
+     * <p> This takes constant time, since the two instances share their sig/field/var values until either one is changed.
+     */
     public SimInstance(SimInstance old) throws Err {
+        this(old, false);
+        old.shared = true;
+    }
+
+    /** Construct a copy of this instance (which shares the same root Module object and the same sig/field/var values as the old instance).
+     * <p> This never changes the old instance, so several threads may copy the same instance at once,
+     * but the caller must have already marked the old instance as shared (so that it does not change the values that the copies share).
+     * @param worker - true if the copy is a private copy used by a worker thread of a parallel evaluation
+     */
+    private SimInstance(SimInstance old, boolean worker) throws Err {
         root = old.root;
         bitwidth = old.bitwidth;
         maxseq = old.maxseq;
         min = old.min;
         max = old.max;
         shiftmask = old.shiftmask;
+        maxEnumeration = old.maxEnumeration;
+        parallelism = old.parallelism;
         env = old.env.dup();
         cacheUNIV = old.cacheUNIV;
         cacheSTRING = old.cacheSTRING;
         callbacks = new HashMap<Func,SimCallback>(old.callbacks);
-        for(Map.Entry<Expr,SimTupleset> e: old.sfs.entrySet()) sfs.put(e.getKey(), e.getValue());
+        plans = new IdentityHashMap<ExprQt,Plan>(old.plans);
+        sfs = old.sfs;
+        shared = true;
+        fresh = new HashMap<String,Integer>(old.fresh);
+        this.worker = worker;
     }
 
     /** Register a callback. */
     public void addCallback(Func predicateOrFunction, SimCallback callback) {
+        if (trace!=null) trace.changed();
+        closedValues.clear();
         callbacks.put(predicateOrFunction, callback);
     }
 
@@ -275,15 +546,17 @@ public final class SimInstance extends VisitReturn<Object> {
         if (s.isAbstract!=null && !s.children().isEmpty()) throw new ErrorAPI("Cannot add an atom to an abstract parent sig.");
         String label = sig.label + "$";
         if (label.startsWith("this/")) label=label.substring(5);
-        for(int i=0; ;i++) {
+        Integer start = fresh.get(label);
+        for(int i=(start==null ? 0 : start); ;i++) {
           SimAtom atom = SimAtom.make(label + i);
           if (hasAtom(atom)) continue;
           SimTupleset add = SimTupleset.make(SimTuple.make(atom));
           if (cacheUNIV!=null) cacheUNIV = cacheUNIV.union(add);
           for(; s!=null; s=s.parent) if (!s.builtin) {
               SimTupleset old = sfs.get(s);
-              if (old==null || old.empty()) sfs.put(s, add); else if (!add.in(old)) sfs.put(s, old.union(add)); else break;
+              if (old==null || old.empty()) sfs().put(s, add); else if (!add.in(old)) sfs().put(s, old.union(add)); else break;
           }
+          fresh.put(label, i+1);
           return atom;
         }
     }
@@ -298,23 +571,39 @@ public final class SimInstance extends VisitReturn<Object> {
           char c = atom.toString().charAt(0);
           if (c=='-' || (c>='0' && c<='9') || c=='\"') return false;
        }
-       boolean changed = false;
+       List<Expr> keys = new ArrayList<Expr>();
+       List<SimTupleset> values = new ArrayList<SimTupleset>();
        for(Map.Entry<Expr,SimTupleset> x: sfs.entrySet()) {
           SimTupleset oldvalue = x.getValue();
-          SimTupleset newvalue = oldvalue.removeAll(atom);
-          if (oldvalue.longsize() != newvalue.longsize()) { changed=true; x.setValue(newvalue); }
+          SimTupleset newvalue = oldvalue.removeAll(atom); // this returns oldvalue as is if it does not mention the atom
+          if (oldvalue != newvalue) { keys.add(x.getKey()); values.add(newvalue); }
+       }
+       if (keys.isEmpty()) return false;
+       Map<Expr,SimTupleset> sfs = sfs();
+       for(int i=0; i<keys.size(); i++) sfs.put(keys.get(i), values.get(i));
+       cacheUNIV = null;
+       String label = atom.toString();
+       int dollar = label.lastIndexOf('$');
+       if (dollar>=0) {
+          String prefix = label.substring(0, dollar+1);
+          Integer start = fresh.get(prefix);
+          try {
+             int i = Integer.parseInt(label.substring(dollar+1));
+             if (start!=null && i>=0 && i<start) fresh.put(prefix, i); // so that makeAtom() can reuse this label
+          } catch(NumberFormatException ex) { }
        }
-       if (changed) { cacheUNIV=null; return true; } else { return false; }
+       return true;
     }
 
     /** Initializes the given sig to be associated with the given unary value; should only be called at the beginning.
      * <p> The resulting instance may or may not satisfy all facts, and should be checked for consistency.
      */
     public void init(Sig sig, SimTupleset value) throws Err {
-        if (value==null) { sfs.remove(sig); return; }
+        if (value==null) { sfs().remove(sig); fresh.clear(); return; }
         if (value.arity()>1) throw new ErrorType("Evaluator encountered an error: sig "+sig.label+" arity must not be " + value.arity());
         if (sig.builtin) throw new ErrorAPI("Evaluator cannot prebind the builtin sig \"" + sig.label + "\"");
-        sfs.put(sig, value);
+        sfs().put(sig, value);
+        fresh.clear();
         cacheUNIV = null;
         cacheSTRING = null;
         cacheForConstants.clear();
@@ -324,10 +613,10 @@ public final class SimInstance extends VisitReturn<Object> {
      * <p> The resulting instance may or may not satisfy all facts, and should be checked for consistency.
      */
     public void init(Field field, SimTupleset value) throws Err {
-        if (value==null) { sfs.remove(field); return; }
+        if (value==null) { sfs().remove(field); return; }
         if (!value.empty() && value.arity()!=field.type().arity()) throw new ErrorType("Evaluator encountered an error: field "+field.label+" arity must not be " + value.arity());
         if (field.defined) throw new ErrorAPI("Evaluator cannot prebind the value of a defined field.");
-        sfs.put(field, value);
+        sfs().put(field, value);
         cacheUNIV = null;
         cacheSTRING = null;
         cacheForConstants.clear();
@@ -337,9 +626,9 @@ public final class SimInstance extends VisitReturn<Object> {
      * <p> The resulting instance may or may not satisfy all facts, and should be checked for consistency.
      */
     public void init(ExprVar var, SimTupleset value) throws Err {
-        if (value==null) { sfs.remove(var); return; }
+        if (value==null) { sfs().remove(var); return; }
         if (!value.empty() && value.arity()!=var.type().arity()) throw new ErrorType("Evaluator encountered an error: skolem "+var.label+" arity must not be " + value.arity());
-        sfs.put(var, value);
+        sfs().put(var, value);
         cacheUNIV = null;
         cacheSTRING = null;
         cacheForConstants.clear();
@@ -350,6 +639,7 @@ public final class SimInstance extends VisitReturn<Object> {
     private int trunc(int i) { 
         int ret = (i<<(32-bitwidth)) >> (32-bitwidth);
         wasOverflow = ret != i;
+        truncs++;
         return ret;
     }
 
@@ -455,6 +745,9 @@ public final class SimInstance extends VisitReturn<Object> {
               { int p=cint(x.left), q=cint(x.right), r=(p==0 ? 0 : (q==0 ? (p<0 ? 1 : -1) : (p/q))); return trunc(r); }
           case REM:
               { int p=cint(x.left), q=cint(x.right), r=(p==0 ? 0 : (q==0 ? (p<0 ? 1 : -1) : (p/q))); return trunc(p-r*q); }
+          case UNTIL: case RELEASE: case SINCE: case TRIGGER: // [HASLab]
+             if (trace!=null) return trace.visit(x, env);
+             throw new ErrorFatal(x.pos, "The temporal operator ("+x.op+") can only be evaluated over a SimTrace.");
         }
         throw new ErrorFatal(x.pos, "Unsupported operator ("+x.op+") encountered during ExprBinary.accept()");
     }
@@ -488,31 +781,34 @@ public final class SimInstance extends VisitReturn<Object> {
     @Override public Object visit(ExprCall x) throws Err {
         final Func f = x.fun;
         final int n = f.count();
-        final Object candidate = n==0 ? cacheForConstants.get(f) : null;
+        final Object candidate = (n==0 && trace==null) ? cacheForConstants.get(f) : null; // in a trace, a constant may depend on the time
         if (candidate!=null) return candidate;
         final Expr body = f.getBody();
         if (body.type().arity()<0 || body.type().arity()!=f.returnDecl.type().arity()) throw new ErrorType(body.span(), "Function return value not fully resolved.");
         for(Func ff:current_function) if (ff==f) throw new ErrorSyntax(x.span(), ""+f+" cannot call itself recursively!");
-        Env<ExprVar,Object> newenv = new Env<ExprVar,Object>();
         List<SimTupleset> list = new ArrayList<SimTupleset>(x.args.size());
-        for(int i=0; i<n; i++) { SimTupleset ts = cset(x.args.get(i)); newenv.put(f.get(i), ts);  list.add(ts); }
+        for(int i=0; i<n; i++) list.add(cset(x.args.get(i)));
         final SimCallback cb = callbacks.get(f);
         if (cb!=null) {
            try {
               Object answer = cb.compute(f, list);
               if (answer!=null) {
-                 if (x.args.size()==0) cacheForConstants.put(f, answer);
+                 if (x.args.size()==0 && trace==null) cacheForConstants.put(f, answer);
                  return answer;
               }
            } catch(Exception ex) {
               // if the callback failed, we can just continue with our original attempt to evaluate this call
            }
         }
-        Env<ExprVar,Object> oldenv = env;
-        env = newenv;
-        current_function.add(f);
-        Object ans = visitThis(body);
-        env = oldenv;
+        int mark = env.enter(); // the body sees only the parameters, not the caller's variables
+        Object ans;
+        try {
+            for(int i=0; i<n; i++) env.put(f.get(i), list.get(i));
+            current_function.add(f);
+            ans = visitThis(body);
+        } finally {
+            env.leave(mark);
+        }
         current_function.remove(current_function.size()-1);
         if (f.count()==0) cacheForConstants.put(f, ans);
         return ans;
@@ -570,8 +866,11 @@ public final class SimInstance extends VisitReturn<Object> {
           case CAST2SIGINT: return SimTupleset.make(SimTuple.make(SimAtom.make(cint(x.sub))));
           case CAST2INT:    return trunc(cset(x.sub).sum());
           case CLOSURE:     return cset(x.sub).closure();
-          case RCLOSURE:    return cset(x.sub).closure().union(cset(ExprConstant.IDEN));
+          case RCLOSURE:    return cset(x.sub).reflexiveClosure(cset(Sig.UNIV));
           case TRANSPOSE:   return cset(x.sub).transpose();
+          case AFTER: case ALWAYS: case EVENTUALLY: case PREVIOUS: case HISTORICALLY: case ONCE: case PRIME: // [HASLab]
+             if (trace!=null) return trace.visit(x, env);
+             throw new ErrorFatal(x.pos, "The temporal operator ("+x.op+") can only be evaluated over a SimTrace.");
         }
         throw new ErrorFatal(x.pos, "Unsupported operator ("+x.op+") encountered during ExprUnary.accept()");
     }
@@ -624,73 +923,372 @@ public final class SimInstance extends VisitReturn<Object> {
         if (x.defined) {
             final ExprVar v = (ExprVar)(x.sig.decl.get());
             final Expr b = x.decl().expr;
-            final Env<ExprVar,Object> oldenv = env;
-            env = new Env<ExprVar,Object>();
-            if (!b.hasVar(v)) { SimTupleset ans=cset(x.sig).product(cset(b)); env=oldenv; return ans; }
-            SimTupleset ans = SimTupleset.EMPTY;
-            for(SimTuple a: visit(x.sig)) {
-                SimTupleset left = SimTupleset.make(a);
-                env.put(v, left);
-                SimTupleset right = cset(b);
-                env.remove(v);
-                ans = left.product(right).union(ans);
+            final int mark = env.enter();
+            try {
+                if (!b.hasVar(v)) return cset(x.sig).product(cset(b));
+                SimTupleset ans = SimTupleset.EMPTY;
+                for(SimTuple a: visit(x.sig)) {
+                    SimTupleset left = SimTupleset.make(a);
+                    env.put(v, left);
+                    SimTupleset right = cset(b);
+                    env.remove(v);
+                    ans = left.product(right).union(ans);
+                }
+                return ans;
+            } finally {
+                env.leave(mark);
             }
-            env = oldenv;
-            return ans;
         }
         Object ans = sfs.get(x);
         if (ans instanceof SimTupleset) return (SimTupleset)ans; else throw new ErrorFatal("Unknown field "+x+" encountered during evaluation.");
     }
 
-    /** Helper method for enumerating all possibilties for a quantification-expression. */
-    private int enumerate(final TempList<SimTuple> store, int sum, final ExprQt x, final Expr body, final int i) throws Err { // if op is ALL NO SOME ONE LONE then it always returns 0 1 2
-       final int n = x.count();
-       final ExprVar v = x.get(i);
-       final Expr bound = x.getBound(i);
-       final SimTupleset e = cset(bound);
-       final Iterator<SimTupleset> it;
+    /** Immutable; this describes how to enumerate a quantification-expression (which only depends on the expression, so it is computed once per expression). */
+    private static final class Plan {
+        /** The quantification-expression (with the "disjoint" keyword desugared away), or null if it desugars into something else. */
+        final ExprQt x;
+        /** The expression that the quantification-expression desugars into. */
+        final Expr desugared;
+        /** The number of quantified variables. */
+        final int n;
+        /** guards[i] are the conjuncts of the formula being counted that we evaluate once the first i variables are bound (empty if x.op==SUM). */
+        final List<Expr>[] guards;
+        /** The conjuncts that do not mention any variable bound outside of them (so their value only depends on the sig/field/var values). */
+        final Map<Expr,Boolean> closed = new IdentityHashMap<Expr,Boolean>();
+        /** invariant[i] is true if the i-th bound does not mention any earlier quantified variable (so its value can be cached). */
+        final boolean[] invariant;
+        /** Constructs the plan for x. */
+        @SuppressWarnings("unchecked")
+        Plan(ExprQt original) throws Err {
+            this.desugared = original.desugar();
+            this.x = (desugared instanceof ExprQt) ? (ExprQt)desugared : null;
+            this.n = (x==null) ? 0 : x.count();
+            this.guards = new List[n+1];
+            this.invariant = new boolean[n];
+            for(int i=0; i<=n; i++) guards[i] = new ArrayList<Expr>();
+            if (x==null) return;
+            for(int i=0; i<n; i++) {
+                invariant[i] = true;
+                for(int j=0; j<i && invariant[i]; j++) if (x.getBound(i).hasVar(x.get(j))) invariant[i] = false;
+            }
+            if (x.op==ExprQt.Op.SUM) return;
+            List<Expr> conjuncts = new ArrayList<Expr>();
+            conjuncts(conjuncts, x.op==ExprQt.Op.ALL ? x.sub.not() : x.sub);
+            // Each conjunct is evaluated as soon as every variable it mentions is bound,
+            // but never before an earlier conjunct, so the conjuncts are still evaluated in their original order.
+            int level = 0;
+            for(Expr c: conjuncts) {
+                for(int j=level; j<n; j++) if (c.hasVar(x.get(j))) level = j+1;
+                guards[level].add(c);
+                if (c.accept(new FreeVar())==null) closed.put(c, Boolean.TRUE);
+            }
+        }
+    }
+
+    /** This visitor returns a variable that an expression mentions but does not bind itself (or null if there is none). */
+    private static final class FreeVar extends VisitQuery<Object> {
+        /** The variables bound by the enclosing let-expressions and quantification-expressions. */
+        private final List<ExprHasName> bound = new ArrayList<ExprHasName>();
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprVar x) {
+            return bound.contains(x) ? null : x;
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprLet x) throws Err {
+            Object ans = x.expr.accept(this);
+            if (ans!=null) return ans;
+            bound.add(x.var);
+            try { return x.sub.accept(this); } finally { bound.remove(bound.size()-1); }
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprQt x) throws Err {
+            int size = bound.size();
+            try {
+                for(Decl d: x.decls) {
+                    Object ans = d.expr.accept(this);
+                    if (ans!=null) return ans;
+                    bound.addAll(d.names);
+                }
+                return x.sub.accept(this);
+            } finally {
+                while(bound.size() > size) bound.remove(bound.size()-1);
+            }
+        }
+    }
+
+    /** Mutable; this describes the enumeration of a quantification-expression. */
+    private static final class Quant {
+        /** The quantification-expression. */
+        final ExprQt x;
+        /** The number of quantified variables. */
+        final int n;
+        /** If positive, we stop enumerating as soon as this many bindings have been counted. */
+        final int limit;
+        /** The plan for enumerating x. */
+        final Plan plan;
+        /** If bounds[i]!=null, it caches the value of the i-th bound (which does not mention any quantified variable). */
+        final SimTupleset[] bounds;
+        /** The number of candidate values enumerated so far for "set" and "some" quantified variables (shared by every copy of this enumeration). */
+        final AtomicLong subsets;
+        /** Constructs a new enumeration of the same quantification-expression (with its own caches, but sharing the same budget). */
+        Quant(Quant q) {
+            this.x = q.x;
+            this.n = q.n;
+            this.limit = q.limit;
+            this.plan = q.plan;
+            this.bounds = q.bounds.clone();
+            this.subsets = q.subsets;
+        }
+        /** Constructs a new enumeration that follows the given plan, and counts the bindings that satisfy its formula. */
+        Quant(Plan plan, int limit) {
+            this.x = plan.x;
+            this.n = plan.n;
+            this.limit = limit;
+            this.plan = plan;
+            this.bounds = new SimTupleset[n];
+            this.subsets = new AtomicLong();
+        }
+    }
+
+    /** Helper method that adds the conjuncts of the given formula to the list (pushing negations inwards where it exposes more conjuncts). */
+    private static void conjuncts(List<Expr> list, Expr formula) {
+        Expr f = formula.deNOP();
+        if (f instanceof ExprBinary && ((ExprBinary)f).op==ExprBinary.Op.AND) {
+            conjuncts(list, ((ExprBinary)f).left);
+            conjuncts(list, ((ExprBinary)f).right);
+            return;
+        }
+        if (f instanceof ExprList && ((ExprList)f).op==ExprList.Op.AND) {
+            for(Expr a: ((ExprList)f).args) conjuncts(list, a);
+            return;
+        }
+        if (f instanceof ExprUnary && ((ExprUnary)f).op==ExprUnary.Op.NOT) {
+            Expr g = ((ExprUnary)f).sub.deNOP();
+            if (g instanceof ExprUnary && ((ExprUnary)g).op==ExprUnary.Op.NOT) {
+                conjuncts(list, ((ExprUnary)g).sub);
+                return;
+            }
+            if (g instanceof ExprBinary && ((ExprBinary)g).op==ExprBinary.Op.OR) {
+                conjuncts(list, ((ExprBinary)g).left.not());
+                conjuncts(list, ((ExprBinary)g).right.not());
+                return;
+            }
+            if (g instanceof ExprBinary && ((ExprBinary)g).op==ExprBinary.Op.IMPLIES) {
+                conjuncts(list, ((ExprBinary)g).left);
+                conjuncts(list, ((ExprBinary)g).right.not());
+                return;
+            }
+            if (g instanceof ExprList && ((ExprList)g).op==ExprList.Op.OR) {
+                for(Expr a: ((ExprList)g).args) conjuncts(list, a.not());
+                return;
+            }
+        }
+        list.add(f);
+    }
+
+    /** Helper method that returns an iterator over the candidate values of the i-th variable of a quantification-expression (once the first i variables have been bound). */
+    private Iterator<SimTupleset> candidates(final Quant q, final int i) throws Err {
+       final Expr bound = q.x.getBound(i);
+       SimTupleset e = q.bounds[i];
+       if (e == null) {
+          e = cset(bound);
+          if (q.plan.invariant[i]) q.bounds[i] = e;
+       }
        switch(bound.mult()) {
-         case LONEOF: it = e.loneOf(); break;
-         case ONEOF:  it = e.oneOf();  break;
-         case SOMEOF: it = e.someOf(); break;
-         default:     it = e.setOf();
+         case LONEOF: return e.loneOf();
+         case ONEOF:  return e.oneOf();
+         case SOMEOF: return e.someOf();
+         default:     return e.setOf();
+       }
+    }
+
+    /** Helper method that is called before each candidate value of the i-th variable of a quantification-expression is enumerated;
+     * it throws an exception if the "set" and "some" quantified variables have enumerated more candidate values than allowed.
+     */
+    private void budget(final Quant q, final int i) throws Err {
+       final Expr bound = q.x.getBound(i);
+       final ExprUnary.Op mult = bound.mult();
+       if (mult!=ExprUnary.Op.LONEOF && mult!=ExprUnary.Op.ONEOF && q.subsets.incrementAndGet() > maxEnumeration)
+          throw new ErrorType(bound.span(), "Evaluator encountered an error: the variable \""+q.x.get(i).label
+             +"\" ranges over the subsets of its bound, and enumerating them exceeds the maximum of "+maxEnumeration+" candidate values.");
+    }
+
+    /** Helper method for enumerating all possibilties for a quantification-expression, once the first i variables have been bound.
+     * <p> If the quantification-expression is SUM, it returns sum plus the sum of the body over every remaining binding;
+     * otherwise it returns sum plus the number of remaining bindings that satisfy the formula, but if q.limit is positive then it stops as soon as the answer reaches q.limit.
+     * <p> If q.x.op==COMPREHENSION, then every satisfying binding is also added to store.
+     */
+    private int enumerate(final TempList<SimTuple> store, int sum, final Quant q, final int i) throws Err {
+       for(Expr g: q.plan.guards[i]) if (!guard(q, g)) return sum; // no matter how the remaining variables are bound, the formula will be false
+       if (i == q.n) {
+          if (q.x.op==ExprQt.Op.SUM) return sum + cint(q.x.sub);
+          if (store!=null) {
+             SimTuple a=null, b;
+             for(int j=0; j<q.n; j++) { b=((SimTupleset)(env.get(q.x.get(j)))).getTuple(); if (a==null) a=b; else a=a.product(b); }
+             store.add(a);
+          }
+          return sum + 1;
        }
+       final ExprVar v = q.x.get(i);
+       final Expr bound = q.x.getBound(i);
+       final Iterator<SimTupleset> it = candidates(q, i);
        while(it.hasNext()) {
+          budget(q, i);
           final SimTupleset binding = it.next();
           if (bound.mult==2 && !isIn(binding, bound)) continue;
           env.put(v, binding);
-          if (i<n-1) sum = enumerate(store, sum, x, body, i+1);
-             else if (x.op==ExprQt.Op.SUM) sum += cint(body);
-             else if (x.op!=ExprQt.Op.COMPREHENSION) sum += cform(body)?1:0;
-             else if (cform(body)) {
-               SimTuple a=null, b;
-               for(int j=0; j<n; j++) { b=((SimTupleset)(env.get(x.get(j)))).getTuple(); if (a==null) a=b; else a=a.product(b); }
-               store.add(a);
-             }
-          env.remove(v);
-          if (sum>=2 && x.op!=ExprQt.Op.COMPREHENSION && x.op!=ExprQt.Op.SUM) return 2; // no need to enumerate further
+          try { sum = enumerate(store, sum, q, i+1); } finally { env.remove(v); }
+          if (q.limit>0 && sum>=q.limit) return sum; // no need to enumerate further
        }
        return sum;
     }
 
+    /** Helper method that evaluates a guard of a quantification-expression (reusing the value of a closed guard that has been evaluated already). */
+    private boolean guard(final Quant q, final Expr g) throws Err {
+       if (trace!=null || !q.plan.closed.containsKey(g)) return cform(g); // temporal formulas also depend on the time at which they are evaluated
+       Boolean ans = closedValues.get(g);
+       if (ans == null) { ans = cform(g); closedValues.put(g, ans); }
+       return ans;
+    }
+
     /** {@inheritDoc} */
     @Override public Object visit(ExprQt x) throws Err {
-        Expr xx = x.desugar();
-        if (xx instanceof ExprQt) x = (ExprQt)xx; else return visitThis(xx);
-        if (x.op == ExprQt.Op.COMPREHENSION) {
-           TempList<SimTuple> ans = new TempList<SimTuple>();
-           enumerate(ans, 0, x, x.sub, 0);
-           return SimTupleset.make(ans.makeConst());
-        }
-        if (x.op == ExprQt.Op.ALL)  return enumerate(null, 0, x, x.sub.not(), 0) == 0;
-        if (x.op == ExprQt.Op.NO)   return enumerate(null, 0, x, x.sub,       0) == 0;
-        if (x.op == ExprQt.Op.SOME) return enumerate(null, 0, x, x.sub,       0) >= 1;
-        if (x.op == ExprQt.Op.LONE) return enumerate(null, 0, x, x.sub,       0) <= 1;
-        if (x.op == ExprQt.Op.ONE)  return enumerate(null, 0, x, x.sub,       0) == 1;
-        if (x.op == ExprQt.Op.SUM)  return trunc(enumerate(null, 0, x, x.sub, 0));
+        Plan plan = plans.get(x);
+        if (plan == null) { plan = new Plan(x); plans.put(x, plan); }
+        if (plan.x == null) return visitThis(plan.desugared);
+        x = plan.x;
+        depth++;
+        try {
+           if (x.op == ExprQt.Op.COMPREHENSION) {
+              TempList<SimTuple> ans = new TempList<SimTuple>();
+              enumerate(ans, 0, new Quant(plan, 0), 0);
+              return SimTupleset.make(ans.makeConst());
+           }
+           final boolean split = depth==1 && parallelism>1 && !worker && trace==null;
+           if (x.op == ExprQt.Op.ALL)  { Quant q = new Quant(plan, 1); return (split ? enumerateInParallel(q) : enumerate(null, 0, q, 0)) == 0; }
+           if (x.op == ExprQt.Op.NO)   { Quant q = new Quant(plan, 1); return (split ? enumerateInParallel(q) : enumerate(null, 0, q, 0)) == 0; }
+           if (x.op == ExprQt.Op.SOME) { Quant q = new Quant(plan, 1); return (split ? enumerateInParallel(q) : enumerate(null, 0, q, 0)) >= 1; }
+           if (x.op == ExprQt.Op.LONE) return enumerate(null, 0, new Quant(plan, 2), 0) <= 1;
+           if (x.op == ExprQt.Op.ONE)  return enumerate(null, 0, new Quant(plan, 2), 0) == 1;
+           if (x.op == ExprQt.Op.SUM)  return trunc(enumerate(null, 0, new Quant(plan, 0), 0));
+        } finally {
+           depth--;
+           if (depth==0 && !worker) closedValues.clear();
+        }
         throw new ErrorFatal(x.pos, "Unsupported operator ("+x.op+") encountered during ExprQt.accept()");
     }
 
+    /** Same as enumerate(null, 0, q, 0) where q.limit==1, except that the candidate values of the first variable are evaluated in parallel.
+     * <p> Every worker counts towards the same budget, and if the workers together exceed it, then we throw even if a check had succeeded
+     * (since the sequential enumeration may have exceeded it before reaching that check).
+     */
+    private int enumerateInParallel(final Quant q) throws Err {
+       for(Expr g: q.plan.guards[0]) if (!guard(q, g)) return 0;
+       final ExprVar v = q.x.get(0);
+       final Expr bound = q.x.getBound(0);
+       final List<Check> checks = new ArrayList<Check>();
+       final Queue<SimInstance> copies = new ConcurrentLinkedQueue<SimInstance>(); // the idle copies (which are reused by every batch)
+       try {
+          // the candidate values are handed to the workers in batches, so we never hold more than one batch of them at a time
+          for(Iterator<SimTupleset> it = candidates(q, 0); it.hasNext() || !checks.isEmpty();) {
+             if (it.hasNext()) {
+                budget(q, 0);
+                final SimTupleset binding = it.next();
+                if (bound.mult==2 && !isIn(binding, bound)) continue;
+                checks.add(new Check() {
+                   public String check(SimInstance sim) throws Err {
+                      sim.env.put(v, binding);
+                      try { return sim.enumerate(null, 0, new Quant(q), 1) > 0 ? "" : null; } finally { sim.env.remove(v); }
+                   }
+                });
+                if (checks.size() < BATCH * parallelism && it.hasNext()) continue;
+             }
+             final String ans = first(checks, copies);
+             checks.clear();
+             if (q.subsets.get() > maxEnumeration) for(int i=0; i<q.n; i++) budget(q, i); // throws on the first "set" or "some" variable
+             if (ans != null) return 1;
+          }
+          return 0;
+       } finally {
+          copies.clear();
+       }
+    }
+
+    /** The number of candidate values per thread that enumerateInParallel() hands to the workers at a time. */
+    private static final int BATCH = 64;
+
+    /** This represents a condition that can be evaluated on any copy of this instance. */
+    private interface Check {
+       /** Evaluates the condition on the given instance, and returns null if it holds, or a nonnull message if it does not. */
+       public String check(SimInstance sim) throws Err;
+    }
+
+    /** Evaluates the given checks in order, and returns the message from the first check that fails (or null if they all hold).
+     * <p> If parallelism is more than 1, the checks are evaluated by a pool of threads, each with its own copy of this instance;
+     * once a check fails, the checks after it are skipped, but the checks before it are still evaluated, so the answer is always the same.
+     */
+    private String first(final List<Check> checks) throws Err {
+       final Queue<SimInstance> copies = new ConcurrentLinkedQueue<SimInstance>(); // the idle copies (which are dropped when this call returns)
+       try { return first(checks, copies); } finally { copies.clear(); }
+    }
+
+    /** Same as first(checks), except that the idle copies of this instance are taken from and returned to the given queue
+     * (so that several calls may reuse the same copies, as long as this instance does not change in between).
+     */
+    private String first(final List<Check> checks, final Queue<SimInstance> copies) throws Err {
+       if (parallelism<=1 || worker || trace!=null || checks.size()<=1) {
+          for(Check c: checks) { String ans = c.check(this); if (ans!=null) return ans; }
+          return null;
+       }
+       final int n = checks.size();
+       final String[] answers = new String[n];
+       final Throwable[] errors = new Throwable[n];
+       final Boolean[] overflows = new Boolean[n]; // the value of wasOverflow after each check (or null if that check never called trunc)
+       final AtomicInteger failed = new AtomicInteger(n); // the smallest index of a check that has failed so far (or n if none)
+       final List<Future<?>> futures = new ArrayList<Future<?>>(n);
+       if (pool!=null && pool.getParallelism()!=parallelism) { pool.shutdown(); pool = null; }
+       if (pool==null) pool = new ForkJoinPool(parallelism);
+       shared = true; // mark our values as shared before the workers copy them, so that no worker has to change this instance
+       try {
+          for(int i=0; i<n; i++) {
+             final int index = i;
+             futures.add(pool.submit(new Callable<Object>() {
+                public Object call() {
+                   if (index > failed.get()) return null; // an earlier check has already failed
+                   SimInstance sim = copies.poll();
+                   try {
+                      if (sim == null) sim = new SimInstance(SimInstance.this, true);
+                      long truncs = sim.truncs;
+                      answers[index] = checks.get(index).check(sim);
+                      if (sim.truncs != truncs) overflows[index] = sim.wasOverflow;
+                   } catch(Throwable ex) {
+                      errors[index] = ex;
+                   }
+                   if (sim != null) copies.offer(sim);
+                   if (answers[index]!=null || errors[index]!=null) {
+                      for(int old = failed.get(); index < old && !failed.compareAndSet(old, index); old = failed.get()) { }
+                   }
+                   return null;
+                }
+             }));
+          }
+          for(Future<?> f: futures) f.get();
+       } catch(InterruptedException ex) {
+          throw new ErrorFatal("The parallel evaluation was interrupted.", ex);
+       } catch(ExecutionException ex) {
+          throw new ErrorFatal("The parallel evaluation failed.", ex.getCause());
+       }
+       for(int i=0, last=Math.min(failed.get(), n-1); i<=last; i++) if (overflows[i]!=null) { wasOverflow = overflows[i]; truncs++; }
+       for(int i=0; i<n; i++) {
+          if (errors[i] instanceof Err) throw (Err)(errors[i]);
+          if (errors[i] instanceof RuntimeException) throw (RuntimeException)(errors[i]);
+          if (errors[i] instanceof Error) throw (Error)(errors[i]);
+          if (errors[i]!=null) throw new ErrorFatal("The parallel evaluation failed.", errors[i]);
+          if (answers[i]!=null) return answers[i];
+       }
+       return null;
+    }
+
     /** Helper method that evaluates the formula "a in b" where b.mult==0 */
     public boolean isIn(SimTuple a, Expr b) throws Err {
         b = b.deNOP();
@@ -792,54 +1390,83 @@ public final class SimInstance extends VisitReturn<Object> {
     }
 
     /** Checks whether this instance satisfies every fact defined in the given model.
+     * <p> If parallelism is more than 1, the constraints are checked in parallel, but the answer is the same as if they were checked in order.
      * @param world - this must be the root of the Alloy model
-     * @return an empty String if yes, nonempty String if no
+     * @return an empty String if yes, nonempty String if no (describing the first constraint that is violated)
      */
     public String validate(Module world) {
-       try {
-          for(Sig s: world.getAllReachableSigs()) if (!s.builtin) {
-             if (s.isLone!=null && !(visit(s).longsize()<=1)) return "There can be at most one "+s;
-             if (s.isOne !=null && !(visit(s).longsize()==1)) return "There must be exactly one "+s;
-             if (s.isSome!=null && !(visit(s).longsize()>=1)) return "There must be at least one "+s;
-             if (s instanceof SubsetSig) {
-                SubsetSig p = (SubsetSig)s;
-                Expr sum = null;
-                for(Sig par: p.parents) sum = par.plus(sum);
-                if (p.exact) {
-                   if (!equal(s, sum)) return "Sig "+s+" must be equal to the union of its parents "+p.parents;
-                } else {
-                   if (!isIn(s, sum)) return "Sig "+s+" must be equal or subset of its parents "+p.parents;
+       return validate(world, true);
+    }
+
+    /** Checks whether this instance satisfies the constraints in the given model (and if facts==false, the facts are not checked).
+     * @param world - this must be the root of the Alloy model
+     * @return an empty String if yes, nonempty String if no (describing the first constraint that is violated)
+     */
+    String validate(Module world, boolean facts) {
+       final List<Check> checks = new ArrayList<Check>();
+       for(final Sig s: world.getAllReachableSigs()) if (!s.builtin) {
+          checks.add(new Check() {
+             public String check(SimInstance sim) throws Err {
+                if (s.isLone!=null && !(sim.visit(s).longsize()<=1)) return "There can be at most one "+s;
+                if (s.isOne !=null && !(sim.visit(s).longsize()==1)) return "There must be exactly one "+s;
+                if (s.isSome!=null && !(sim.visit(s).longsize()>=1)) return "There must be at least one "+s;
+                if (s instanceof SubsetSig) {
+                   SubsetSig p = (SubsetSig)s;
+                   Expr sum = null;
+                   for(Sig par: p.parents) sum = par.plus(sum);
+                   if (p.exact) {
+                      if (!sim.equal(s, sum)) return "Sig "+s+" must be equal to the union of its parents "+p.parents;
+                   } else {
+                      if (!sim.isIn(s, sum)) return "Sig "+s+" must be equal or subset of its parents "+p.parents;
+                   }
+                } else if (s != Sig.UNIV && s != Sig.NONE) {
+                   PrimSig p = (PrimSig)s;
+                   if (!sim.isIn(s, p.parent)) return "Sig "+s+" must be equal or subset of its parent "+p.parent;
                 }
-             } else if (s != Sig.UNIV && s != Sig.NONE) {
-                PrimSig p = (PrimSig)s;
-                if (!isIn(s, p.parent)) return "Sig "+s+" must be equal or subset of its parent "+p.parent;
-             }
-             if (s.isAbstract!=null) {
-                Expr sum = null;
-                for(Sig x: ((PrimSig)s).children()) sum = x.plus(sum);
-                if (sum!=null && !equal(s, sum)) return "Abstract sig "+s+" must be equal to the union of its subsigs";
-             }
-             for(Decl d: s.getFieldDecls()) for(ExprHasName f: d.names) if (!((Field)f).defined) {
-                if (!cform(s.decl.get().join(f).in(d.expr).forAll(s.decl))) {
-                   return "Field "+f+" violated its bound: " + visit((Field)f) + "\n" + d.expr;
+                if (s.isAbstract!=null) {
+                   Expr sum = null;
+                   for(Sig x: ((PrimSig)s).children()) sum = x.plus(sum);
+                   if (sum!=null && !sim.equal(s, sum)) return "Abstract sig "+s+" must be equal to the union of its subsigs";
                 }
-                SimTupleset setS = visit(s);
-                SimTupleset setF = visit((Field)f);
-                for(SimAtom x:setF.getAllAtoms(0)) if (!setS.has(x)) return "Field "+f+" first column has extra atom: "+setF+" not in "+setS;
+                return null;
              }
-             for(Decl d: s.getFieldDecls()) {
-                if (d.disjoint!=null && d.names.size()>0) {
-                   if (!cform(ExprList.makeDISJOINT(null, null, d.names))) return "Fields must be disjoint.";
-                }
-                if (d.disjoint2!=null) for(ExprHasName f: d.names) {
-                   Decl that = s.oneOf("that");
-                   Expr formula = s.decl.get().equal(that.get()).not().implies(s.decl.get().join(f).intersect(that.get().join(f)).no());
-                   if (!cform(formula.forAll(that).forAll(s.decl))) return "Fields must be disjoint.";
+          });
+          for(final Decl d: s.getFieldDecls()) for(final ExprHasName f: d.names) if (!((Field)f).defined) {
+             checks.add(new Check() {
+                public String check(SimInstance sim) throws Err {
+                   if (!sim.cform(s.decl.get().join(f).in(d.expr).forAll(s.decl))) {
+                      return "Field "+f+" violated its bound: " + sim.visit((Field)f) + "\n" + d.expr;
+                   }
+                   SimTupleset setS = sim.visit(s);
+                   SimTupleset setF = sim.visit((Field)f);
+                   for(SimAtom x:setF.getAllAtoms(0)) if (!setS.has(x)) return "Field "+f+" first column has extra atom: "+setF+" not in "+setS;
+                   return null;
                 }
+             });
+          }
+          for(final Decl d: s.getFieldDecls()) {
+             if (d.disjoint!=null && d.names.size()>0) {
+                checks.add(new Check() {
+                   public String check(SimInstance sim) throws Err {
+                      return sim.cform(ExprList.makeDISJOINT(null, null, d.names)) ? null : "Fields must be disjoint.";
+                   }
+                });
+             }
+             if (d.disjoint2!=null) for(final ExprHasName f: d.names) {
+                checks.add(new Check() {
+                   public String check(SimInstance sim) throws Err {
+                      Decl that = s.oneOf("that");
+                      Expr formula = s.decl.get().equal(that.get()).not().implies(s.decl.get().join(f).intersect(that.get().join(f)).no());
+                      return sim.cform(formula.forAll(that).forAll(s.decl)) ? null : "Fields must be disjoint.";
+                   }
+                });
              }
-             for(Expr f: s.getFacts()) {
-                if (!cform(f.forAll(s.decl))) {
-                   f = f.deNOP(); if (f instanceof ExprUnary) {
+          }
+          if (facts) for(final Expr fact: s.getFacts()) {
+             checks.add(new Check() {
+                public String check(SimInstance sim) throws Err {
+                   if (sim.cform(fact.forAll(s.decl))) return null;
+                   Expr f = fact.deNOP(); if (f instanceof ExprUnary) {
                       ExprUnary u = (ExprUnary)f;
                       f = u.sub.deNOP();
                       if (f instanceof ExprBinary) {
@@ -855,15 +1482,23 @@ public final class SimInstance extends VisitReturn<Object> {
                    }
                    return "Cannot violate a consistency constraint";
                 }
-             }
+             });
           }
-          for(Module m: world.getAllReachableModules()) for(Pair<String,Expr> f: m.getAllFacts()) if (!cform(f.b)) {
-             String err = f.a;
-             if (err.matches("^fact\\$[0-9][0-9]*")) err = f.b.toString();
-             if (err.length()>=2 && err.startsWith("\"") && err.endsWith("\"")) err = err.substring(1, err.length()-1);
-             return "Violation: " + err;
-          }
-          return "";
+       }
+       if (facts) for(Module m: world.getAllReachableModules()) for(final Pair<String,Expr> f: m.getAllFacts()) {
+          checks.add(new Check() {
+             public String check(SimInstance sim) throws Err {
+                if (sim.cform(f.b)) return null;
+                String err = f.a;
+                if (err.matches("^fact\\$[0-9][0-9]*")) err = f.b.toString();
+                if (err.length()>=2 && err.startsWith("\"") && err.endsWith("\"")) err = err.substring(1, err.length()-1);
+                return "Violation: " + err;
+             }
+          });
+       }
+       try {
+          String ans = first(checks);
+          return ans==null ? "" : ans;
        } catch(Err ex) {
           return "An internal error has occured:\n" + ex.dump();
        }
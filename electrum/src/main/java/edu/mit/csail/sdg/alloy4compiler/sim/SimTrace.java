@@ -0,0 +1,374 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.sim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.mit.csail.sdg.alloy4.Env;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorAPI;
+import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4compiler.ast.Decl;
+import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprBinary;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprCall;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprConstant;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprITE;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprLet;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprList;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprQt;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprUnary;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprVar;
+import edu.mit.csail.sdg.alloy4compiler.ast.Func;
+import edu.mit.csail.sdg.alloy4compiler.ast.Module;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
+import edu.mit.csail.sdg.alloy4compiler.ast.VisitQuery;
+import edu.mit.csail.sdg.alloy4compiler.ast.VisitReturn;
+
+/** Mutable; represents an infinite trace of instances, given as a finite sequence of states followed by a loop back to one of them.
+ *
+ * <p> Time 0,1,2..length()-1 is state 0,1,2..length()-1, and then the trace continues from state loop() again.
+ * <br> The temporal operators are evaluated explicitly over this lasso, without calling any solver.
+ *
+ * <p> The future operators look at a finite window of the lasso, and the past operators look back to time 0.
+ * <br> Since past operators can tell apart the different times at which the same state is visited,
+ * a formula whose past operators are nested d deep can behave differently in each of the first d passes over the loop;
+ * so the window of a future operator covers d passes over the loop before the pass that repeats forever.
+ *
+ * <p> Each temporal formula is labeled at every time of its window at once (from the labels of its arguments),
+ * and the labels are cached until a state changes, so nested temporal operators take time linear in their nesting depth.
+ *
+ * <p><b>Thread Safety:</b> Can be called only by 1 thread at a time.
+ */
+
+public final class SimTrace {
+
+    /** The states (each is a private copy, whose trace field refers to this trace). */
+    private final List<SimInstance> states;
+
+    /** The index of the state that follows the last state. */
+    private final int loop;
+
+    /** The time of the state that is currently evaluating. */
+    private int now = 0;
+
+    /** This caches the nesting depth of past operators in each formula that has been the argument of a future operator. */
+    private final Map<Expr,Integer> depths = new IdentityHashMap<Expr,Integer>();
+
+    /** This caches the local variables mentioned in each temporal formula that has been labeled. */
+    private final Map<Expr,List<ExprVar>> frees = new IdentityHashMap<Expr,List<ExprVar>>();
+
+    /** This marks a variable that has no value (as opposed to a variable whose value is null). */
+    private static final Object UNBOUND = new Object();
+
+    /** This caches the labels of each temporal formula, for each binding of the local variables it mentions;
+     * labels[t] is its value at time t (for every t before the time where the labels start to repeat, as computed by end()).
+     */
+    private final Map<Expr,Map<List<Object>,boolean[]>> labels = new IdentityHashMap<Expr,Map<List<Object>,boolean[]>>();
+
+    /** Constructs a trace that visits the given states in order, then loops back to the state at the given index.
+     * <p> Each state is copied, so later changes to the given instances do not affect this trace.
+     */
+    public SimTrace(List<SimInstance> states, int loop) throws Err {
+        if (states.isEmpty()) throw new ErrorAPI("A trace must have at least one state.");
+        if (loop<0 || loop>=states.size()) throw new ErrorAPI("The loop index must be between 0 and "+(states.size()-1)+".");
+        List<SimInstance> list = new ArrayList<SimInstance>(states.size());
+        for(SimInstance s: states) {
+            if (s.root!=states.get(0).root) throw new ErrorAPI("Every state of a trace must belong to the same model.");
+            SimInstance copy = new SimInstance(s);
+            copy.trace = this;
+            list.add(copy);
+        }
+        this.states = list;
+        this.loop = loop;
+    }
+
+    /** Returns the number of states. */
+    public int length() { return states.size(); }
+
+    /** Returns the index of the state that follows the last state. */
+    public int loop() { return loop; }
+
+    /** Returns the state at the given index (changes to it will affect this trace). */
+    public SimInstance state(int index) { return states.get(index); }
+
+    /** Returns the index of the state at the given time. */
+    private int index(int time) {
+        int n = states.size();
+        return time<n ? time : loop + (time-loop) % (n-loop);
+    }
+
+    /** Evaluates the formula at the given time. */
+    public boolean cform(Expr x, int time) throws Err {
+        return (Boolean) eval(x, time, new Env<ExprVar,Object>(), true);
+    }
+
+    /** Evaluates the integer expression at the given time. */
+    public int cint(Expr x, int time) throws Err {
+        SimInstance s = states.get(index(time));
+        int old = now;
+        now = time;
+        try { return s.cint(x); } finally { now = old; }
+    }
+
+    /** Evaluates the set or relation at the given time. */
+    public SimTupleset cset(Expr x, int time) throws Err {
+        SimInstance s = states.get(index(time));
+        int old = now;
+        now = time;
+        try { return s.cset(x); } finally { now = old; }
+    }
+
+    /** Evaluates the given formula (if form==true) or expression (if form==false) at the given time, using the given local variables. */
+    private Object eval(Expr x, int time, Env<ExprVar,Object> env, boolean form) throws Err {
+        SimInstance s = states.get(index(time));
+        Env<ExprVar,Object> oldEnv = s.env;
+        int oldNow = now;
+        s.env = env;
+        now = time;
+        try {
+            return form ? (Object)(s.cform(x)) : s.visitThis(x);
+        } finally {
+            s.env = oldEnv;
+            now = oldNow;
+        }
+    }
+
+    /** Evaluates the given formula at the given time, using the given local variables. */
+    private boolean form(Expr x, int time, Env<ExprVar,Object> env) throws Err {
+        return (Boolean) eval(x, time, env, true);
+    }
+
+    /** Discards every cached label (this is called whenever a state changes). */
+    void changed() { labels.clear(); }
+
+    /** Returns the time where the labels of a formula start to repeat, where d is the nesting depth of past operators in it;
+     * from then on, its value at time t is the same as at time t-(length()-loop()).
+     */
+    private int end(int d) {
+        return loop + (d+1)*(states.size() - loop);
+    }
+
+    /** Returns the earliest time that has the same labels as the given time, where end is the value returned by end(). */
+    private int fold(int time, int end) {
+        int period = states.size() - loop;
+        return time<end ? time : end - period + (time - end) % period;
+    }
+
+    /** Returns the labels of the given formula at every time before end(), using the given local variables. */
+    private boolean[] labels(Expr x, Env<ExprVar,Object> env) throws Err {
+        List<ExprVar> vars = frees.get(x);
+        if (vars==null) { vars = new ArrayList<ExprVar>(); x.accept(new FreeVars(vars)); frees.put(x, vars); }
+        List<Object> key = new ArrayList<Object>(vars.size());
+        for(ExprVar v: vars) key.add(env.has(v) ? env.get(v) : UNBOUND);
+        Map<List<Object>,boolean[]> map = labels.get(x);
+        if (map==null) { map = new HashMap<List<Object>,boolean[]>(); labels.put(x, map); }
+        boolean[] ans = map.get(key);
+        if (ans==null) { ans = label(x, env); map.put(key, ans); }
+        return ans;
+    }
+
+    /** Returns the values of the given formula at every time before the given end, using the given local variables. */
+    private boolean[] values(Expr x, int end, Env<ExprVar,Object> env) throws Err {
+        boolean[] ans = new boolean[end];
+        for(int i=0; i<end; i++) ans[i] = form(x, i, env);
+        return ans;
+    }
+
+    /** Labels the given temporal formula at every time before end(), using the given local variables.
+     * <br> The future operators are labeled backwards, and over the last pass of the loop (where the labels repeat)
+     * we go around twice, starting from false for "until" and "eventually" and true for "release" and "always" (their least and greatest fixed points).
+     * <br> The past operators are labeled forwards from time 0.
+     */
+    private boolean[] label(Expr x, Env<ExprVar,Object> env) throws Err {
+        final int end = end(depth(x)), start = end - (states.size() - loop);
+        final boolean[] ans = new boolean[end];
+        if (x instanceof ExprUnary) {
+           final ExprUnary.Op op = ((ExprUnary)x).op;
+           final boolean[] sub = values(((ExprUnary)x).sub, end, env);
+           switch(op) {
+             case AFTER:
+                for(int i=0; i<end; i++) ans[i] = sub[i+1<end ? i+1 : start];
+                return ans;
+             case PREVIOUS:
+                for(int i=1; i<end; i++) ans[i] = sub[i-1];
+                return ans;
+             case ONCE:
+                for(int i=0; i<end; i++) ans[i] = sub[i] || (i>0 && ans[i-1]);
+                return ans;
+             case HISTORICALLY:
+                for(int i=0; i<end; i++) ans[i] = sub[i] && (i==0 || ans[i-1]);
+                return ans;
+             case EVENTUALLY: case ALWAYS:
+                final boolean all = op==ExprUnary.Op.ALWAYS;
+                boolean cycle = all;
+                for(int i=start; i<end; i++) if (sub[i]!=all) cycle = !all;
+                for(int i=end-1; i>=0; i--) ans[i] = i>=start ? cycle : (all ? sub[i] && ans[i+1] : sub[i] || ans[i+1]);
+                return ans;
+             default:
+                break;
+           }
+        } else if (x instanceof ExprBinary) {
+           final ExprBinary.Op op = ((ExprBinary)x).op;
+           final boolean[] left = values(((ExprBinary)x).left, end, env), right = values(((ExprBinary)x).right, end, env);
+           switch(op) {
+             case UNTIL: // the right formula holds eventually, and the left formula holds until then
+                for(int i=start; i<end; i++) ans[i] = false;
+                for(int pass=0; pass<2; pass++) for(int i=end-1; i>=start; i--) ans[i] = right[i] || (left[i] && ans[i+1<end ? i+1 : start]);
+                for(int i=start-1; i>=0; i--) ans[i] = right[i] || (left[i] && ans[i+1]);
+                return ans;
+             case RELEASE: // the right formula holds up to and including the first time the left formula holds, or forever
+                for(int i=start; i<end; i++) ans[i] = true;
+                for(int pass=0; pass<2; pass++) for(int i=end-1; i>=start; i--) ans[i] = right[i] && (left[i] || ans[i+1<end ? i+1 : start]);
+                for(int i=start-1; i>=0; i--) ans[i] = right[i] && (left[i] || ans[i+1]);
+                return ans;
+             case SINCE: // the right formula held once, and the left formula has held ever since
+                for(int i=0; i<end; i++) ans[i] = right[i] || (left[i] && i>0 && ans[i-1]);
+                return ans;
+             case TRIGGER: // the right formula has held since the last time the left formula held, or always
+                for(int i=0; i<end; i++) ans[i] = right[i] && (left[i] || i==0 || ans[i-1]);
+                return ans;
+             default:
+                break;
+           }
+        }
+        throw new ErrorFatal(x.pos, "Unsupported formula ("+x+") encountered during SimTrace.label()");
+    }
+
+    /** Evaluates the unary temporal operator x at the current time, using the given local variables. */
+    Object visit(ExprUnary x, Env<ExprVar,Object> env) throws Err {
+        final int t = now;
+        switch(x.op) {
+          case PRIME:
+             return eval(x.sub, t+1, env, false);
+          case AFTER: case PREVIOUS: case ONCE: case HISTORICALLY: case EVENTUALLY: case ALWAYS:
+             return labels(x, env)[fold(t, end(depth(x)))];
+          default:
+             throw new ErrorFatal(x.pos, "Unsupported operator ("+x.op+") encountered during SimTrace.visit()");
+        }
+    }
+
+    /** Evaluates the binary temporal operator x at the current time, using the given local variables. */
+    Object visit(ExprBinary x, Env<ExprVar,Object> env) throws Err {
+        switch(x.op) {
+          case UNTIL: case RELEASE: case SINCE: case TRIGGER:
+             return labels(x, env)[fold(now, end(depth(x)))];
+          default:
+             throw new ErrorFatal(x.pos, "Unsupported operator ("+x.op+") encountered during SimTrace.visit()");
+        }
+    }
+
+    /** Returns the nesting depth of past operators in the given expression. */
+    private int depth(Expr x) throws Err {
+        Integer ans = depths.get(x);
+        if (ans==null) { ans = x.accept(new PastDepth()); depths.put(x, ans); }
+        return ans;
+    }
+
+    /** Checks whether this trace satisfies the given model:
+     * every state must satisfy the sig and field declarations, and the facts must hold at time 0.
+     * @param world - this must be the root of the Alloy model
+     * @return an empty String if yes, nonempty String if no (describing the first constraint that is violated)
+     */
+    public String validate(Module world) {
+        for(int i=0; i<states.size(); i++) {
+            int old = now;
+            now = i;
+            try {
+                String ans = states.get(i).validate(world, i==0);
+                if (ans.length()>0) return "In state "+i+": "+ans;
+            } finally {
+                now = old;
+            }
+        }
+        return "";
+    }
+
+    /** This visitor collects the variables mentioned in an expression (not including the bodies of the functions it calls, which cannot see the caller's variables). */
+    private static final class FreeVars extends VisitQuery<Object> {
+        /** The variables found so far. */
+        private final List<ExprVar> vars;
+        /** Constructs a visitor that adds the variables it finds to the given list. */
+        FreeVars(List<ExprVar> vars) { this.vars = vars; }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprVar x) {
+            if (!vars.contains(x)) vars.add(x);
+            return null;
+        }
+    }
+
+    /** This visitor computes the nesting depth of past operators in an expression (including in the bodies of the functions it calls). */
+    private static final class PastDepth extends VisitReturn<Integer> {
+        /** The functions currently being visited. */
+        private final List<Func> visiting = new ArrayList<Func>();
+        /** {@inheritDoc} */
+        @Override public Integer visit(ExprBinary x) throws Err {
+            int ans = Math.max(visitThis(x.left), visitThis(x.right));
+            return (x.op==ExprBinary.Op.SINCE || x.op==ExprBinary.Op.TRIGGER) ? ans+1 : ans;
+        }
+        /** {@inheritDoc} */
+        @Override public Integer visit(ExprList x) throws Err {
+            int ans = 0;
+            for(Expr y: x.args) ans = Math.max(ans, visitThis(y));
+            return ans;
+        }
+        /** {@inheritDoc} */
+        @Override public Integer visit(ExprCall x) throws Err {
+            int ans = 0;
+            for(Expr y: x.args) ans = Math.max(ans, visitThis(y));
+            if (!visiting.contains(x.fun)) {
+                visiting.add(x.fun);
+                ans = Math.max(ans, visitThis(x.fun.getBody()));
+                visiting.remove(visiting.size()-1);
+            }
+            return ans;
+        }
+        /** {@inheritDoc} */
+        @Override public Integer visit(ExprConstant x) { return 0; }
+        /** {@inheritDoc} */
+        @Override public Integer visit(ExprITE x) throws Err {
+            return Math.max(visitThis(x.cond), Math.max(visitThis(x.left), visitThis(x.right)));
+        }
+        /** {@inheritDoc} */
+        @Override public Integer visit(ExprLet x) throws Err {
+            return Math.max(visitThis(x.expr), visitThis(x.sub));
+        }
+        /** {@inheritDoc} */
+        @Override public Integer visit(ExprQt x) throws Err {
+            int ans = visitThis(x.sub);
+            for(Decl d: x.decls) ans = Math.max(ans, visitThis(d.expr));
+            return ans;
+        }
+        /** {@inheritDoc} */
+        @Override public Integer visit(ExprUnary x) throws Err {
+            int ans = visitThis(x.sub);
+            return (x.op==ExprUnary.Op.PREVIOUS || x.op==ExprUnary.Op.ONCE || x.op==ExprUnary.Op.HISTORICALLY) ? ans+1 : ans;
+        }
+        /** {@inheritDoc} */
+        @Override public Integer visit(ExprVar x) { return 0; }
+        /** {@inheritDoc} */
+        @Override public Integer visit(Sig x) { return 0; }
+        /** {@inheritDoc} */
+        @Override public Integer visit(Field x) throws Err {
+            return x.defined ? visitThis(x.decl().expr) : 0;
+        }
+    }
+}
@@ -16,8 +16,8 @@
 package edu.mit.csail.sdg.alloy4compiler.sim;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -74,7 +74,7 @@ public final class SimTuple implements Iterable<SimAtom> {
     }
 
     /** Write this SimTuple as (".." ".." "..") */
-    void write(BufferedOutputStream out) throws IOException {
+    void write(Writer out) throws IOException {
         out.write('(');
         for(int n=array.length, i=0; i<n; i++) {
             if (i>0) out.write(' ');
@@ -170,8 +170,8 @@ public final class SimTuple implements Iterable<SimAtom> {
     @Override public int hashCode() {
         int ans = hashCode;
         if (ans == 0) {
-            // We already know each SimAtom has been canonicalized, so just computing its IdentityHashCode is faster
-            for(int i=array.length-1; i>=0; i--) ans = ans*31 + System.identityHashCode(array[i]);
+            // We already know each SimAtom has been canonicalized, so just combining their ids is faster
+            for(int i=array.length-1; i>=0; i--) ans = ans*31 + array[i].id;
             if (ans==0) ans++; // so that we don't end up re-computing this SimTuple's hashcode over and over again
             hashCode = ans;
         }
@@ -16,10 +16,13 @@
 package edu.mit.csail.sdg.alloy4compiler.sim;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
@@ -49,6 +52,61 @@ public final class SimTupleset implements Iterable<SimTuple> {
     private final int max;
     private final boolean next;
 
+    /** If there are at most this many tuples, we simply scan them rather than building hash indexes. */
+    private static final int SMALL = 8;
+
+    /** The set of tuples in "tuples" (or null if it has not been built yet); it is built on demand. */
+    private volatile HashSet<SimTuple> set = null;
+
+    /** Maps each atom to the list of tuples whose first atom is that atom (or null if it has not been built yet); it is built on demand. */
+    private volatile IdentityHashMap<SimAtom,List<SimTuple>> heads = null;
+
+    /** The set of atoms that appear in any column of any tuple (or null if it has not been built yet); it is built on demand. */
+    private volatile IdentityHashMap<SimAtom,Boolean> atoms = null;
+
+    /** Returns the set of atoms that appear in any column of any tuple. */
+    private IdentityHashMap<SimAtom,Boolean> atoms() {
+        IdentityHashMap<SimAtom,Boolean> ans = atoms;
+        if (ans==null) {
+           ans = new IdentityHashMap<SimAtom,Boolean>();
+           for(SimTuple x: this) for(int i=x.arity()-1; i>=0; i--) ans.put(x.get(i), Boolean.TRUE);
+           atoms = ans;
+        }
+        return ans;
+    }
+
+    /** Returns the set of tuples in "tuples". */
+    private HashSet<SimTuple> set() {
+        HashSet<SimTuple> ans = set;
+        if (ans==null) { ans = new HashSet<SimTuple>(tuples); set = ans; }
+        return ans;
+    }
+
+    /** Returns a map from each atom to the list of tuples whose first atom is that atom (where the tuples in each list keep their original order). */
+    private IdentityHashMap<SimAtom,List<SimTuple>> heads() {
+        IdentityHashMap<SimAtom,List<SimTuple>> ans = heads;
+        if (ans==null) {
+           ans = new IdentityHashMap<SimAtom,List<SimTuple>>();
+           for(SimTuple x: this) {
+              List<SimTuple> list = ans.get(x.head());
+              if (list==null) { list = new ArrayList<SimTuple>(1); ans.put(x.head(), list); }
+              list.add(x);
+           }
+           heads = ans;
+        }
+        return ans;
+    }
+
+    /** Returns the list of tuples whose first atom is the given atom. */
+    private List<SimTuple> startingWith(SimAtom atom) {
+        List<SimTuple> ans = null;
+        if (longsize()>SMALL) ans = heads().get(atom); else for(SimTuple x: this) if (x.head()==atom) {
+           if (ans==null) ans = new ArrayList<SimTuple>(2);
+           ans.add(x);
+        }
+        return ans!=null ? ans : Collections.<SimTuple>emptyList();
+    }
+
     /** Construct a tupleset with the given 4 values (Note: caller MUST make sure there are no duplicates, even between (min,max) and tuples, and that all tuples are of same arity!) */
     private SimTupleset(Collection<SimTuple> tuples, int min, int max, boolean next) {
        this.tuples = ConstList.make(tuples);
@@ -141,7 +199,7 @@ public final class SimTupleset implements Iterable<SimTuple> {
            Integer a = that.get(0).toInt(null), b = that.get(1).toInt(null);
            if (a!=null && b!=null && a<b && a.intValue()==b.intValue()-1 && min<=a && b<=max) return true;
         }
-        return tuples.contains(that);
+        return tuples.size()<=SMALL ? tuples.contains(that) : set().contains(that);
     }
 
     /** Returns true if this tupleset is unary and contains the given atom. */
@@ -151,6 +209,7 @@ public final class SimTupleset implements Iterable<SimTuple> {
           Integer a = that.toInt(null);
           if (a!=null && min<=a && a<=max) return true;
        }
+       if (tuples.size()>SMALL) return heads().containsKey(that);
        for(int i=tuples.size()-1; i>=0; i--) if (tuples.get(i).get(0)==that) return true;
        return false;
     }
@@ -207,36 +266,34 @@ public final class SimTupleset implements Iterable<SimTuple> {
     public SimTupleset head(int n) {
        if (n<=0 || empty()) return EMPTY; else if (arity() <= n) return this;
        if (min<max) { // if we get here, than arity must be 2, and n must be 1.
-          TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
+          LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
           for(SimTuple x: tuples) {
              Integer a = x.head().toInt(null);
              if (a!=null && a>=min && a<max) continue;
-             SimTuple y = SimTuple.make(x.head());
-             if (!ans.contains(y)) ans.add(y);
+             ans.add(SimTuple.make(x.head()));
           }
-          return new SimTupleset(ans.makeConst(), min, max-1, false);
+          return new SimTupleset(ans, min, max-1, false);
        }
-       TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
-       for(SimTuple x: this) { SimTuple y = x.head(n); if (!ans.contains(y)) ans.add(y); }
-       return new SimTupleset(ans.makeConst());
+       LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
+       for(SimTuple x: this) ans.add(x.head(n));
+       return new SimTupleset(ans);
     }
 
     /** Return the tupleset where each tuple is truncated to the last N atoms; if n is zero or negative, we return the emptyset; if n >= this.arity, we return this as is. */
     public SimTupleset tail(int n) {
        if (n<=0 || empty()) return EMPTY; else if (arity() <= n) return this;
        if (min<max) { // if we get here, than arity must be 2, and n must be 1.
-          TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
+          LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
           for(SimTuple x: tuples) {
              Integer a = x.tail().toInt(null);
              if (a!=null && a>min && a<=max) continue;
-             SimTuple y = SimTuple.make(x.tail());
-             if (!ans.contains(y)) ans.add(y);
+             ans.add(SimTuple.make(x.tail()));
           }
-          return new SimTupleset(ans.makeConst(), min+1, max, false);
+          return new SimTupleset(ans, min+1, max, false);
        }
-       TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
-       for(SimTuple x: this) { SimTuple y = x.tail(n); if (!ans.contains(y)) ans.add(y); }
-       return new SimTupleset(ans.makeConst());
+       LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
+       for(SimTuple x: this) ans.add(x.tail(n));
+       return new SimTupleset(ans);
     }
 
     /** Returns a read-only iterator over the tuples. */
@@ -251,7 +308,7 @@ public final class SimTupleset implements Iterable<SimTuple> {
     }
 
     /** Write this SimTupleset as { (".." ".." "..") (".." ".." "..") (".." ".." "..") } */
-    void write(BufferedOutputStream out) throws IOException {
+    void write(Writer out) throws IOException {
         boolean first = true;
         out.write('{');
         for(SimTuple x: this) {
@@ -285,16 +342,6 @@ public final class SimTupleset implements Iterable<SimTuple> {
         return make(list);
     }
 
-    /** Returns the index position if the list of tuples contains the tuple (a,b) (or return -1 if not found). */
-    private static int find(TempList<SimTuple> tuples, SimAtom a, SimAtom b) {
-       if (tuples.size() == 0 || tuples.get(0).arity() != 2) return -1;
-       for(int i=tuples.size()-1; i >= 0; i--) {
-          SimTuple x = tuples.get(i);
-          if (x.head()==a && x.tail()==b) return i;
-       }
-       return -1;
-    }
-
     /** {@inheritDoc} */
     @Override public String toString() {
        StringBuilder sb = null;
@@ -410,9 +457,11 @@ public final class SimTupleset implements Iterable<SimTuple> {
 
     /** Return this minus any tuple that contains the given atom.
      * <br/> Note: The resulting tuples will keep their original order.
+     * <br/> Note: if this operation is a no-op, we guarantee we'll return this SimTupleset as is.
      */
     public SimTupleset removeAll(SimAtom that) {
-        if (empty()) return EMPTY;
+        if (empty()) return this;
+        if (longsize()>SMALL && !atoms().containsKey(that)) return this;
         TempList<SimTuple> ans = new TempList<SimTuple>(size()-1);
         again:
         for(SimTuple x: this) {
@@ -440,16 +489,15 @@ public final class SimTupleset implements Iterable<SimTuple> {
        return new SimTupleset(ans.makeConst());
     }
 
-    /** Return the relational join between this and that (throws ErrorType if this.arity==1 and that.arity==1) */
+    /** Return the relational join between this and that (throws ErrorType if this.arity==1 and that.arity==1)
+     * <br/> Note: this is a hash join: we probe that tupleset's index on the first column with the last atom of each tuple in this tupleset.
+     */
     public SimTupleset join(SimTupleset that) throws ErrorType {
        if (empty() || that.empty()) return EMPTY;
        if (arity()==1 && that.arity()==1) throw new ErrorType("Cannot join two unary relations.");
-       TempList<SimTuple> ans = new TempList<SimTuple>();
-       for(SimTuple a: this) for(SimTuple b: that) if (a.tail()==b.head()) {
-          SimTuple c = a.join(b);
-          if (!ans.contains(c)) ans.add(c);
-       }
-       return ans.size()==0 ? EMPTY : new SimTupleset(ans.makeConst());
+       LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
+       for(SimTuple a: this) for(SimTuple b: that.startingWith(a.tail())) ans.add(a.join(b));
+       return ans.size()==0 ? EMPTY : new SimTupleset(ans);
     }
 
     /** Return the intersection of this and that. */
@@ -482,28 +530,73 @@ public final class SimTupleset implements Iterable<SimTuple> {
     public SimTupleset range(SimTupleset that) {
        if (that.arity()!=1 || this.empty()) return EMPTY;
        TempList<SimTuple> ans = new TempList<SimTuple>(this.size());
-       for(SimTuple x: this) if (that.has(x.head())) ans.add(x);
+       for(SimTuple x: this) if (that.has(x.tail())) ans.add(x);
        return ans.size()==this.longsize() ? this : (ans.size()==0 ? EMPTY : new SimTupleset(ans.makeConst()));
     }
 
-    /** Returns the closure of this tupleset (NOTE: if this.arity!=2, we will return an empty set) */
+    /** Returns the closure of this tupleset (NOTE: if this.arity!=2, we will return an empty set)
+     * <br/> Note: the tuples in this tupleset come first in the result, in their original order.
+     * <br/> Note: if this operation is a no-op, we guarantee we'll return this SimTupleset as is.
+     */
     public SimTupleset closure() {
        if (arity()!=2) return EMPTY;
-       TempList<SimTuple> ar = new TempList<SimTuple>(size());
-       ar.addAll(this);
-       while(true) {
-          int n = ar.size();
-          for(int i=0; i<n; i++) {
-             SimTuple left = ar.get(i);
-             if (left.head()==left.tail()) continue;      // whatever "right" is, "left.right" won't add any new tuple to the final answer
-             for(int j=0; j<n; j++) if (i!=j) {           // whatever "left" is,  "left.left"  won't add any new tuple to the final answer
-                SimTuple right = ar.get(j);
-                if (right.head()==right.tail()) continue; // whatever "left" is,  "left.right" won't add any new tuple to the final answer
-                if (left.tail()==right.head() && find(ar, left.head(), right.tail())<0) ar.add(SimTuple.make(left.head(), right.tail()));
+       return closure(EMPTY);
+    }
+
+    /** Returns the reflexive closure of this tupleset, where univ is the set of atoms to be related to themselves
+     * (NOTE: if this.arity!=2, we will return the identity over univ)
+     * <br/> Note: the tuples in this tupleset come first in the result, in their original order.
+     * <br/> Note: if this operation is a no-op, we guarantee we'll return this SimTupleset as is.
+     */
+    public SimTupleset reflexiveClosure(SimTupleset univ) {
+       if (arity()!=2) return univ.iden();
+       return closure(univ.arity()==1 ? univ : EMPTY);
+    }
+
+    /** Computes the closure of this binary tupleset, where every atom in the unary tupleset univ is also related to itself.
+     * <p> Every atom is given a dense index, and every atom's successors are stored in a bitset;
+     * then we find each atom's reachable set by a breadth-first search that only expands the newly reached atoms,
+     * and that reuses the reachable set of every atom that has already been done.
+     */
+    private SimTupleset closure(SimTupleset univ) {
+       final IdentityHashMap<SimAtom,Integer> index = new IdentityHashMap<SimAtom,Integer>();
+       final List<SimAtom> atoms = new ArrayList<SimAtom>();
+       for(SimTuple x: univ) if (!index.containsKey(x.head())) { index.put(x.head(), atoms.size()); atoms.add(x.head()); }
+       final int reflexive = atoms.size(); // atoms 0..reflexive-1 must be related to themselves
+       for(SimTuple x: this) for(int i=0; i<2; i++) {
+          SimAtom a = x.get(i);
+          if (!index.containsKey(a)) { index.put(a, atoms.size()); atoms.add(a); }
+       }
+       final int n = atoms.size();
+       final BitSet[] next = new BitSet[n];
+       for(SimTuple x: this) {
+          int i = index.get(x.head());
+          if (next[i]==null) next[i] = new BitSet(n);
+          next[i].set(index.get(x.tail()));
+       }
+       final BitSet[] reach = new BitSet[n];
+       for(int i=0; i<n; i++) if (next[i]!=null) {
+          BitSet ans = (BitSet) next[i].clone(), frontier = next[i];
+          while(!frontier.isEmpty()) {
+             BitSet more = new BitSet(n);
+             for(int j=frontier.nextSetBit(0); j>=0; j=frontier.nextSetBit(j+1)) {
+                if (reach[j]!=null) ans.or(reach[j]); else if (next[j]!=null) more.or(next[j]); // reach[j] is already closed, so we don't need to expand it
              }
+             more.andNot(ans);
+             ans.or(more);
+             frontier = more;
           }
-          if (n == ar.size()) return ar.size()==longsize() ? this : new SimTupleset(ar.makeConst()); // if we went through the loop without making any change, we're done
+          reach[i] = ans;
        }
+       TempList<SimTuple> ans = new TempList<SimTuple>(size());
+       ans.addAll(this);
+       for(int i=0; i<n; i++) {
+          if (i<reflexive && (reach[i]==null || !reach[i].get(i))) ans.add(SimTuple.make(atoms.get(i), atoms.get(i)));
+          if (reach[i]!=null) for(int j=reach[i].nextSetBit(0); j>=0; j=reach[i].nextSetBit(j+1)) {
+             if (!next[i].get(j)) ans.add(SimTuple.make(atoms.get(i), atoms.get(j)));
+          }
+       }
+       return ans.size()==longsize() ? this : new SimTupleset(ans.makeConst());
     }
 
     /** Return the set of tuples which begins with the given tuple (where we remove the "matching leading part") */
@@ -512,8 +605,8 @@ public final class SimTupleset implements Iterable<SimTuple> {
         if (shift <= 0) return EMPTY;
         TempList<SimTuple> ans = new TempList<SimTuple>();
         again:
-        for(SimTuple r: this) {
-            for(int i=0; i<x.arity(); i++) if (r.get(i) != x.get(i)) continue again;
+        for(SimTuple r: startingWith(x.head())) {
+            for(int i=1; i<x.arity(); i++) if (r.get(i) != x.get(i)) continue again;
             ans.add(r.tail(shift));
         }
         return ans.size()==0 ? EMPTY : new SimTupleset(ans.makeConst());
@@ -78,9 +78,7 @@ public final class A4Options implements Serializable {
         public String id() { return id; }
         /** Returns the list of SatSolver values. */
         public static SafeList<SatSolver> values() {
-            SafeList<SatSolver> ans;
-            synchronized(SatSolver.class) { ans=values.dup(); }
-            return ans;
+            return values.dup(); // reading a SafeList does not need the lock
         }
         /** Returns the human-readable label for this enum value. */
         @Override public String toString() { return toString; }
@@ -94,7 +92,7 @@ public final class A4Options implements Serializable {
         }
         /** Given an id, return the enum value corresponding to it (if there's no match, then return SAT4J). */
         public static SatSolver parse(String id) {
-            synchronized(SatSolver.class) { for(SatSolver x:values) if (x.id.equals(id)) return x; }
+            for(SatSolver x:values) if (x.id.equals(id)) return x;
             return SAT4J;
         }
         /** BerkMin via pipe */
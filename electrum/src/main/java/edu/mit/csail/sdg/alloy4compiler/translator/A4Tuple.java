@@ -50,6 +50,9 @@ public final class A4Tuple {
     /** Returns the i-th atom in this Tuple. */
     public String atom(int i) { return sol.atom2name(tuple.atom(i)); }
 
+    /** Returns the index of the i-th atom in the Kodkod universe (two atoms from the same A4Solution are equal iff their indices are equal). */
+    public int atomIndex(int i) { return tuple.atomIndex(i); }
+
     /** Return the most-specific-sig for the i-th atom in this Tuple. */
     public PrimSig sig(int i) { return sol.atom2sig(tuple.atom(i)); }
 
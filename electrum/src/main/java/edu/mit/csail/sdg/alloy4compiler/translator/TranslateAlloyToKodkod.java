@@ -686,13 +686,17 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
             }
             maxRecursion--;
         }
-        Env<ExprVar,Object> newenv = new Env<ExprVar,Object>();
-        for(int i=0; i<n; i++) newenv.put(f.get(i), cset(x.args.get(i)));
-        Env<ExprVar,Object> oldenv = env;
-        env = newenv;
-        current_function.add(f);
-        Object ans = visitThis(body);
-        env = oldenv;
+        Object[] args = new Object[n];
+        for(int i=0; i<n; i++) args[i] = cset(x.args.get(i));
+        int mark = env.enter(); // the body sees only the parameters, not the caller's variables
+        Object ans;
+        try {
+            for(int i=0; i<n; i++) env.put(f.get(i), args[i]);
+            current_function.add(f);
+            ans = visitThis(body);
+        } finally {
+            env.leave(mark);
+        }
         current_function.remove(current_function.size()-1);
         if (ans instanceof Formula) k2pos((Formula)ans, x);
         if (f.count()==0) cacheForConstants.put(f, ans);
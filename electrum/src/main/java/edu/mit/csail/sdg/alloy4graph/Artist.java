@@ -31,11 +31,14 @@ import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 
 import edu.mit.csail.sdg.alloy4.OurPDFWriter;
+import edu.mit.csail.sdg.alloy4.OurSVGWriter;
 
 /** This class abstracts the drawing operations so that we can
- * draw the graph using different frameworks such as Java2D or PDF.
+ * draw the graph using different frameworks such as Java2D, PDF, or SVG.
  *
- * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
+ * <p><b>Thread Safety:</b> Each Artist can be called only by one thread at a time, but different threads can draw with different Artists at the same time:
+ * the only shared state is the static font information, which is computed once and is never changed afterwards,
+ * and each thread measures text with its own Graphics2D and FontMetrics objects (so that graphs can be laid out and exported in parallel).
  */
 
 public final strictfp class Artist {
@@ -52,26 +55,32 @@ public final strictfp class Artist {
     /** The corresponding OurPDFWriter. */
     private OurPDFWriter pdf;
 
+    /** The corresponding OurSVGWriter. */
+    private OurSVGWriter svg;
+
     /** Construct an artist that acts as a wrapper around the given Graphics2D object. */
-    public Artist(Graphics2D graphics2D)  { this.gr=graphics2D; this.pdf=null; }
+    public Artist(Graphics2D graphics2D)  { this.gr=graphics2D; this.pdf=null; this.svg=null; }
 
     /** Construct an artist that acts as a wrapper around the given OurPDFWriter object. */
-    public Artist(OurPDFWriter pdfWriter)  { this.gr=null; this.pdf=pdfWriter; }
+    public Artist(OurPDFWriter pdfWriter)  { this.gr=null; this.pdf=pdfWriter; this.svg=null; }
+
+    /** Construct an artist that acts as a wrapper around the given OurSVGWriter object. */
+    public Artist(OurSVGWriter svgWriter)  { this.gr=null; this.pdf=null; this.svg=svgWriter; }
 
     /** Shifts the coordinate space by the given amount. */
-    public void translate(int x, int y)  { if (gr!=null) gr.translate(x,y); else pdf.shiftCoordinateSpace(x, y); }
+    public void translate(int x, int y)  { if (gr!=null) gr.translate(x,y); else if (svg!=null) svg.shiftCoordinateSpace(x, y); else pdf.shiftCoordinateSpace(x, y); }
 
     /** Draws a circle of the given radius, centered at (0,0) */
-    public void drawCircle(int radius)  { if (gr!=null) gr.drawArc(-radius, -radius, radius*2, radius*2, 0, 360); else pdf.drawCircle(radius, false); }
+    public void drawCircle(int radius)  { if (gr!=null) gr.drawArc(-radius, -radius, radius*2, radius*2, 0, 360); else if (svg!=null) svg.drawCircle(radius, false); else pdf.drawCircle(radius, false); }
 
     /** Fills a circle of the given radius, centered at (0,0) */
-    public void fillCircle(int radius)  { if (gr!=null) gr.fillArc(-radius, -radius, radius*2, radius*2, 0, 360); else pdf.drawCircle(radius, true); }
+    public void fillCircle(int radius)  { if (gr!=null) gr.fillArc(-radius, -radius, radius*2, radius*2, 0, 360); else if (svg!=null) svg.drawCircle(radius, true); else pdf.drawCircle(radius, true); }
 
     /** Draws a line from (x1,y1) to (x2,y2) */
-    public void drawLine(int x1, int y1, int x2, int y2)  { if (gr!=null) gr.drawLine(x1,y1,x2,y2); else pdf.drawLine(x1, y1, x2, y2); }
+    public void drawLine(int x1, int y1, int x2, int y2)  { if (gr!=null) gr.drawLine(x1,y1,x2,y2); else if (svg!=null) svg.drawLine(x1, y1, x2, y2); else pdf.drawLine(x1, y1, x2, y2); }
 
     /** Changes the current color. */
-    public void setColor(Color color)  { if (gr!=null) gr.setColor(color); else pdf.setColor(color); }
+    public void setColor(Color color)  { if (gr!=null) gr.setColor(color); else if (svg!=null) svg.setColor(color); else pdf.setColor(color); }
 
     /** Returns true if left<=x<=right or right<=x<=left. */
     private static boolean in(double left, double x, double right)  { return (left<=x && x<=right) || (right<=x && x<=left); }
@@ -100,13 +109,13 @@ public final strictfp class Artist {
     }
 
     /** Draws the outline of the given shape. */
-    public void draw(Shape shape, boolean fillOrNot)  { if (gr==null) pdf.drawShape(shape, fillOrNot); else if (fillOrNot) gr.fill(shape); else gr.draw(shape); }
+    public void draw(Shape shape, boolean fillOrNot)  { if (svg!=null) svg.drawShape(shape, fillOrNot); else if (gr==null) pdf.drawShape(shape, fillOrNot); else if (fillOrNot) gr.fill(shape); else gr.draw(shape); }
 
     /** The pattern for dotted line. */
-    private static float[] dot = new float[]{1f,3f};
+    private static final float[] dot = new float[]{1f,3f};
 
     /** The pattern for dashed line. */
-    private static float[] dashed = new float[]{6f,3f};
+    private static final float[] dashed = new float[]{6f,3f};
 
     /** Modifies the given Graphics2D object to use the line style representing by this object.
      * <p> NOTE: as a special guarantee, if gr2d==null, then this method returns immediately without doing anything.
@@ -124,6 +133,12 @@ public final strictfp class Artist {
            gr.setStroke(bs);
            return;
         }
+        if (svg!=null) switch(style) {
+          case BOLD:   svg.setBoldLine(); return;
+          case DOTTED: svg.setDottedLine(); return;
+          case DASHED: svg.setDashedLine(); return;
+          default:     svg.setNormalLine(); return;
+        }
         switch(style) {
           case BOLD:   pdf.setBoldLine(); return;
           case DOTTED: pdf.setDottedLine(); return;
@@ -137,70 +152,65 @@ public final strictfp class Artist {
 
     /** Changes the current font. */
     public void setFont(boolean fontBoldness) {
-        calc();
-        if (gr!=null) gr.setFont(fontBoldness ? cachedBoldFont : cachedPlainFont); else this.fontBoldness=fontBoldness;
+        if (gr!=null) gr.setFont(fontBoldness ? Fonts.bold : Fonts.plain); else this.fontBoldness=fontBoldness;
     }
 
     /** Draws the given string at (x,y) */
     public void drawString(String text, int x, int y) {
         if (text.length()==0) return;
         if (gr!=null) { gr.drawString(text,x,y); return; }
-        calc();
-        Font font = (fontBoldness ? cachedBoldFont : cachedPlainFont);
+        Font font = (fontBoldness ? Fonts.bold : Fonts.plain);
         GlyphVector gv = font.createGlyphVector(new FontRenderContext(null,false,false), text);
         translate(x,y);
         draw(gv.getOutline(), true);
         translate(-x,-y);
     }
 
-    /** If nonnull, it caches a Graphics2D object for calculating string bounds. */
-    private static Graphics2D cachedGraphics = null;
-
-    /** If nonnull, it caches a FontMetrics object associated with the nonbold font. */
-    private static FontMetrics cachedPlainMetrics = null;
-
-    /** If nonnull, it caches a FontMetrics object associated with the bold font. */
-    private static FontMetrics cachedBoldMetrics = null;
-
-    /** If nonnull, it caches the nonbold Font. */
-    private static Font cachedPlainFont = null;
-
-    /** If nonnull, it caches the bold Font. */
-    private static Font cachedBoldFont = null;
-
-    /** If nonnegative, it caches the maximum ascent of the font. */
-    private static int cachedMaxAscent = -1;
-
-    /** If nonnegative, it caches the maximum descent of the font. */
-    private static int cachedMaxDescent = -1;
+    /** Immutable; this holds the nonbold and bold fonts, and the max ascent and descent of the nonbold font (they are computed the first time they are needed). */
+    private static final class Fonts {
+        /** The nonbold font. */
+        static final Font plain = new Font(fontName, Font.PLAIN, fontSize);
+        /** The bold font. */
+        static final Font bold = new Font(fontName, Font.BOLD, fontSize);
+        /** The maximum ascent and the maximum descent of the nonbold font. */
+        static final int maxAscent, maxDescent;
+        static {
+            FontMetrics metrics = new Metrics().plain;
+            maxAscent = metrics.getMaxAscent();
+            maxDescent = metrics.getMaxDescent();
+        }
+    }
 
-    /** Allocates the nonbold and bold fonts, then calculates the max ascent and descent. */
-    private static void calc() {
-       if (cachedMaxDescent >= 0) return; // already done
-       BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
-       cachedGraphics = (Graphics2D)(image.getGraphics());
-       cachedPlainMetrics = cachedGraphics.getFontMetrics(cachedPlainFont = new Font(fontName, Font.PLAIN, fontSize));
-       cachedBoldMetrics  = cachedGraphics.getFontMetrics(cachedBoldFont  = new Font(fontName, Font.BOLD,  fontSize));
-       cachedGraphics.setFont(cachedPlainFont);
-       cachedMaxAscent = cachedPlainMetrics.getMaxAscent();
-       cachedMaxDescent = cachedPlainMetrics.getMaxDescent();
+    /** Mutable; this holds the objects that one thread uses to measure text (since Graphics2D is not thread-safe). */
+    private static final class Metrics {
+        /** The Graphics2D object for calculating string bounds. */
+        final Graphics2D graphics = (Graphics2D) (new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getGraphics());
+        /** The FontMetrics object associated with the nonbold font. */
+        final FontMetrics plain = graphics.getFontMetrics(Fonts.plain);
+        /** The FontMetrics object associated with the bold font. */
+        final FontMetrics bold = graphics.getFontMetrics(Fonts.bold);
+        /** Constructs the objects for measuring text. */
+        Metrics() { graphics.setFont(Fonts.plain); }
     }
 
+    /** This gives each thread its own Metrics object, so that threads can measure text at the same time without any lock. */
+    private static final ThreadLocal<Metrics> metrics = new ThreadLocal<Metrics>() {
+        @Override protected Metrics initialValue() { return new Metrics(); }
+    };
+
     /** Returns the max ascent when drawing text using the given font size and font boldness settings. */
     public static int getMaxAscent() {
-        calc();
-        return cachedMaxAscent;
+        return Fonts.maxAscent;
     }
 
     /** Returns the sum of the max ascent and max descent when drawing text using the given font size and font boldness settings. */
     public static int getMaxAscentAndDescent() {
-        calc();
-        return cachedMaxAscent + cachedMaxDescent;
+        return Fonts.maxAscent + Fonts.maxDescent;
     }
 
     /** Returns the bounding box when drawing the given string using the given font size and font boldness settings. */
     public static Rectangle2D getBounds(boolean fontBoldness, String string) {
-        calc();
-        return (fontBoldness ? cachedBoldMetrics : cachedPlainMetrics).getStringBounds(string, cachedGraphics);
+        Metrics m = metrics.get();
+        return (fontBoldness ? m.bold : m.plain).getStringBounds(string, m.graphics);
     }
 }
@@ -16,9 +16,13 @@
 package edu.mit.csail.sdg.alloy4graph;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /** Mutable; this allows you to compute whether a rectangle overlaps with a set of rectangles or not.
+ *
+ * <p> The rectangles are indexed by a grid of cells, so that each query only looks at the rectangles nearby.
  *
  * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
  */
@@ -32,8 +36,31 @@ public final class AvailableSpace {
         public Box(int x, int y, int w, int h) { this.x=x; this.y=y; this.w=w; this.h=h; }
     }
 
-    /** The list of existing rectangles; we ensure every rectangle in here has width>0 and height>0. */
-    private List<Box> list = new ArrayList<Box>();
+    /** The width and height of each cell of the grid that we use to find the rectangles near a given location. */
+    private static final int CELL = 64;
+
+    /** A rectangle that spans more than this many cells is put in the "big" list rather than in every cell it spans. */
+    private static final int MAXCELLS = 64;
+
+    /** Maps each cell (x/CELL, y/CELL) to the list of existing rectangles that touch it;
+     * we ensure every rectangle in here has width>0 and height>0.
+     */
+    private final Map<Long,List<Box>> cells = new HashMap<Long,List<Box>>();
+
+    /** The list of existing rectangles that span too many cells; we ensure every rectangle in here has width>0 and height>0. */
+    private final List<Box> big = new ArrayList<Box>();
+
+    /** Returns the key of the given cell. */
+    private static Long key(int cx, int cy) { return (((long)cx) << 32) | (cy & 0xFFFFFFFFL); }
+
+    /** Returns true if the given rectangle does not overlap with the given existing rectangle. */
+    private static boolean ok(int x, int y, int w, int h, Box box) {
+        if ((x >= box.x && x <= box.x+box.w-1) || (x+w >= box.x+1 && x+w <= box.x+box.w))
+           if ((y >= box.y && y <= box.y+box.h-1) || (y+h >= box.y+1 && y+h <= box.y+box.h)) return false;
+        if ((box.x >= x && box.x <= x+w-1) || (box.x+box.w >= x+1 && box.x+box.w <= x+w))
+           if ((box.y >= y && box.y <= y+h-1) || (box.y+box.h >= y+1 && box.y+box.h <= y+h)) return false;
+        return true;
+    }
 
     /** Construct an empty space. */
     public AvailableSpace() { }
@@ -41,11 +68,16 @@ public final class AvailableSpace {
     /** Returns true if the given rectangle does not overlap with any existing rectangle in this space. */
     public boolean ok(int x, int y, int w, int h) {
         if (w<=0 || h<=0) return true; // always okay
-        for(Box box: list) {
-           if ((x >= box.x && x <= box.x+box.w-1) || (x+w >= box.x+1 && x+w <= box.x+box.w))
-              if ((y >= box.y && y <= box.y+box.h-1) || (y+h >= box.y+1 && y+h <= box.y+box.h)) return false;
-           if ((box.x >= x && box.x <= x+w-1) || (box.x+box.w >= x+1 && box.x+box.w <= x+w))
-              if ((box.y >= y && box.y <= y+h-1) || (box.y+box.h >= y+1 && box.y+box.h <= y+h)) return false;
+        for(Box box: big) if (!ok(x, y, w, h, box)) return false;
+        // An overlapping rectangle must touch at least one of the cells that this rectangle touches
+        int cx1 = Math.floorDiv(x, CELL), cx2 = Math.floorDiv(x+w, CELL), cy1 = Math.floorDiv(y, CELL), cy2 = Math.floorDiv(y+h, CELL);
+        if ((long)(cx2-cx1+1) * (cy2-cy1+1) > cells.size()) {
+            for(List<Box> list: cells.values()) for(Box box: list) if (!ok(x, y, w, h, box)) return false;
+            return true;
+        }
+        for(int cx=cx1; cx<=cx2; cx++) for(int cy=cy1; cy<=cy2; cy++) {
+            List<Box> list = cells.get(key(cx, cy));
+            if (list!=null) for(Box box: list) if (!ok(x, y, w, h, box)) return false;
         }
         return true;
     }
@@ -53,9 +85,17 @@ public final class AvailableSpace {
     /** Add the given rectangle to the list of rectangles in this space. */
     public void add(int x, int y, int w, int h) {
         if (w<=0 || h<=0) return; // no-op
-        list.add(new Box(x, y, w, h));
+        Box box = new Box(x, y, w, h);
+        int cx1 = Math.floorDiv(x, CELL), cx2 = Math.floorDiv(x+w, CELL), cy1 = Math.floorDiv(y, CELL), cy2 = Math.floorDiv(y+h, CELL);
+        if ((long)(cx2-cx1+1) * (cy2-cy1+1) > MAXCELLS) { big.add(box); return; }
+        for(int cx=cx1; cx<=cx2; cx++) for(int cy=cy1; cy<=cy2; cy++) {
+            Long key = key(cx, cy);
+            List<Box> list = cells.get(key);
+            if (list==null) cells.put(key, list = new ArrayList<Box>(2));
+            list.add(box);
+        }
     }
 
     /** Erases the list of rectangles in this space. */
-    public void clear() { list.clear(); }
+    public void clear() { cells.clear(); big.clear(); }
 }
@@ -19,24 +19,36 @@ package edu.mit.csail.sdg.alloy4graph;
 import static edu.mit.csail.sdg.alloy4graph.Artist.getBounds;
 
 import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.CubicCurve2D;
 import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
 
+import edu.mit.csail.sdg.alloy4.OurPDFWriter;
+import edu.mit.csail.sdg.alloy4.OurPNGWriter;
+import edu.mit.csail.sdg.alloy4.OurSVGWriter;
 import edu.mit.csail.sdg.alloy4.Pair;
 import edu.mit.csail.sdg.alloy4.Util;
 
 /** Mutable; represents a graph.
  *
- * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
+ * <p><b>Thread Safety:</b> Can be called only by one thread at a time (the AWT event thread, once the graph is shown in a GraphViewer).
  * 
  * @modified Nuno Macedo // [HASLab] electrum-base
  */
@@ -149,15 +161,11 @@ public final strictfp class Graph {
       // The nodes that are common to this.nodelist and newOrder are moved to the front of the list, in the given order.
       // The nodes that are in this.nodelist but not in newOrder are moved to the back in an unspecified order.
       // The nodes that are in newOrder but not in this.nodelist are ignored.
-      int i=0, n=nodelist.size();
-      again:
-      for(GraphNode x:newOrder) for(int j=i; j<n; j++) if (nodelist.get(j)==x) {
-         if (i!=j) { GraphNode tmp=nodelist.get(i); nodelist.set(i,x); nodelist.set(j,tmp); }
-         i++;
-         continue again;
-      }
-      i=0;
-      for(GraphNode x: nodelist) { x.pos = i; i++; }
+      final IdentityHashMap<GraphNode,Object> seen = new IdentityHashMap<GraphNode,Object>();
+      final List<GraphNode> list = new ArrayList<GraphNode>(nodelist.size());
+      for(GraphNode x: newOrder) if (x.graph==this && seen.put(x,x)==null) list.add(x);
+      for(GraphNode x: nodelist) if (!seen.containsKey(x)) list.add(x);
+      for(int i=0; i<list.size(); i++) { GraphNode x = list.get(i); nodelist.set(i, x); x.pos = i; }
    }
 
    /** Sort the list of nodes in a given layer (0..#layer-1) using the given comparator. */
@@ -182,13 +190,17 @@ public final strictfp class Graph {
       if ((Integer.MAX_VALUE-1)/2 < num) throw new OutOfMemoryError();
       // Now, allocate 2n+1 bins labeled -n .. n
       // Note: inside this method, whenever we see #in and #out, we ignore repeated edges.
-      // Note: since Java ArrayList always start at 0, we'll index it by adding "n" to it.
-      final List<List<GraphNode>> bins = new ArrayList<List<GraphNode>>(2*num+1);
-      for(int i=0; i<2*num+1; i++) bins.add(new LinkedList<GraphNode>());
+      // Note: since Java arrays always start at 0, we'll index it by adding "n" to it.
+      // Note: each bin is a doubly-linked list of node positions (binFirst/binLast/binPrev/binNext, with -1 meaning none),
+      //       so that a node can be removed from the middle of a bin in constant time.
+      final int[] binFirst = new int[2*num+1], binLast = new int[2*num+1], binPrev = new int[num], binNext = new int[num];
+      Arrays.fill(binFirst, -1);
+      Arrays.fill(binLast, -1);
       // For each N, figure out its in-neighbors and out-neighbors, then put it in the correct bin
       ArrayList<LinkedList<GraphNode>> grIN=new ArrayList<LinkedList<GraphNode>>(num);
       ArrayList<LinkedList<GraphNode>> grOUT=new ArrayList<LinkedList<GraphNode>>(num);
       int[] grBIN=new int[num];
+      int hi = 0; // No bin above this is nonempty
       for(GraphNode n: nodes) {
          int ni = n.pos();
          LinkedList<GraphNode> in=new LinkedList<GraphNode>(), out=new LinkedList<GraphNode>();
@@ -197,7 +209,8 @@ public final strictfp class Graph {
          grIN.add(in);
          grOUT.add(out);
          grBIN[ni] = (out.size()==0) ? 0 : (in.size()==0 ? (2*num) : (out.size()-in.size()+num));
-         bins.get(grBIN[ni]).add(n);
+         binAdd(binFirst, binLast, binPrev, binNext, grBIN[ni], ni);
+         if (hi < grBIN[ni]) hi = grBIN[ni];
          // bin[0]     = { v | #out=0 }
          // bin[n + d] = { v | d=#out-#in and #out!=0 and #in!=0 } for -n < d < n
          // bin[n + n] = { v | #in=0 and #out>0 }
@@ -206,18 +219,17 @@ public final strictfp class Graph {
       final LinkedList<GraphNode> s1=new LinkedList<GraphNode>(), s2=new LinkedList<GraphNode>();
       while(true) {
          GraphNode x=null;
-         if (!bins.get(0).isEmpty()) {
+         if (binLast[0]>=0) {
             // If a sink exists, take a sink X and prepend X to S2
-            x = bins.get(0).remove(bins.get(0).size()-1);
+            x = nodes.get(binLast[0]);
             s1.add(x);
-         } else for(int j=2*num; j>0; j--) {
+         } else for(int j=hi; j>0; j--) {
             // Otherwise, let x be a source if one exists, or a node with the highest #out-#in. Then append X to S1.
-            List<GraphNode> bin=bins.get(j);
-            int sz=bin.size();
-            if (sz>0) { x=bin.remove(sz-1); s2.addFirst(x); break; }
+            hi = j;
+            if (binLast[j]>=0) { x=nodes.get(binLast[j]); s2.addFirst(x); break; }
          }
          if (x==null) break; // This means we're done; else, delete X from its bin, and move each of X's neighbor into their new bin
-         bins.get(grBIN[x.pos()]).remove(x);
+         binRemove(binFirst, binLast, binPrev, binNext, grBIN[x.pos()], x.pos());
          for(GraphNode n:grIN.get(x.pos()))  grOUT.get(n.pos()).remove(x);
          for(GraphNode n:grOUT.get(x.pos())) grIN.get(n.pos()).remove(x);
          // [HASLab] hack to get nodes sorted lexicographically in each layer
@@ -233,12 +245,53 @@ public final strictfp class Graph {
          for(GraphNode n:aux) {
             int ni=n.pos(), out=grOUT.get(ni).size(), in=grIN.get(ni).size();
             int b=(out==0)?0:(in==0?(2*num):(out-in+num));
-            if (grBIN[ni]!=b) { bins.get(grBIN[ni]).remove(n); grBIN[ni]=b; bins.get(b).add(n); }
+            if (grBIN[ni]!=b) {
+               binRemove(binFirst, binLast, binPrev, binNext, grBIN[ni], ni);
+               grBIN[ni]=b;
+               binAdd(binFirst, binLast, binPrev, binNext, b, ni);
+               if (hi < b) hi = b;
+            }
          }
       }
       sortNodes(Util.fastJoin(s1,s2));
    }
 
+   /** Helper method for layout_assignOrder() that appends the given node to the end of the given bin. */
+   private static void binAdd(int[] binFirst, int[] binLast, int[] binPrev, int[] binNext, int bin, int node) {
+      binPrev[node] = binLast[bin];
+      binNext[node] = -1;
+      if (binLast[bin]>=0) binNext[binLast[bin]] = node; else binFirst[bin] = node;
+      binLast[bin] = node;
+   }
+
+   /** Helper method for layout_assignOrder() that removes the given node from the given bin. */
+   private static void binRemove(int[] binFirst, int[] binLast, int[] binPrev, int[] binNext, int bin, int node) {
+      if (binPrev[node]>=0) binNext[binPrev[node]] = binNext[node]; else binFirst[bin] = binNext[node];
+      if (binNext[node]>=0) binPrev[binNext[node]] = binPrev[node]; else binLast[bin] = binPrev[node];
+   }
+
+   /** Layout step #1 (when a seed is given): assign a total order on the nodes, keeping the nodes in the seed in their old order.
+    * <p> The nodes that appear in the seed are sorted by their old layer (then by their old position within that layer),
+    * so that every edge between two such nodes points the same way as before; if there are new nodes,
+    * then step #1 is run first to find places for them, and the old nodes are then rearranged among the places given to old nodes.
+    */
+   private void layout_assignOrder(final Seed seed) {
+      final List<GraphNode> old = new ArrayList<GraphNode>();
+      for(GraphNode n: nodes) if (seed.get(n)!=null) old.add(n);
+      if (old.size() < nodes.size()) layout_assignOrder();
+      if (old.isEmpty()) return;
+      Collections.sort(old, new Comparator<GraphNode>() {
+         public int compare(GraphNode o1, GraphNode o2) {
+            int[] a = seed.get(o1), b = seed.get(o2);
+            if (a[0]!=b[0]) return a[0]<b[0] ? -1 : 1;
+            if (a[1]!=b[1]) return a[1]<b[1] ? -1 : 1;
+            return 0;
+         }
+      });
+      for(int i=0, j=0; i<nodelist.size(); i++) if (seed.get(nodelist.get(i))!=null) { nodelist.set(i, old.get(j)); j++; }
+      for(int i=0; i<nodelist.size(); i++) nodelist.get(i).pos = i;
+   }
+
    //============================================================================================================================//
 
    /** Layout step #2: reverses all backward edges. */
@@ -303,11 +356,12 @@ public final strictfp class Graph {
 
    //============================================================================================================================//
 
-   /** Layout step #5: decide the order of the nodes within each layer. */
-   private void layout_reorderPerLayer() {
+   /** Layout step #5: decide the order of the nodes within each layer (if seed!=null, the nodes that were in the same layer before keep their old relative order). */
+   private void layout_reorderPerLayer(Seed seed) {
       // This uses the original Barycenter heuristic
       final IdentityHashMap<GraphNode,Object> map = new IdentityHashMap<GraphNode,Object>();
       final double[] bc = new double[nodes.size()+1];
+      if (seed!=null) seed.restore(layerlist.get(0), 0);
       int i=1; for(GraphNode n:layer(0)) { bc[n.pos()] = i; i++; }
       for(int layer=0; layer<layers()-1; layer++) {
          for(GraphNode n:layer(layer+1)) {
@@ -327,6 +381,7 @@ public final strictfp class Graph {
                int n = Double.compare(bc[o1.pos()], bc[o2.pos()]); if (n!=0) return n; else if (o1.pos()<o2.pos()) return -1; else return 1;
             }
          });
+         if (seed!=null) seed.restore(layerlist.get(layer+1), layer+1);
          int j=1; for(GraphNode n:layer(layer+1)) { bc[n.pos()]=j; j++; }
       }
    }
@@ -411,21 +466,34 @@ public final strictfp class Graph {
 
    //============================================================================================================================//
 
+   /** Returns half the width of the widest node in the given layer. */
+   private static int halfWidth(List<GraphNode> layer) {
+      int ans=0;
+      for(GraphNode n: layer) if (ans < n.getWidth()/2) ans = n.getWidth()/2;
+      return ans;
+   }
+
    /** For each edge coming out of this layer of nodes, add bends to it if it currently overlaps some nodes inappropriately. */
    private void checkUpperCollision(List<GraphNode> top) {
       final int room=2; // This is how much we need to stay clear of a node's boundary
+      // Since the nodes in each layer are sorted by x, and an edge can only bend around a node that is between its two endpoints,
+      // we can stop scanning the layer once we are past the far endpoint (hw is used to account for the width of each node)
+      final int hw = halfWidth(top);
       for(int i=0; i<top.size(); i++) {
          GraphNode a = top.get(i); double left = a.x() - a.getWidth()/2, right = a.x() - a.getWidth()/2;
          for(GraphEdge e: a.outs) {
             GraphNode b = e.b();
+            final int min = Math.min(a.x(), b.x()), max = Math.max(a.x(), b.x());
             if (b.x()>=right) for(int j=i+1; j<top.size(); j++) { // This edge goes from top-left to bottom-right
                GraphNode c=top.get(j);
+               if (c.x()-hw > max) break;
                if (c.shape()==null) continue; // You can intersect thru a dummy node
                double ctop=c.y()-c.getHeight()/2, cleft=c.x()-c.getWidth()/2, cbottom=c.y()+c.getHeight()/2;
                e.path().bendDown(cleft, ctop-room, cbottom+room, 3);
             }
             else if (b.x()<=left) for(int j=i-1; j>=0; j--) { // This edge goes from top-right to bottom-left
                GraphNode c=top.get(j);
+               if (c.x()+hw < min) break;
                if (c.shape()==null) continue; // You can intersect thru a dummy node
                double ctop=c.y()-c.getHeight()/2, cright=c.x()+c.getWidth()/2, cbottom=c.y()+c.getHeight()/2;
                e.path().bendDown(cright, ctop-room, cbottom+room, 3);
@@ -439,18 +507,22 @@ public final strictfp class Graph {
    /** For each edge going into this layer of nodes, add bends to it if it currently overlaps some nodes inappropriately. */
    private void checkLowerCollision(List<GraphNode> bottom) {
       final int room=2; // This is how much we need to stay clear of a node's boundary
+      final int hw = halfWidth(bottom); // See checkUpperCollision() for how this is used to stop scanning early
       for(int i=0; i<bottom.size(); i++) {
          GraphNode b=bottom.get(i); double left=b.x()-b.getWidth()/2, right=b.x()-b.getWidth()/2;
          for(GraphEdge e: b.ins) {
             GraphNode a=e.a();
+            final int min = Math.min(a.x(), b.x()), max = Math.max(a.x(), b.x());
             if (a.x()<=left) for(int j=i-1; j>=0; j--) { // This edge goes from top-left to bottom-right
                GraphNode c=bottom.get(j);
+               if (c.x()+hw < min) break;
                if (c.shape()==null) continue; // You can intersect thru a dummy node
                double ctop=c.y()-c.getHeight()/2, cright=c.x()+c.getWidth()/2, cbottom=c.y()+c.getHeight()/2;
                e.path().bendUp(cright, ctop-room, cbottom+room, 3);
             }
             else if (a.x()>=right) for(int j=i+1; j<bottom.size(); j++) { // This edge goes from top-right to bottom-left
                GraphNode c=bottom.get(j);
+               if (c.x()-hw > max) break;
                if (c.shape()==null) continue; // You can intersect thru a dummy node
                double ctop=c.y()-c.getHeight()/2, cleft=c.x()-c.getWidth()/2, cbottom=c.y()+c.getHeight()/2;
                e.path().bendUp(cleft, ctop-room, cbottom+room, 3);
@@ -461,20 +533,167 @@ public final strictfp class Graph {
 
    //============================================================================================================================//
 
+   /** If nonnull, then for each layer, this lists the non-dummy nodes in that layer sorted by x (see free() for how this is used).
+    * <p> This is only computed while relayout_edges() is straightening the edges (which only moves the dummy nodes).
+    */
+   private GraphNode[][] obstacles = null;
+
+   /** If obstacles!=null, then for each layer, this is half the width and half the height of the biggest bounding box used by free(). */
+   private int[] obstacleW = null, obstacleH = null;
+
+   /** Computes the obstacles array. */
+   private void makeObstacles() {
+      final int n = layers();
+      obstacles = new GraphNode[n][];
+      obstacleW = new int[n];
+      obstacleH = new int[n];
+      List<GraphNode> list = new ArrayList<GraphNode>();
+      for(int i=0; i<n; i++) {
+         list.clear();
+         for(GraphNode x: layer(i)) if (x.shape()!=null) {
+            list.add(x);
+            Rectangle2D box = x.getBoundingBox(10,10);
+            if (obstacleW[i] < box.getWidth()/2)  obstacleW[i] = (int) Math.ceil(box.getWidth()/2);
+            if (obstacleH[i] < box.getHeight()/2) obstacleH[i] = (int) Math.ceil(box.getHeight()/2);
+         }
+         obstacles[i] = list.toArray(new GraphNode[list.size()]);
+         Arrays.sort(obstacles[i], new Comparator<GraphNode>() {
+            public int compare(GraphNode o1, GraphNode o2) { return o1.x()<o2.x() ? -1 : (o1.x()>o2.x() ? 1 : 0); }
+         });
+      }
+   }
+
    /** Returns true if a direct line between a and b will not intersect any other node. */
    private boolean free(GraphNode a, GraphNode b) {
       if (a.layer() > b.layer()) { GraphNode tmp=a; a=b; b=tmp; }
       Line2D.Double line = new Line2D.Double(a.x(), a.y(), b.x(), b.y());
-      for(GraphNode n:nodes) if (n!=a && n!=b && a.layer()<n.layer() && n.layer()<b.layer() && n.shape()!=null) {
-         if (line.intersects(n.getBoundingBox(10,10))) return false;
+      if (obstacles==null) {
+         for(GraphNode n:nodes) if (n!=a && n!=b && a.layer()<n.layer() && n.layer()<b.layer() && n.shape()!=null) {
+            if (line.intersects(n.getBoundingBox(10,10))) return false;
+         }
+         return true;
+      }
+      // Every node in a layer has the same y, so in each layer between a and b, we only need to look at the nodes
+      // whose x is close enough to the part of the line that passes through that layer (found by binary search)
+      final double slope = (b.x()-a.x()) / ((double)(b.y()-a.y()));
+      for(int layer=a.layer()+1; layer<b.layer(); layer++) {
+         GraphNode[] list = obstacles[layer];
+         if (list.length==0) continue;
+         double y = list[0].y(), x1 = a.x() + (y-obstacleH[layer]-a.y())*slope, x2 = a.x() + (y+obstacleH[layer]-a.y())*slope;
+         double min = Math.min(x1, x2) - obstacleW[layer], max = Math.max(x1, x2) + obstacleW[layer];
+         int i=0, j=list.length;
+         while(i<j) { int k=(i+j)>>>1; if (list[k].x()<min) i=k+1; else j=k; }
+         for(; i<list.length && list[i].x()<=max; i++) {
+            GraphNode n = list[i];
+            if (n!=a && n!=b && line.intersects(n.getBoundingBox(10,10))) return false;
+         }
       }
       return true;
    }
 
    //============================================================================================================================//
 
+   /** True if layout() has been called. */
+   private boolean laidOut = false;
+
+   /** True if the graph was laid out by layoutGrid() rather than layout(). */
+   private boolean grid = false;
+
+   /** Throws CancellationException if the current thread has been interrupted (so that a layout running in a background thread can be abandoned). */
+   private static void checkInterrupt() { if (Thread.interrupted()) throw new CancellationException(); }
+
+   /** Returns true if layout() has been called. */
+   public boolean isLaidOut() { return laidOut; }
+
+   /** Immutable; this records where each node was placed by an earlier layout, so that a later layout of a similar graph
+    * (for example, the next state of a trace) can keep the nodes that are still there in the same places.
+    * <p> Nodes are matched by their uuid (and dummy nodes by the uuid of their edge and their layer).
+    */
+   public static final class Seed {
+      /** Maps the uuid of each node to its old layer, its old position within that layer, and its old X coordinate. */
+      private final Map<Object,int[]> nodes = new HashMap<Object,int[]>();
+      /** Maps the (edge uuid, layer) of each dummy node to its old layer, its old position within that layer, and its old X coordinate. */
+      private final Map<Pair<Object,Integer>,int[]> dummies = new HashMap<Pair<Object,Integer>,int[]>();
+      /** Records the current layout of the given graph. */
+      private Seed(Graph graph) {
+         for(int i=0; i<graph.layers(); i++) {
+            List<GraphNode> list = graph.layerlist.get(i);
+            for(int j=0; j<list.size(); j++) {
+               GraphNode n = list.get(j);
+               if (n.uuid==null) continue;
+               int[] v = new int[]{i, j, n.x()};
+               if (n.shape()!=null) { if (!nodes.containsKey(n.uuid)) nodes.put(n.uuid, v); }
+               else { Pair<Object,Integer> key = new Pair<Object,Integer>(n.uuid, i); if (!dummies.containsKey(key)) dummies.put(key, v); }
+            }
+         }
+      }
+      /** Returns the old layer, the old position within that layer, and the old X coordinate of the given node (or null if it is a new node). */
+      private int[] get(GraphNode n) {
+         if (n.uuid==null) return null;
+         return n.shape()!=null ? nodes.get(n.uuid) : dummies.get(new Pair<Object,Integer>(n.uuid, n.layer()));
+      }
+      /** Among the nodes in the given layer that were in this layer before, restore their old relative order (the other nodes stay where they are). */
+      private void restore(List<GraphNode> list, int layer) {
+         final List<GraphNode> old = new ArrayList<GraphNode>();
+         for(GraphNode n: list) { int[] v = get(n); if (v!=null && v[0]==layer) old.add(n); }
+         if (old.size()<2) return;
+         Collections.sort(old, new Comparator<GraphNode>() {
+            public int compare(GraphNode o1, GraphNode o2) {
+               int a = get(o1)[1], b = get(o2)[1];
+               return a<b ? -1 : (a>b ? 1 : 0);
+            }
+         });
+         for(int i=0, j=0; i<list.size(); i++) { int[] v = get(list.get(i)); if (v!=null && v[0]==layer) { list.set(i, old.get(j)); j++; } }
+      }
+   }
+
+   /** Returns a record of the current layout, which can be given to layout(Seed) of a similar graph (or null if layout() has not been called). */
+   public Seed seed() { return laidOut ? new Seed(this) : null; }
+
+   /** Returns true if the two objects are both null, or are equal. */
+   private static boolean same(Object a, Object b) { return a==null ? b==null : a.equals(b); }
+
+   /** If the given graph has the same nodes, edges and node shapes as this graph (before this graph was laid out),
+    * then copy the colors and styles of its nodes, edges and legends into this graph (keeping this graph's layout) and return true;
+    * else return false without changing this graph.
+    * <p> The given graph does not need to be laid out; it is typically made for the same instance using a recolored theme.
+    */
+   public boolean restyle(Graph fresh) {
+      Map<Object,GraphNode> map = new HashMap<Object,GraphNode>();
+      int n = 0;
+      for(GraphNode x: fresh.nodes) if (map.put(x.uuid, x)!=null) return false;
+      for(GraphNode x: nodes) if (x.shape()!=null) {
+         GraphNode y = map.get(x.uuid);
+         if (y==null || y.shape()!=x.shape()) return false;
+         n++;
+      }
+      if (n!=map.size() || fresh.edges.size()>edges.size()) return false;
+      for(int i=0; i<fresh.edges.size(); i++) {
+         GraphEdge x = edges.get(i), y = fresh.edges.get(i);
+         if (!same(x.uuid, y.uuid) || !x.label().equals(y.label())) return false;
+      }
+      // Now we know the two graphs match, so we can copy the colors and styles over
+      for(GraphNode x: nodes) if (x.shape()!=null) { GraphNode y = map.get(x.uuid); x.set(y.color()).set(y.style()); }
+      for(int i=0; i<fresh.edges.size(); i++) {
+         GraphEdge y = fresh.edges.get(i);
+         for(GraphEdge x = edges.get(i); ; x = x.b().outs.get(0)) { x.set(y.color()).set(y.style()); if (x.b().shape()!=null) break; }
+      }
+      legends.clear();
+      legends.putAll(fresh.legends);
+      return true;
+   }
+
    /** (Re-)perform the layout. */
-   public void layout() {
+   public void layout() { layout(null); }
+
+   /** (Re-)perform the layout; if seed!=null, it is used to keep the nodes that were laid out before in their old layers and orders wherever possible.
+    * <p> In particular, if every node appears in the seed, then the initial ordering of the nodes is simply read from the seed;
+    * the layers and the orders within each layer are then recomputed, but only the nodes and edges that changed can move relative to the others.
+    */
+   public void layout(Seed seed) {
+
+      laidOut = true;
+      grid = false;
 
       // The rest of the code below assumes at least one node, so we return right away if nodes.size()==0
       if (nodes.size()==0) return;
@@ -482,12 +701,16 @@ public final strictfp class Graph {
       // Calculate each node's width and height
       for(GraphNode n:nodes) n.calcBounds();
 
-      // Layout the nodes
-      layout_assignOrder();
+      // Layout the nodes (if the layout is running in a background thread, it can be interrupted between the steps)
+      checkInterrupt();
+      if (seed==null) layout_assignOrder(); else layout_assignOrder(seed);
       layout_backEdges();
+      checkInterrupt();
       final int layers = layout_decideLayer();
       layout_dummyNodesIfNeeded();
-      layout_reorderPerLayer();
+      checkInterrupt();
+      layout_reorderPerLayer(seed);
+      checkInterrupt();
 
       // For each layer, this array stores the height of its tallest node
       layerPH = new int[layers];
@@ -498,6 +721,8 @@ public final strictfp class Graph {
          int h=0;
          for(GraphNode n: layer(layer)) {
             int nHeight = n.getHeight(), nWidth = n.getWidth();
+            int[] old = (seed==null) ? null : seed.get(n);
+            if (old!=null && old[0]==layer && x < old[2]-nWidth/2) x = old[2]-nWidth/2; // Start from its old X if that's not too far left
             n.setX(x + nWidth/2);
             if (h < nHeight) h = nHeight;
             x = x + nWidth + n.getReserved() + 20;
@@ -508,7 +733,7 @@ public final strictfp class Graph {
       // If there are more than one layer, then iteratively refine the X position of each component 3 times; 4 is a good number
       if (layers>1) {
          // It's important to NOT DO THIS when layers<=1, because without edges the nodes will overlap each other into the center
-         for(int i=0; i<3; i++) for(int layer=0; layer<layers; layer++) layout_xAssignment(layer(layer));
+         for(int i=0; i<3; i++) { checkInterrupt(); for(int layer=0; layer<layers; layer++) layout_xAssignment(layer(layer)); }
       }
 
       // Calculate each node's y; we start at y==5 so that we're not touching the top-edge of the window
@@ -519,6 +744,7 @@ public final strictfp class Graph {
          py = py + ph + yJump;
       }
 
+      checkInterrupt();
       relayout_edges(true);
 
       // Since we're doing layout for the first time, we need to explicitly set top and bottom, since
@@ -528,6 +754,52 @@ public final strictfp class Graph {
 
    //============================================================================================================================//
 
+   /** Performs a quick layout that simply places the nodes in rows (in the order they were added),
+    * without trying to reduce the edge crossings; this takes roughly linear time, so it is meant for graphs that are too big for layout().
+    */
+   public void layoutGrid() {
+
+      laidOut = true;
+      grid = true;
+
+      // The rest of the code below assumes at least one node, so we return right away if nodes.size()==0
+      if (nodes.size()==0) return;
+
+      // Calculate each node's width and height
+      for(GraphNode n:nodes) n.calcBounds();
+      checkInterrupt();
+
+      // Each row is a layer (the first row being the top layer), and the nodes in each column are centered on the widest one
+      final int n = nodes.size(), columns = (int) Math.ceil(Math.sqrt(n)), layers = (n+columns-1)/columns;
+      final int[] columnW = new int[columns];
+      layerPH = new int[layers];
+      for(int i=0; i<n; i++) {
+         GraphNode node = nodes.get(i);
+         node.setLayer(layers-1-i/columns);
+         if (columnW[i%columns] < node.getWidth()+node.getReserved()) columnW[i%columns] = node.getWidth()+node.getReserved();
+         if (layerPH[node.layer()] < node.getHeight()) layerPH[node.layer()] = node.getHeight();
+      }
+      int py=5;
+      for(int i=0; i<n; i+=columns) {
+         final int ph = layerPH[layers-1-i/columns];
+         int x=5;
+         for(int j=i; j<n && j<i+columns; j++) {
+            GraphNode node = nodes.get(j);
+            node.setX(x + columnW[j-i]/2 - node.getReserved()/2);
+            node.setY(py + ph/2);
+            x = x + columnW[j-i] + 20;
+         }
+         py = py + ph + yJump;
+      }
+      checkInterrupt();
+
+      // Edges are simply drawn as straight lines
+      relayout_edges(false);
+      recalcBound(true);
+   }
+
+   //============================================================================================================================//
+
    /** Re-establish top/left/width/height. */
    void recalcBound(boolean fresh) {
       if (nodes.size()==0) { top=0; bottom=10; totalHeight=10; left=0; totalWidth=10; return; }
@@ -573,6 +845,7 @@ public final strictfp class Graph {
    /** Assuming everything was laid out already, but at least one node just moved, this re-layouts ALL edges. */
    void relayout_edges(boolean straighten) {
       // Move pairs of virtual nodes to straighten the lines if possible
+      if (straighten) makeObstacles();
       if (straighten) for(int i=0; i<5; i++) for(GraphNode n:nodes) if (n.shape()==null) {
          GraphEdge e1 = n.ins.get(0), e2 = n.outs.get(0);
          if (!free(e1.a(), e2.b())) continue;
@@ -598,6 +871,7 @@ public final strictfp class Graph {
             ee = b.outs.get(0);
          }
       }
+      obstacles = null; obstacleW = null; obstacleH = null;
       // Now restore the invariant that nodes in each layer is ordered by x
       if (straighten) for(int i=0; i<layers(); i++) {
          sortLayer(i, new Comparator<GraphNode>() {
@@ -624,7 +898,7 @@ public final strictfp class Graph {
       // Now layout the edges, initially as straight lines
       for(GraphEdge e:edges) e.resetPath();
       // Now, scan layer-by-layer to find edges that intersect nodes improperly, and bend them accordingly
-      for(int layer=layers()-1; layer>0; layer--) {
+      if (!grid) for(int layer=layers()-1; layer>0; layer--) {
          List<GraphNode> top=layer(layer), bottom=layer(layer-1);
          checkUpperCollision(top); checkLowerCollision(bottom); checkUpperCollision(top);
       }
@@ -632,6 +906,7 @@ public final strictfp class Graph {
       AvailableSpace sp = new AvailableSpace();
       for(GraphNode n: nodes) if (n.shape()!=null) sp.add(n.x()-n.getWidth()/2, n.y()-n.getHeight()/2, n.getWidth()+n.getReserved(), n.getHeight());
       for(GraphEdge e: edges) { e.layout_arrowHead(); e.repositionLabel(sp); }
+      nodeIndex = null; edgeIndex = null; chainIndex = null;
    }
 
    //============================================================================================================================//
@@ -639,6 +914,7 @@ public final strictfp class Graph {
    /** Assuming everything was laid out already, but nodes in layer[i] just moved horizontally, this re-layouts edges to+from layer i. */
    void relayout_edges(int i) {
       if (nodes.size()==0) return; // The rest of the code assumes there is at least one node
+      if (grid) { relayout_edges(false); return; } // In a grid, the edges to+from layer i may go to any layer
       for(GraphNode n: layer(i)) for(GraphEdge e: n.selfs) { e.resetPath(); e.layout_arrowHead(); }
       if (i>0) {
          List<GraphNode> top=layer(i), bottom=layer(i-1);
@@ -654,10 +930,64 @@ public final strictfp class Graph {
       AvailableSpace sp = new AvailableSpace();
       for(GraphNode n:nodes) if (n.shape()!=null) sp.add(n.x()-n.getWidth()/2, n.y()-n.getHeight()/2, n.getWidth()+n.getReserved(), n.getHeight());
       for(GraphEdge e:edges) { e.layout_arrowHead(); e.repositionLabel(sp); }
+      nodeIndex = null; edgeIndex = null; chainIndex = null;
    }
 
    //============================================================================================================================//
 
+   /** If nonnull, this indexes every node (in the order of the node list) by its bounding box. */
+   private SpatialIndex<GraphNode> nodeIndex = null;
+
+   /** If nonnull, this indexes every edge (in the order of the edge list) by the bounding box of its path. */
+   private SpatialIndex<GraphEdge> edgeIndex = null;
+
+   /** If nonnull, this indexes the first segment of every chain of connected segments (in the order draw() draws them)
+    * by the bounding box of the whole chain, including its labels and arrowheads.
+    */
+   private SpatialIndex<GraphEdge> chainIndex = null;
+
+   /** Computes nodeIndex, edgeIndex and chainIndex (unless they are still up-to-date);
+    * they are discarded by relayout_edges() whenever a node or edge moves.
+    */
+   private void makeIndex() {
+      if (nodeIndex!=null) return;
+      List<Rectangle2D> boxes = new ArrayList<Rectangle2D>(nodes.size());
+      for(GraphNode n: nodes)
+         boxes.add(n.shape()==null ? new Rectangle2D.Double(n.x()-10, n.y()-10, 20, 20) : n.getBoundingBox(5, 5));
+      SpatialIndex<GraphNode> nodeIndex = new SpatialIndex<GraphNode>(nodes, boxes);
+      boxes = new ArrayList<Rectangle2D>(edges.size());
+      for(GraphEdge e: edges) boxes.add(bounds(e.path()));
+      edgeIndex = new SpatialIndex<GraphEdge>(edges, boxes);
+      List<GraphEdge> chains = new ArrayList<GraphEdge>();
+      boxes = new ArrayList<Rectangle2D>();
+      for(GraphNode n: nodes) if (n.shape()!=null) {
+         for(GraphEdge e: n.outs)  { chains.add(e); boxes.add(chainBounds(e)); }
+         for(GraphEdge e: n.selfs) { chains.add(e); boxes.add(chainBounds(e)); }
+      }
+      chainIndex = new SpatialIndex<GraphEdge>(chains, boxes);
+      this.nodeIndex = nodeIndex;
+   }
+
+   /** Returns the bounding box of the given path. */
+   private static Rectangle2D bounds(Curve path) {
+      Rectangle2D ans = null;
+      for(CubicCurve2D.Double c: path.list) if (ans==null) ans = c.getBounds2D(); else ans.add(c.getBounds2D());
+      return ans!=null ? ans : new Rectangle2D.Double(path.startX, path.startY, 0, 0);
+   }
+
+   /** Returns the bounding box of the chain of connected segments starting with the given edge, including its labels and arrowheads. */
+   private Rectangle2D chainBounds(GraphEdge e) {
+      Rectangle2D ans = null;
+      for(;;) {
+         if (ans==null) ans = bounds(e.path()); else ans.add(bounds(e.path()));
+         if (e.getLabelW()>0 && e.getLabelH()>0) ans.add(new Rectangle2D.Double(e.getLabelX(), e.getLabelY(), e.getLabelW(), e.getLabelH()));
+         if (e.b().shape()!=null) break;
+         e = e.b().outs.get(0);
+      }
+      ans.setRect(ans.getX()-ad, ans.getY()-ad, ans.getWidth()+ad+ad, ans.getHeight()+ad+ad); // Leave room for the arrowheads
+      return ans;
+   }
+
    /** Locates the node or edge at the given (X,Y) location. */
    public Object find(double scale, int mouseX, int mouseY) {
       int h = getTop() + 10 - ad;
@@ -669,11 +999,12 @@ public final strictfp class Graph {
          int w = (int) getBounds(true, e.getValue().a).getWidth();
          if (x>=getLeft()+10 && x<=getLeft()+10+w) return e.getKey();
       }
-      for(GraphNode n: nodes) {
+      makeIndex();
+      for(GraphNode n: nodeIndex.find(x, y, x, y)) {
          if (n.shape()==null && Math.abs(n.x()-x)<10 && Math.abs(n.y()-y)<10) return n;
          if (n.contains(x,y)) return n;
       }
-      for(GraphEdge e: edges) {
+      for(GraphEdge e: edgeIndex.find(x-12/scale, y, x+12/scale, y)) {
          if (e.a() != e.b()) {
             double dx;
             dx = e.path().getXatY(y, 0, 1, Double.NaN); if (!Double.isNaN(dx) && StrictMath.abs(x-dx)<12/scale) return e;
@@ -689,8 +1020,86 @@ public final strictfp class Graph {
 
    //============================================================================================================================//
 
+   /** Export this graph (which must have been laid out) as a PDF file with the given image resolution (if this fails, the partial file is deleted). */
+   public void writePDF(String filename, int dpi) throws IOException {
+      OurPDFWriter x = null;
+      try {
+         double xwidth = dpi*8L+(dpi/2L); // Width is up to 8.5 inch
+         double xheight = dpi*11L;        // Height is up to 11 inch
+         double scale1 = (xwidth-dpi)  / getTotalWidth();  // We leave 0.5 inch on the left and right
+         double scale2 = (xheight-dpi) / getTotalHeight(); // We leave 0.5 inch on the left and right
+         if (scale1<scale2) scale2=scale1; // Choose the scale such that the image does not exceed the page in either direction
+         x = new OurPDFWriter(filename, dpi, scale2);
+         draw(new Artist(x), scale2, null, false);
+         x.close();
+      } catch(Throwable ex) {
+         if (x!=null) x.abort();
+         if (ex instanceof IOException) throw (IOException)ex;
+         throw new IOException("Failure writing the PDF file to " + filename + " (" + ex + ")");
+      }
+   }
+
+   /** Export this graph (which must have been laid out) as an SVG file with the given zoom scale (if this fails, the partial file is deleted). */
+   public void writeSVG(String filename, double scale) throws IOException {
+      OurSVGWriter x = null;
+      try {
+         x = new OurSVGWriter(filename, getTotalWidth(), getTotalHeight(), scale);
+         draw(new Artist(x), 1, null, false);
+         x.close();
+      } catch(Throwable ex) {
+         if (x!=null) x.abort();
+         if (ex instanceof IOException) throw (IOException)ex;
+         throw new IOException("Failure writing the SVG file to " + filename + " (" + ex + ")");
+      }
+   }
+
+   /** When exporting a PNG file, we draw this many pixels at a time (at most), so that huge images don't need to be in memory at once. */
+   private static final int BAND = 4*1024*1024;
+
+   /** Export this graph (which must have been laid out) as a PNG file with the given file name and image resolution (if this fails, the partial file is deleted).
+    * <p> The image is drawn one horizontal band at a time (only drawing the nodes and edges in that band),
+    * and each band is written to the file before the next band is drawn.
+    */
+   public void writePNG(String filename, double scale, double dpiX, double dpiY) throws IOException {
+      OurPNGWriter.RowWriter png = null;
+      try {
+         int width = (int) (getTotalWidth()*scale);   if (width<10) width=10;
+         int height = (int) (getTotalHeight()*scale); if (height<10) height=10;
+         int band = Math.max(16, Math.min(height, BAND/width));
+         BufferedImage bf = new BufferedImage(width, band, BufferedImage.TYPE_INT_RGB);
+         png = new OurPNGWriter.RowWriter(filename, width, height, dpiX, dpiY);
+         for(int y=0; y<height; y=y+band) {
+            Graphics2D gr = (Graphics2D) (bf.getGraphics());
+            gr.setColor(Color.WHITE);
+            gr.fillRect(0, 0, width, band);
+            gr.setColor(Color.BLACK);
+            gr.translate(0, -y);
+            gr.scale(scale,scale);
+            gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            Rectangle2D clip = new Rectangle2D.Double(getLeft(), getTop() + y/scale, width/scale, band/scale);
+            draw(new Artist(gr), scale, null, false, clip, true);
+            gr.dispose();
+            png.write(bf, Math.min(band, height-y));
+         }
+         png.close();
+      } catch(Throwable ex) {
+         if (png!=null) png.abort();
+         if (ex instanceof IOException) throw (IOException)ex;
+         throw new IOException("Failure writing the PNG file to " + filename + " (" + ex + ")");
+      }
+   }
+
+
    /** Assuming layout has been performed, this draws the graph with the given magnification scale. */
    void draw(Artist gr, double scale, Object highlight, boolean showLegends) {
+      draw(gr, scale, highlight, showLegends, null, true);
+   }
+
+   /** Assuming layout has been performed, this draws the graph with the given magnification scale.
+    * @param clip - if nonnull, then only the nodes and edges that touch this rectangle (in the same coordinates as x() and y()) are drawn
+    * @param details - if false, then the labels and arrowheads are not drawn (except for the highlighted edge and its endpoints)
+    */
+   void draw(Artist gr, double scale, Object highlight, boolean showLegends, Rectangle2D clip, boolean details) {
       if (nodes.size()==0) return; // The rest of this procedure assumes there is at least one node
       Object group = null;
       GraphNode highFirstNode = null, highLastNode = null;
@@ -708,21 +1117,19 @@ public final strictfp class Graph {
       }
       // Since drawing an edge will automatically draw all segments if they're connected via dummy nodes,
       // we must make sure we only draw out edges from non-dummy-nodes
+      // (chainIndex lists exactly those edges, in the same order as the node list)
       int maxAscent = Artist.getMaxAscent();
-      for(GraphNode n:nodes) if (n.shape()!=null) {
-         for(GraphEdge e:n.outs)  if (e.group!=group) e.draw(gr, scale, highFirstEdge, group);
-         for(GraphEdge e:n.selfs) if (e.group!=group) e.draw(gr, scale, highFirstEdge, group);
-      }
+      makeIndex();
+      List<GraphEdge> chains = (clip==null) ? chainIndex.all() : chainIndex.find(clip.getMinX(), clip.getMinY(), clip.getMaxX(), clip.getMaxY());
+      List<GraphNode> visible = (clip==null) ? nodes : nodeIndex.find(clip.getMinX(), clip.getMinY(), clip.getMaxX(), clip.getMaxY());
+      for(GraphEdge e:chains) if (e.group!=group) e.draw(gr, scale, highFirstEdge, group, details);
       if (group!=null) {
-         for(GraphNode n:nodes) if (n.shape()!=null) {
-            for(GraphEdge e:n.outs)  if (e.group==group && e!=highFirstEdge) e.draw(gr, scale, highFirstEdge, group);
-            for(GraphEdge e:n.selfs) if (e.group==group && e!=highFirstEdge) e.draw(gr, scale, highFirstEdge, group);
-         }
-         if (highFirstEdge!=null) highFirstEdge.draw(gr, scale, highFirstEdge, group);
+         for(GraphEdge e:chains) if (e.group==group && e!=highFirstEdge) e.draw(gr, scale, highFirstEdge, group, details);
+         if (highFirstEdge!=null) highFirstEdge.draw(gr, scale, highFirstEdge, group, true);
       }
-      for(GraphNode n:nodes) if (highFirstNode!=n && highLastNode!=n) n.draw(gr, scale, n==highlight);
-      if (highFirstNode!=null) highFirstNode.draw(gr, scale, true);
-      if (highLastNode!=null && highLastNode!=highFirstNode) highLastNode.draw(gr, scale, true);
+      for(GraphNode n:visible) if (highFirstNode!=n && highLastNode!=n) n.draw(gr, scale, n==highlight, details);
+      if (highFirstNode!=null) highFirstNode.draw(gr, scale, true, true);
+      if (highLastNode!=null && highLastNode!=highFirstNode) highLastNode.draw(gr, scale, true, true);
       if (highFirstEdge!=null) highFirstEdge.drawLabel(gr, highFirstEdge.color(), new Color(255,255,255,160));
       // show legends?
       if (!showLegends || legends.size()==0) return;
@@ -286,8 +286,10 @@ public final strictfp class GraphEdge {
       }
    }
 
-   /** Assuming this edge's coordinates have been properly assigned, and given the current zoom scale, draw the edge. */
-   void draw(Artist gr, double scale, GraphEdge highEdge, Object highGroup) {
+   /** Assuming this edge's coordinates have been properly assigned, and given the current zoom scale, draw the edge
+    * (and if details==true, then also draw its label and arrowheads).
+    */
+   void draw(Artist gr, double scale, GraphEdge highEdge, Object highGroup, boolean details) {
       final int top = a.graph.getTop(), left = a.graph.getLeft();
       gr.translate(-left, -top);
       if (highEdge==this) { gr.setColor(color); gr.set(DotStyle.BOLD, scale); }
@@ -309,6 +311,7 @@ public final strictfp class GraphEdge {
       }
       gr.set(DotStyle.SOLID, scale);
       gr.translate(left, top);
+      if (!details) return;
       if (highEdge==null && highGroup==null && label.length()>0) drawLabel(gr, color, null);
       drawArrowhead(gr, scale, highEdge, highGroup);
    }
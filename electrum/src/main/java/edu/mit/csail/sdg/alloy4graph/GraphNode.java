@@ -190,7 +190,9 @@ public final strictfp class GraphNode {
    void setLayer(int newLayer) {
       if (newLayer < 0) throw new IllegalArgumentException("The layer cannot be negative!");
       if (layer == newLayer) return;
-      graph.layerlist.get(layer).remove(this);
+      List<GraphNode> old = graph.layerlist.get(layer);
+      int last = old.size()-1;
+      if (last>=0 && old.get(last)==this) old.remove(last); else old.remove(this); // a newly created node is usually the last one
       layer = newLayer;
       while(layer >= graph.layerlist.size()) graph.layerlist.add(new ArrayList<GraphNode>());
       graph.layerlist.get(layer).add(this);
@@ -226,6 +228,12 @@ public final strictfp class GraphNode {
    /** Returns the node shape (or null if the node is a dummy node). */
    DotShape shape() { return shape; }
 
+   /** Returns the node color. */
+   Color color() { return color; }
+
+   /** Returns the line style. */
+   DotStyle style() { return style; }
+
    /** Changes the node shape (where null means change the node into a dummy node), then invalidate the computed bounds. */
    public GraphNode set(DotShape shape) {
       if (this.shape!=shape) { this.shape = shape; updown = (-1); }
@@ -283,8 +291,10 @@ public final strictfp class GraphNode {
       return poly.contains(x-centerX, y-centerY);
    }
 
-   /** Draws this node at its current (x, y) location; this method will call calcBounds() if necessary. */
-   void draw(Artist gr, double scale, boolean highlight) {
+   /** Draws this node at its current (x, y) location (and if details==true, then also draw its labels);
+    * this method will call calcBounds() if necessary.
+    */
+   void draw(Artist gr, double scale, boolean highlight, boolean details) {
       if (shape==null) return; else if (updown<0) calcBounds();
       final int top = graph.getTop(), left = graph.getLeft();
       gr.set(style, scale);
@@ -323,7 +333,7 @@ public final strictfp class GraphNode {
       gr.set(DotStyle.SOLID, scale);
       int clr = color.getRGB() & 0xFFFFFF;
       gr.setColor((clr==0x000000 || clr==0xff0000 || clr==0x0000ff) ? Color.WHITE : Color.BLACK);
-      if (labels!=null && labels.size()>0) {
+      if (details && labels!=null && labels.size()>0) {
          int x=(-width/2), y=yShift+(-labels.size()*ad/2);
          for(int i=0; i<labels.size(); i++) {
             String t = labels.get(i);
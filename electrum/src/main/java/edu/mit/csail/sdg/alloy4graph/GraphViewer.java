@@ -35,7 +35,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.geom.AffineTransform;
-import java.awt.image.BufferedImage;
+import java.awt.geom.Rectangle2D;
 import java.io.File;
 import java.io.IOException;
 
@@ -51,8 +51,6 @@ import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 
 import edu.mit.csail.sdg.alloy4.OurDialog;
-import edu.mit.csail.sdg.alloy4.OurPDFWriter;
-import edu.mit.csail.sdg.alloy4.OurPNGWriter;
 import edu.mit.csail.sdg.alloy4.OurUtil;
 import edu.mit.csail.sdg.alloy4.Util;
 
@@ -72,6 +70,9 @@ public final strictfp class GraphViewer extends JPanel {
     /** The current amount of zoom. */
     private double scale = 1d;
 
+    /** When the zoom is below this, the labels and arrowheads would be too small to read, so we don't draw them on the screen. */
+    private static final double DETAIL_SCALE = 0.4d;
+
     /** The currently hovered GraphNode or GraphEdge or group, or null if there is none. */
     private Object highlight = null;
 
@@ -120,13 +121,13 @@ public final strictfp class GraphViewer extends JPanel {
         if (c!=null) { c.invalidate(); c.repaint(); c.validate(); } else { invalidate(); repaint(); validate(); }
     }
 
-    /** Construct a GraphViewer that displays the given graph. */
+    /** Construct a GraphViewer that displays the given graph (and lays it out first, unless it has been laid out already). */
     public GraphViewer(final Graph graph) {
         OurUtil.make(this, BLACK, WHITE, new EmptyBorder(0,0,0,0));
         setBorder(null);
         this.scale = graph.defaultScale;
         this.graph = graph;
-        graph.layout();
+        if (!graph.isLaidOut()) graph.layout(); // the graph may have been laid out in advance in a background thread
         final JMenuItem zoomIn = new JMenuItem("Zoom In");
         final JMenuItem zoomOut = new JMenuItem("Zoom Out");
         final JMenuItem zoomToFit = new JMenuItem("Zoom to Fit");
@@ -376,39 +377,17 @@ public final strictfp class GraphViewer extends JPanel {
 
     /** Export the current drawing as a PDF file with the given image resolution. */
     public void alloySaveAsPDF(String filename, int dpi) throws IOException {
-       try {
-          double xwidth = dpi*8L+(dpi/2L); // Width is up to 8.5 inch
-          double xheight = dpi*11L;        // Height is up to 11 inch
-          double scale1 = (xwidth-dpi)  / graph.getTotalWidth();  // We leave 0.5 inch on the left and right
-          double scale2 = (xheight-dpi) / graph.getTotalHeight(); // We leave 0.5 inch on the left and right
-          if (scale1<scale2) scale2=scale1; // Choose the scale such that the image does not exceed the page in either direction
-          OurPDFWriter x = new OurPDFWriter(filename, dpi, scale2);
-          graph.draw(new Artist(x), scale2, null, false);
-          x.close();
-       } catch(Throwable ex) {
-          if (ex instanceof IOException) throw (IOException)ex;
-          throw new IOException("Failure writing the PDF file to " + filename + " (" + ex + ")");
-       }
+       graph.writePDF(filename, dpi);
+    }
+
+    /** Export the current drawing as an SVG file with the given zoom scale. */
+    public void alloySaveAsSVG(String filename, double scale) throws IOException {
+       graph.writeSVG(filename, scale);
     }
 
     /** Export the current drawing as a PNG file with the given file name and image resolution. */
     public void alloySaveAsPNG(String filename, double scale, double dpiX, double dpiY) throws IOException {
-       try {
-          int width = (int) (graph.getTotalWidth()*scale);   if (width<10) width=10;
-          int height = (int) (graph.getTotalHeight()*scale); if (height<10) height=10;
-          BufferedImage bf = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-          Graphics2D gr = (Graphics2D) (bf.getGraphics());
-          gr.setColor(WHITE);
-          gr.fillRect(0, 0, width, height);
-          gr.setColor(BLACK);
-          gr.scale(scale,scale);
-          gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-          graph.draw(new Artist(gr), scale, null, false);
-          OurPNGWriter.writePNG(bf, filename, dpiX, dpiY);
-       } catch(Throwable ex) {
-          if (ex instanceof IOException) throw (IOException)ex;
-          throw new IOException("Failure writing the PNG file to " + filename + " (" + ex + ")");
-       }
+       graph.writePNG(filename, scale, dpiX, dpiY);
     }
 
     /** Show the popup menu at location (x,y) */
@@ -436,7 +415,10 @@ public final strictfp class GraphViewer extends JPanel {
         Object sel=(selected!=null ? selected : highlight);
         GraphNode c=null;
         if (sel instanceof GraphNode && ((GraphNode)sel).shape()==null) { c = (GraphNode)sel; sel = c.ins.get(0); }
-        graph.draw(new Artist(g2), scale, sel, true);
+        // Only draw what is inside the area being repainted (converted from this component's coordinates into the graph's coordinates)
+        Rectangle clip = g2.getClipBounds();
+        Rectangle2D area = (clip==null) ? null : new Rectangle2D.Double(clip.x+graph.getLeft(), clip.y+graph.getTop(), clip.width, clip.height);
+        graph.draw(new Artist(g2), scale, sel, true, area, scale>=DETAIL_SCALE);
         if (c!=null) { gr.setColor(((GraphEdge)sel).color()); gr.fillArc(c.x()-5-graph.getLeft(), c.y()-5-graph.getTop(), 10, 10, 0, 360); }
         g2.setTransform(oldAF);
     }
@@ -0,0 +1,105 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4graph;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Immutable; this indexes the bounding boxes of a list of items, so that we can quickly find the items that touch a given rectangle.
+ *
+ * <p> The boxes are indexed by a grid of cells (as in AvailableSpace), so that each query only looks at the items nearby;
+ * the items found by a query are always returned in the order they were given.
+ *
+ * <p><b>Thread Safety:</b> Safe.
+ */
+
+final class SpatialIndex<T> {
+
+    /** The width and height of each cell of the grid. */
+    private static final int CELL = 128;
+
+    /** A box that spans more than this many cells is put in the "big" list rather than in every cell it spans. */
+    private static final int MAXCELLS = 256;
+
+    /** The items. */
+    private final List<T> items;
+
+    /** The bounding box of the i-th item is (x1[i], y1[i]) to (x2[i], y2[i]). */
+    private final double[] x1, y1, x2, y2;
+
+    /** Maps each cell (x/CELL, y/CELL) to the indices of the items whose bounding box touches it (in increasing order). */
+    private final Map<Long,List<Integer>> cells = new HashMap<Long,List<Integer>>();
+
+    /** The indices of the items whose bounding box spans too many cells (in increasing order). */
+    private final List<Integer> big = new ArrayList<Integer>();
+
+    /** Returns the key of the given cell. */
+    private static Long key(long cx, long cy) { return (cx << 32) | (cy & 0xFFFFFFFFL); }
+
+    /** Returns the cell containing the given coordinate. */
+    private static long cell(double v) { return (long) Math.floor(v / CELL); }
+
+    /** Constructs an index for the given items; the i-th box must be the bounding box of the i-th item. */
+    SpatialIndex(List<T> items, List<Rectangle2D> boxes) {
+        this.items = new ArrayList<T>(items);
+        int n = this.items.size();
+        x1 = new double[n]; y1 = new double[n]; x2 = new double[n]; y2 = new double[n];
+        for(int i=0; i<n; i++) {
+            Rectangle2D box = boxes.get(i);
+            x1[i] = box.getMinX(); y1[i] = box.getMinY(); x2[i] = box.getMaxX(); y2[i] = box.getMaxY();
+            long cx1 = cell(x1[i]), cx2 = cell(x2[i]), cy1 = cell(y1[i]), cy2 = cell(y2[i]);
+            if ((cx2-cx1+1) * (cy2-cy1+1) > MAXCELLS) { big.add(i); continue; }
+            for(long cx=cx1; cx<=cx2; cx++) for(long cy=cy1; cy<=cy2; cy++) {
+                Long k = key(cx, cy);
+                List<Integer> list = cells.get(k);
+                if (list==null) { list = new ArrayList<Integer>(); cells.put(k, list); }
+                list.add(i);
+            }
+        }
+    }
+
+    /** Returns an unmodifiable list of every item, in the order they were given. */
+    List<T> all() { return Collections.unmodifiableList(items); }
+
+    /** Returns true if the bounding box of the i-th item touches the given rectangle. */
+    private boolean touches(int i, double qx1, double qy1, double qx2, double qy2) {
+        return x1[i]<=qx2 && qx1<=x2[i] && y1[i]<=qy2 && qy1<=y2[i];
+    }
+
+    /** Returns the items whose bounding box touches the rectangle from (qx1, qy1) to (qx2, qy2), in the order they were given. */
+    List<T> find(double qx1, double qy1, double qx2, double qy2) {
+        BitSet found = new BitSet(items.size());
+        for(int i: big) if (touches(i, qx1, qy1, qx2, qy2)) found.set(i);
+        long cx1 = cell(qx1), cx2 = cell(qx2), cy1 = cell(qy1), cy2 = cell(qy2);
+        if ((double)(cx2-cx1+1) * (cy2-cy1+1) > cells.size()) {
+            // The rectangle spans more cells than we have, so just look at every item
+            for(int i=0; i<items.size(); i++) if (touches(i, qx1, qy1, qx2, qy2)) found.set(i);
+        } else {
+            for(long cx=cx1; cx<=cx2; cx++) for(long cy=cy1; cy<=cy2; cy++) {
+                List<Integer> list = cells.get(key(cx, cy));
+                if (list!=null) for(int i: list) if (touches(i, qx1, qy1, qx2, qy2)) found.set(i);
+            }
+        }
+        List<T> ans = new ArrayList<T>(found.cardinality());
+        for(int i=found.nextSetBit(0); i>=0; i=found.nextSetBit(i+1)) ans.add(items.get(i));
+        return ans;
+    }
+}
@@ -0,0 +1,186 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ * Electrum -- Copyright (c) 2015-present, Nuno Macedo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4viz;
+
+import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+
+import edu.mit.csail.sdg.alloy4.OurUtil;
+import edu.mit.csail.sdg.alloy4graph.Graph;
+
+/** Mutable; this generates and lays out graphs in a background thread, so that a big graph does not freeze the GUI.
+ *
+ * <p> If the graph is ready within WAIT milliseconds, it is shown right away; otherwise, a placeholder panel with a cancel button
+ * is shown instead, and the caller is notified once the graph has been added to the theme's cache of graphs.
+ * A layout that is overtaken by a newer one (or cancelled) is abandoned at the next opportunity, and its result is ignored;
+ * but asking again for the graph that is being laid out (same instance, theme version, and projection) keeps the running layout.
+ *
+ * <p><b>Thread Safety:</b> Can be called only by the AWT event thread (the background thread only works on private copies).
+ */
+
+final class BackgroundLayout {
+
+   /** The number of milliseconds to wait for a layout before showing the placeholder. */
+   static final int WAIT = 250;
+
+   /** This is incremented whenever a new layout starts (or is cancelled), which abandons all older layouts. */
+   private int generation = 0;
+
+   /** The layout that is currently running (or null if none). */
+   private FutureTask<Graph> running = null;
+
+   /** If running!=null, this is the instance it lays out. */
+   private AlloyInstance runningInstance = null;
+
+   /** If running!=null, this is the theme version it lays out. */
+   private int runningThemeVersion = 0;
+
+   /** If running!=null, this is the projection choice it lays out. */
+   private AlloyProjection runningProjection = null;
+
+   /** If running!=null, this is the label that shows its progress. */
+   private JLabel runningStatus = null;
+
+   /** If running!=null, this is called once it has been added to the theme's cache of graphs (this is the latest callback we were given). */
+   private Runnable runningWhenDone = null;
+
+   /** Returns the graph for the given projection choice of the theme's current instance.
+    * <p> If the graph is not ready within WAIT milliseconds, this returns a placeholder panel instead;
+    * once the graph is ready (or has failed), it is added to the theme's cache of graphs, and then whenDone is called,
+    * so that the caller can ask for the graph again.
+    */
+   JPanel getGraph(final VizState view, final AlloyProjection proj, final Runnable whenDone) {
+      JPanel ans = view.getCachedGraph(proj);
+      if (ans!=null) return ans;
+      if (running!=null && runningInstance==view.getOriginalInstance() && runningThemeVersion==view.getThemeVersion() && runningProjection.equals(proj)) {
+         runningWhenDone = whenDone;
+         return placeholder(running, runningStatus, whenDone);
+      }
+      cancel();
+      final int me = generation;
+      final int themeVersion = view.getThemeVersion();
+      final AlloyInstance inst = view.getOriginalInstance();
+      final VizState copy = new VizState(view);
+      final Graph.Seed seed = view.getSeed();
+      final JLabel status = OurUtil.label("Generating the graph...", Color.BLACK);
+      final FutureTask<Graph> task = new FutureTask<Graph>(new Callable<Graph>() {
+         public Graph call() throws Exception {
+            Graph graph = StaticGraphMaker.makeGraph(inst, copy, proj);
+            final String msg = "Laying out " + graph.nodes.size() + " nodes and " + graph.edges.size() + " edges"
+               + (graph.nodes.size() + graph.edges.size() > StaticGraphMaker.MAX_LAYERED ? " as a grid..." : "...");
+            SwingUtilities.invokeLater(new Runnable() {
+               public void run() { status.setText(msg); }
+            });
+            StaticGraphMaker.layout(graph, seed);
+            return graph;
+         }
+      });
+      running = task;
+      runningInstance = inst;
+      runningThemeVersion = themeVersion;
+      runningProjection = proj;
+      runningStatus = status;
+      runningWhenDone = whenDone;
+      Thread thread = new Thread(new Runnable() {
+         public void run() {
+            task.run();
+            SwingUtilities.invokeLater(new Runnable() {
+               public void run() { finish(me, task, view, themeVersion, inst, proj, true); }
+            });
+         }
+      }, "Visualizer layout");
+      thread.setDaemon(true);
+      thread.start();
+      try {
+         task.get(WAIT, TimeUnit.MILLISECONDS);
+         finish(me, task, view, themeVersion, inst, proj, false);
+         return view.getCachedGraph(proj);
+      } catch(TimeoutException ex) {
+         return placeholder(task, status, whenDone);
+      } catch(ExecutionException ex) {
+         finish(me, task, view, themeVersion, inst, proj, false);
+         return view.getCachedGraph(proj);
+      } catch(InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return placeholder(task, status, whenDone);
+      }
+   }
+
+   /** Abandons the layout that is currently running (if any). */
+   void cancel() {
+      generation++;
+      if (running!=null) { running.cancel(true); clear(); }
+   }
+
+   /** Forgets the layout that is currently running. */
+   private void clear() {
+      running = null;
+      runningInstance = null;
+      runningProjection = null;
+      runningStatus = null;
+      runningWhenDone = null;
+   }
+
+   /** If the given layout is still the latest one, then add its graph (or its error) to the theme's cache of graphs, then call the latest callback (if notify==true). */
+   private void finish(int me, FutureTask<Graph> task, VizState view, int themeVersion, AlloyInstance inst, AlloyProjection proj, boolean notify) {
+      if (generation!=me) return;
+      Runnable whenDone = notify ? runningWhenDone : null;
+      clear();
+      generation++; // so that the same layout is never finished twice
+      if (view.getOriginalInstance()!=inst || view.getThemeVersion()!=themeVersion) return;
+      try {
+         view.cacheGraph(proj, task.get());
+      } catch(ExecutionException ex) {
+         view.cacheError(proj, ex.getCause());
+      } catch(Throwable ex) {
+         return; // the layout was cancelled or interrupted
+      }
+      if (whenDone!=null) whenDone.run();
+   }
+
+   /** Returns a placeholder panel showing the given status label, a progress bar, and a button that cancels the given layout. */
+   private JPanel placeholder(final FutureTask<Graph> task, final JLabel status, final Runnable whenDone) {
+      final JProgressBar bar = new JProgressBar();
+      bar.setIndeterminate(true);
+      final JButton button = new JButton("Cancel");
+      button.addActionListener(new ActionListener() {
+         public void actionPerformed(ActionEvent e) {
+            if (running!=task) { whenDone.run(); return; } // the button says "Try again"
+            cancel();
+            status.setText("The layout was cancelled.");
+            bar.setIndeterminate(false);
+            bar.setVisible(false);
+            button.setText("Try again");
+         }
+      });
+      JPanel ans = OurUtil.makeVL(Color.WHITE, 20, status, 10, bar, 10, button);
+      ans.setBorder(null);
+      return ans;
+   }
+}
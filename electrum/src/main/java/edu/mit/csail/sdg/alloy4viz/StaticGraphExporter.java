@@ -0,0 +1,229 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package edu.mit.csail.sdg.alloy4viz;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4graph.Graph;
+
+/** This utility class exports the graph of an instance into a PNG, PDF, or SVG file, without showing any window.
+ *
+ * <p> It can also be run from the command line (and it sets java.awt.headless to true, unless told otherwise, so no display is needed):
+ * <pre> java edu.mit.csail.sdg.alloy4viz.StaticGraphExporter [-theme file.thm] [-state n] [-scale x] [-dpi n] instance.xml output.png </pre>
+ * The output is a PDF file if its name ends with ".pdf", an SVG file if its name ends with ".svg", and a PNG file otherwise.
+ *
+ * <p> To export many instances at once, give the output format instead of the output file:
+ * <pre> java edu.mit.csail.sdg.alloy4viz.StaticGraphExporter [-theme file.thm] [-scale x] [-dpi n] [-threads n] [-dir directory] -format png|pdf|svg instance.xml... </pre>
+ * Then every state of every instance is exported into the given directory (by default, the directory of each instance),
+ * and the instances are exported in parallel (by default, using one thread per processor).
+ * The output files are named after the instance files (followed by "-" and the state number, if there is more than one state),
+ * so two instance files with the same name cannot be exported into the same directory.
+ *
+ * <p> The graphs are drawn directly (no Swing component is ever created), so this can be called from any thread.
+ *
+ * <p><b>Thread Safety:</b> Safe (as long as different threads use different instances);
+ * the instance files are parsed one at a time (since the XML reader is not documented to be thread-safe), while the layouts and drawings run in parallel.
+ */
+
+public final class StaticGraphExporter {
+
+   /** Constructor is private, since this utility class never needs to be instantiated. */
+   private StaticGraphExporter() { }
+
+   /** This lock ensures that only one instance file is parsed at a time. */
+   private static final Object PARSING = new Object();
+
+   /** Builds and lays out the graph of the given instance, using the given theme, and choosing the first atom of each projected type. */
+   static Graph makeLayout(AlloyInstance instance, VizState view) throws Err {
+      return makeLayout(instance, view, null);
+   }
+
+   /** Builds and lays out the graph of the given instance, using the given theme, and choosing the first atom of each projected type
+    * (if seed!=null, the layout starts from the given layout of a similar graph).
+    */
+   static Graph makeLayout(AlloyInstance instance, VizState view, Graph.Seed seed) throws Err {
+      Map<AlloyType,AlloyAtom> map = new LinkedHashMap<AlloyType,AlloyAtom>();
+      for(AlloyType type: view.getProjectedTypes()) {
+         List<AlloyAtom> atoms = instance.type2atoms(type);
+         map.put(type, atoms.isEmpty() ? null : atoms.get(0));
+      }
+      Graph graph = StaticGraphMaker.makeGraph(instance, view, new AlloyProjection(map));
+      StaticGraphMaker.layout(graph, seed);
+      return graph;
+   }
+
+   /** Saves the given graph (which must have been laid out) into the given file; see export() for the parameters. */
+   private static void save(Graph graph, String filename, double scale, int dpi) throws IOException {
+      String name = filename.toLowerCase(Locale.US);
+      if (name.endsWith(".pdf")) graph.writePDF(filename, dpi);
+      else if (name.endsWith(".svg")) graph.writeSVG(filename, scale);
+      else graph.writePNG(filename, scale, dpi, dpi);
+   }
+
+   /** Exports the graph of the given instance into the given file.
+    * @param instance - the instance
+    * @param theme - the theme file (or null if we should use the default theme)
+    * @param filename - the output file (a PDF file if it ends with ".pdf", an SVG file if it ends with ".svg", else a PNG file)
+    * @param scale - the zoom scale of the PNG or SVG image (ignored for PDF)
+    * @param dpi - the dots-per-inch of the PNG image, or of the PDF page (which must be between 50 and 3000)
+    */
+   public static void export(AlloyInstance instance, String theme, String filename, double scale, int dpi) throws Err, IOException {
+      VizState view = new VizState(instance);
+      if (theme!=null) { view.loadPaletteXML(theme); view.loadInstance(instance); }
+      save(makeLayout(instance, view), filename, scale, dpi);
+   }
+
+   /** Exports the graph of every state of the given instance file into the given directory, then returns the files written.
+    * <p> The XML file is only read once, and the layout of each state starts from the layout of the previous state.
+    * @param input - the instance file
+    * @param theme - the theme file (or null if we should use the default theme)
+    * @param dir - the output directory (or null if the output files should be in the same directory as the instance file)
+    * @param format - the output format ("png", "pdf", or "svg")
+    * @param scale - the zoom scale of the PNG or SVG images (ignored for PDF)
+    * @param dpi - the dots-per-inch of the PNG images, or of the PDF pages (which must be between 50 and 3000)
+    */
+   public static List<String> exportAll(File input, String theme, File dir, String format, double scale, int dpi) throws Err, IOException {
+      List<String> ans = new ArrayList<String>();
+      StaticTrace trace;
+      synchronized(PARSING) { trace = new StaticTrace(input); }
+      String base = target(input, dir).getPath();
+      int last = trace.getLastState();
+      VizState view = null;
+      Graph.Seed seed = null;
+      for(int state=0; state<=last; state++) {
+         AlloyInstance instance = trace.getInstance(state);
+         if (view==null) { view = new VizState(instance); if (theme!=null) view.loadPaletteXML(theme); }
+         view.loadInstance(instance);
+         Graph graph = makeLayout(instance, view, seed);
+         seed = graph.seed();
+         String filename = (last>0 ? base+"-"+state : base) + "." + format;
+         save(graph, filename, scale, dpi);
+         ans.add(filename);
+      }
+      return ans;
+   }
+
+   /** Returns the name of the output files of the given instance file, without the state number and the extension; see exportAll() for the parameters. */
+   private static File target(File input, File dir) {
+      String base = input.getName();
+      if (base.toLowerCase(Locale.US).endsWith(".xml")) base = base.substring(0, base.length()-4);
+      return new File(dir==null ? input.getAbsoluteFile().getParentFile() : dir, base);
+   }
+
+   /** Calls exportAll() on each of the given instance files, using the given number of threads,
+    * then returns the number of instance files that could not be exported (each error is reported to System.err).
+    * <p> If several instance files would be exported to the same output files, only the first one is exported.
+    */
+   public static int exportAll(List<File> allInputs, final String theme, final File dir, final String format, final double scale, final int dpi, int threads) {
+      // we check this up front, since those instance files would otherwise overwrite each other's output files concurrently
+      Map<String,File> targets = new HashMap<String,File>();
+      List<File> inputs = new ArrayList<File>();
+      int failures = 0;
+      for(File input: allInputs) {
+         String target = Util.canon(target(input, dir).getPath());
+         File old = targets.get(target);
+         if (old==null) { targets.put(target, input); inputs.add(input); continue; }
+         System.err.println("Error exporting " + input + ": it would overwrite the files exported from " + old);
+         failures++;
+      }
+      if (inputs.isEmpty()) return failures;
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, inputs.size())));
+      List<Future<List<String>>> tasks = new ArrayList<Future<List<String>>>();
+      for(final File input: inputs) tasks.add(executor.submit(new Callable<List<String>>() {
+         public List<String> call() throws Exception { return exportAll(input, theme, dir, format, scale, dpi); }
+      }));
+      executor.shutdown();
+      for(int i=0; i<tasks.size(); i++) {
+         try {
+            tasks.get(i).get();
+         } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            return failures + tasks.size() - i;
+         } catch(ExecutionException ex) {
+            System.err.println("Error exporting " + inputs.get(i) + ": " + ex.getCause());
+            failures++;
+         }
+      }
+      return failures;
+   }
+
+   /** The command line entry point; see the class documentation for the arguments. */
+   public static void main(String[] args) {
+      if (System.getProperty("java.awt.headless")==null) System.setProperty("java.awt.headless", "true");
+      String theme = null, format = null, dir = null;
+      List<String> files = new ArrayList<String>();
+      int state = 0, dpi = 72, threads = Runtime.getRuntime().availableProcessors();
+      double scale = 1;
+      boolean ok = true, hasState = false;
+      try {
+         for(int i=0; i<args.length && ok; i++) {
+            if (args[i].equals("-theme") && i+1<args.length) theme = args[++i];
+            else if (args[i].equals("-state") && i+1<args.length) { state = Integer.parseInt(args[++i]); hasState = true; }
+            else if (args[i].equals("-scale") && i+1<args.length) scale = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-dpi") && i+1<args.length) dpi = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-threads") && i+1<args.length) threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-dir") && i+1<args.length) dir = args[++i];
+            else if (args[i].equals("-format") && i+1<args.length) format = args[++i].toLowerCase(Locale.US);
+            else if (!args[i].startsWith("-")) files.add(args[i]);
+            else ok = false;
+         }
+      } catch(NumberFormatException ex) {
+         ok = false;
+      }
+      if (format!=null) ok = ok && files.size()>0 && (format.equals("png") || format.equals("pdf") || format.equals("svg")) && threads>0 && !hasState;
+         else ok = ok && files.size()==2 && state>=0 && dir==null;
+      if (!ok || !(scale>0) || dpi<50 || dpi>3000) {
+         System.err.println("Usage: java " + StaticGraphExporter.class.getName()
+            + " [-theme file.thm] [-state n] [-scale x] [-dpi n] instance.xml output.png|output.pdf|output.svg");
+         System.err.println("   or: java " + StaticGraphExporter.class.getName()
+            + " [-theme file.thm] [-scale x] [-dpi n] [-threads n] [-dir directory] -format png|pdf|svg instance.xml...");
+         System.err.println("(the scale must be positive, and the dpi must be between 50 and 3000; with -format, every state is exported, so -state is not allowed)");
+         System.exit(1);
+         return;
+      }
+      if (format!=null) {
+         List<File> inputs = new ArrayList<File>();
+         for(String file: files) inputs.add(new File(file));
+         if (exportAll(inputs, theme, dir==null ? null : new File(dir), format, scale, dpi, threads) > 0) System.exit(1);
+         return;
+      }
+      String input = files.get(0), output = files.get(1);
+      try {
+         AlloyInstance instance;
+         synchronized(PARSING) { instance = StaticInstanceReader.parseInstance(new File(input), state); }
+         export(instance, theme, output, scale, dpi);
+      } catch(Throwable ex) {
+         System.err.println("Error exporting " + input + " to " + output + ": " + ex);
+         System.exit(1);
+      }
+   }
+}
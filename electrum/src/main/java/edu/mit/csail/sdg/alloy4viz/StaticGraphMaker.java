@@ -69,14 +69,34 @@ public final class StaticGraphMaker {
    /** The resulting graph. */
    private final Graph graph;
 
+   /** Graphs with more nodes and edges than this (in total) are laid out as a grid, since the usual layout would take too long. */
+   static final int MAX_LAYERED = 10000;
+
    /** Produces a single Graph from the given Instance and View and choice of Projection */
    public static JPanel produceGraph(AlloyInstance instance, VizState view, AlloyProjection proj) throws ErrorFatal {
+      Graph graph = makeGraph(instance, view, proj);
+      layout(graph, null);
+      return new GraphViewer(graph);
+   }
+
+   /** Lays out the given graph, starting from the given seed (which can be null); if the graph has more than MAX_LAYERED nodes and edges,
+    * then it is laid out as a grid instead.
+    */
+   static void layout(Graph graph, Graph.Seed seed) {
+      if (graph.nodes.size() + graph.edges.size() > MAX_LAYERED) graph.layoutGrid(); else graph.layout(seed);
+   }
+
+   /** Produces a single Graph (that has not been laid out yet) from the given Instance and View and choice of Projection.
+    * <p> This does not modify the given View, and only reads it at the beginning (so the Graph can be made in a background thread
+    * if the caller hands over a private copy of the View).
+    */
+   static Graph makeGraph(AlloyInstance instance, VizState view, AlloyProjection proj) throws ErrorFatal {
       view = new VizState(view);
       if (proj == null) proj = new AlloyProjection();
       Graph graph = new Graph(view.getFontSize() / 12.0D);
       new StaticGraphMaker(graph, instance, view, proj);
       if (graph.nodes.size()==0) new GraphNode(graph, "", "Due to your theme settings, every atom is hidden.", "Please click Theme and adjust your settings.");
-      return new GraphViewer(graph);
+      return graph;
    }
 
    /** The list of colors, in order, to assign each legend. */
@@ -221,14 +221,17 @@ public final class StaticInstanceReader {
    }
 
 
-   /** Parse the file into an AlloyInstance if possible. */
-   // [HASLab] particular state
-   private StaticInstanceReader(XMLNode root, int state) throws Err {
+   /** Returns true if the given XML file describes a metamodel. */
+   static boolean isMeta(XMLNode root) throws Err {
       XMLNode inst = null;
       for(XMLNode sub: root) if (sub.is("instance")) { inst=sub; break; }
       if (inst==null) throw new ErrorSyntax("The XML file must contain an <instance> element.");
-      boolean isMeta = "yes".equals(inst.getAttribute("metamodel"));
-      A4Solution sol = A4SolutionReader.read(new ArrayList<Sig>(), root);
+      return "yes".equals(inst.getAttribute("metamodel"));
+   }
+
+   /** Build the AlloyInstance for the given state of the given solution. */
+   // [HASLab] particular state
+   private StaticInstanceReader(A4Solution sol, boolean isMeta, int state) throws Err {
       for (Sig s:sol.getAllReachableSigs()) if (s instanceof PrimSig && ((PrimSig)s).parent==Sig.UNIV) toplevels.add((PrimSig)s);
       if (!isMeta) {
          sig2type.put(Sig.UNIV, AlloyType.UNIV);
@@ -299,11 +302,22 @@ public final class StaticInstanceReader {
       ans=new AlloyInstance(sol, sol.getOriginalFilename(), sol.getOriginalCommand(), am, atom2sets, rels, isMeta);
    }
 
+   /** Parse the XML file into an AlloyInstance if possible. */
+   private static AlloyInstance parseInstance(XMLNode root, int state) throws Err {
+      boolean isMeta = isMeta(root);
+      return parseInstance(A4SolutionReader.read(new ArrayList<Sig>(), root), isMeta, state);
+   }
+
+   /** Build the AlloyInstance for the given state of a solution that has already been read from an XML file. */
+   static AlloyInstance parseInstance(A4Solution sol, boolean isMeta, int state) throws Err {
+      return (new StaticInstanceReader(sol, isMeta, state)).ans;
+   }
+
    /** Parse the file into an AlloyInstance if possible. */
    // [HASLab]
    public static AlloyInstance parseInstance(File file, int state) throws Err {
       try {
-         return (new StaticInstanceReader(new XMLNode(file), state)).ans; // [HASLab]
+         return parseInstance(new XMLNode(file), state); // [HASLab]
       } catch(IOException ex) {
          throw new ErrorFatal("Error reading the XML file: " + ex, ex);
       }
@@ -313,7 +327,7 @@ public final class StaticInstanceReader {
    // [HASLab]
    public static AlloyInstance parseInstance(Reader reader, int state) throws Err {
       try {
-         return (new StaticInstanceReader(new XMLNode(reader),state)).ans; // [HASLab]
+         return parseInstance(new XMLNode(reader), state); // [HASLab]
       } catch(IOException ex) {
          throw new ErrorFatal("Error reading the XML file: " + ex, ex);
       }
@@ -24,6 +24,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 /** This utility class performs projection of AlloyModel and AlloyInstance.
  *
@@ -115,46 +116,143 @@ public final class StaticProjector {
     * <br> If rule (2) is violated, then some tuples may not show up in the return value.
     */
    public static AlloyInstance project(AlloyInstance oldInstance, AlloyProjection projection) {
-      Map<AlloyRelation,List<Integer>> data=new LinkedHashMap<AlloyRelation,List<Integer>>();
-      Map<AlloyAtom,Set<AlloySet>> atom2sets = new LinkedHashMap<AlloyAtom,Set<AlloySet>>();
-      Map<AlloyRelation,Set<AlloyTuple>> rel2tuples = new LinkedHashMap<AlloyRelation,Set<AlloyTuple>>();
-      AlloyModel newModel = project(oldInstance.model, projection.getProjectedTypes(), data);
-      // First put all the atoms from the old instance into the new one
-      for(AlloyAtom atom:oldInstance.getAllAtoms()) {
-         atom2sets.put(atom, new LinkedHashSet<AlloySet>(oldInstance.atom2sets(atom)));
-      }
-      // Now, decide what tuples to generate
-      for(AlloyRelation r:oldInstance.model.getRelations()) {
-         List<Integer> list=data.get(r);
-         if (list==null) continue; // This means that relation was deleted entirely
-         tupleLabel:
-            for(AlloyTuple oldTuple:oldInstance.relation2tuples(r)) {
-               for (Integer i:list) {
-                  // If an atom in the original tuple should be projected, but it doesn't match the
-                  // chosen atom for that type, then this tuple must not be included in the new instance
-                  AlloyAtom a=oldTuple.getAtoms().get(i);
-                  AlloyType bt=r.getTypes().get(i);
-                  bt=oldInstance.model.getTopmostSuperType(bt);
-                  if (!a.equals(projection.getProjectedAtom(bt))) continue tupleLabel;
-               }
+      return slices(oldInstance, projection.getProjectedTypes()).project(oldInstance, projection);
+   }
+
+   /** Maps each instance to the slices most recently computed for it (an entry is dropped once its instance is no longer used); guarded by itself. */
+   private static final Map<AlloyInstance,Slices> cache = new WeakHashMap<AlloyInstance,Slices>();
+
+   /** Returns the slices of the given instance over the given collection of types;
+    * the answer is cached, so switching between the atoms of the same projected types
+    * does not have to go through every tuple of the instance again.
+    */
+   static Slices slices(AlloyInstance instance, Collection<AlloyType> types) {
+      Slices ans;
+      synchronized(cache) { ans = cache.get(instance); }
+      if (ans!=null && ans.types.equals(new LinkedHashSet<AlloyType>(types))) return ans;
+      ans = new Slices(instance, types); // this is computed outside the lock, so that different instances can be sliced at the same time
+      synchronized(cache) { cache.put(instance, ans); }
+      return ans;
+   }
+
+   /** Immutable; this groups the tuples of every relation of an instance by the atoms in the columns that
+    * a given projection removes, so that projecting over any choice of atoms is just a lookup.
+    *
+    * <p><b>Thread Safety:</b> Safe.
+    */
+   static final class Slices {
+
+      /** The types being projected. */
+      final Set<AlloyType> types;
+
+      /** The projected model. */
+      private final AlloyModel model;
+
+      /** For each relation that survives the projection (in the original order), its slices. */
+      private final List<Slice> slices = new ArrayList<Slice>();
+
+      /** The last few projected instances (least recently used first). */
+      private final LinkedHashMap<AlloyProjection,AlloyInstance> recent = new LinkedHashMap<AlloyProjection,AlloyInstance>(16, 0.75f, true);
+
+      /** The maximum number of projected instances to remember. */
+      private static final int RECENT = 4;
+
+      /** Constructs the slices of the given instance over the given collection of types. */
+      Slices(AlloyInstance instance, Collection<AlloyType> types) {
+         Map<AlloyRelation,List<Integer>> data=new LinkedHashMap<AlloyRelation,List<Integer>>();
+         this.types = new LinkedHashSet<AlloyType>(types);
+         this.model = StaticProjector.project(instance.model, types, data);
+         for(AlloyRelation r:instance.model.getRelations()) {
+            List<Integer> list=data.get(r);
+            if (list==null) continue; // This means that relation was deleted entirely
+            List<AlloyType> columns=new ArrayList<AlloyType>(list.size());
+            for(Integer i:list) columns.add(instance.model.getTopmostSuperType(r.getTypes().get(i)));
+            List<AlloyType> newObj=r.project(list);
+            Slice slice=new Slice(columns, newObj.size()>1 ? new AlloyRelation(r.getName(), r.isPrivate, r.isMeta, r.isVar, newObj) : null,
+               newObj.size()==1 ? new AlloySet(r.getName(), r.isPrivate, r.isMeta, r.isVar, newObj.get(0)) : null); // [HASLab]
+            for(AlloyTuple oldTuple:instance.relation2tuples(r)) {
+               List<AlloyAtom> key=new ArrayList<AlloyAtom>(list.size());
+               for(Integer i:list) key.add(oldTuple.getAtoms().get(i));
                List<AlloyAtom> newTuple=oldTuple.project(list);
-               List<AlloyType> newObj=r.project(list);
-               if (newObj.size()>1 && newTuple.size()>1) {
-                  AlloyRelation r2=new AlloyRelation(r.getName(), r.isPrivate, r.isMeta, r.isVar, newObj); // [HASLab]
-                  Set<AlloyTuple> answer=rel2tuples.get(r2);
-                  if (answer==null) rel2tuples.put(r2, answer=new LinkedHashSet<AlloyTuple>());
-                  answer.add(new AlloyTuple(newTuple));
-               } else if (newObj.size()==1 && newTuple.size()==1) {
-                  AlloyAtom a=newTuple.get(0);
+               List<Object> group=slice.groups.get(key);
+               if (slice.relation!=null && newTuple.size()>1) {
+                  if (group==null) slice.groups.put(key, group=new ArrayList<Object>());
+                  group.add(new AlloyTuple(newTuple));
+               } else if (slice.set!=null && newTuple.size()==1) {
+                  if (group==null) slice.groups.put(key, group=new ArrayList<Object>());
+                  group.add(newTuple.get(0));
+               }
+            }
+            slices.add(slice);
+         }
+      }
+
+      /** Project the instance (which must be the instance these slices were computed from) over the given list of types (and their associated chosen atom);
+       * see StaticProjector.project(AlloyInstance, AlloyProjection) for the rules.
+       * <p> The slices do not keep the instance itself, so that they can be cached by the instance without keeping it alive.
+       */
+      AlloyInstance project(AlloyInstance instance, AlloyProjection projection) {
+         synchronized(recent) {
+            AlloyInstance ans=recent.get(projection);
+            if (ans!=null) return ans;
+         }
+         Map<AlloyAtom,Set<AlloySet>> atom2sets = new LinkedHashMap<AlloyAtom,Set<AlloySet>>();
+         Map<AlloyRelation,Set<AlloyTuple>> rel2tuples = new LinkedHashMap<AlloyRelation,Set<AlloyTuple>>();
+         // First put all the atoms from the old instance into the new one
+         for(AlloyAtom atom:instance.getAllAtoms()) {
+            atom2sets.put(atom, new LinkedHashSet<AlloySet>(instance.atom2sets(atom)));
+         }
+         // Now, pick the slice of each relation that matches the chosen atoms
+         for(Slice slice:slices) {
+            List<AlloyAtom> key=new ArrayList<AlloyAtom>(slice.columns.size());
+            for(AlloyType t:slice.columns) key.add(projection.getProjectedAtom(t));
+            List<Object> group=slice.groups.get(key);
+            if (group==null) continue;
+            if (slice.relation!=null) {
+               Set<AlloyTuple> answer=rel2tuples.get(slice.relation);
+               if (answer==null) rel2tuples.put(slice.relation, answer=new LinkedHashSet<AlloyTuple>());
+               for(Object x:group) answer.add((AlloyTuple)x);
+            } else {
+               for(Object x:group) {
+                  AlloyAtom a=(AlloyAtom)x;
                   Set<AlloySet> answer=atom2sets.get(a);
                   if (answer==null) atom2sets.put(a, answer=new LinkedHashSet<AlloySet>());
-                  answer.add(new AlloySet(r.getName(), r.isPrivate, r.isMeta, r.isVar, newObj.get(0))); // [HASLab]
+                  answer.add(slice.set);
                }
             }
+         }
+         // Here, we don't have to explicitly filter out "illegal" atoms/tuples/...
+         // (that is, atoms that belong to types that no longer exist, etc).
+         // That's because AlloyInstance's constructor must do the check too, so there's no point in doing that twice.
+         AlloyInstance ans=new AlloyInstance(instance.originalA4, instance.filename, instance.commandname, model, atom2sets, rel2tuples, instance.isMetamodel);
+         synchronized(recent) {
+            recent.put(projection, ans);
+            if (recent.size()>RECENT) recent.remove(recent.keySet().iterator().next());
+         }
+         return ans;
+      }
+   }
+
+   /** Mutable during construction only; the slices of one relation. */
+   private static final class Slice {
+
+      /** The topmost types of the columns removed from the relation. */
+      final List<AlloyType> columns;
+
+      /** If nonnull, the relation that this relation becomes. */
+      final AlloyRelation relation;
+
+      /** If nonnull, the set that this relation becomes. */
+      final AlloySet set;
+
+      /** Maps the atoms in the removed columns to the projected tuples (or the projected atoms, if this relation becomes a set). */
+      final Map<List<AlloyAtom>,List<Object>> groups = new LinkedHashMap<List<AlloyAtom>,List<Object>>();
+
+      /** Constructs an empty slice. */
+      Slice(List<AlloyType> columns, AlloyRelation relation, AlloySet set) {
+         this.columns = columns;
+         this.relation = relation;
+         this.set = set;
       }
-      // Here, we don't have to explicitly filter out "illegal" atoms/tuples/...
-      // (that is, atoms that belong to types that no longer exist, etc).
-      // That's because AlloyInstance's constructor must do the check too, so there's no point in doing that twice.
-      return new AlloyInstance(oldInstance.originalA4, oldInstance.filename, oldInstance.commandname, newModel, atom2sets, rel2tuples, oldInstance.isMetamodel);
    }
 }
@@ -0,0 +1,98 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ * Electrum -- Copyright (c) 2015-present, Nuno Macedo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4viz;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4.XMLNode;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4SolutionReader;
+
+/** Mutable; this holds a trace XML file that has been parsed once, so that moving between its states does not reread the file.
+ *
+ * <p> The AlloyInstance for each state is built the first time it is requested,
+ * and the instances of the most recently visited states are remembered.
+ *
+ * <p><b>Thread Safety:</b> Safe (the states are built one at a time, since the underlying A4Solution is not thread-safe).
+ */
+
+public final class StaticTrace {
+
+   /** The maximum number of states whose AlloyInstance we remember. */
+   private static final int MAXCACHE = 16;
+
+   /** The canonical filename of the XML file. */
+   private final String filename;
+
+   /** The timestamp and the length of the XML file when it was loaded (so we can detect if it has been overwritten since). */
+   private final long lastModified, length;
+
+   /** Whether the XML file describes a metamodel. */
+   private final boolean isMeta;
+
+   /** The solution read from the XML file; it is shared by every state. */
+   private final A4Solution sol;
+
+   /** Maps each recently visited state to its AlloyInstance, from the least recently used to the most recently used. */
+   private final LinkedHashMap<Integer,AlloyInstance> states = new LinkedHashMap<Integer,AlloyInstance>(16, 0.75f, true) {
+      private static final long serialVersionUID = 0;
+      @Override protected boolean removeEldestEntry(Map.Entry<Integer,AlloyInstance> eldest) { return size() > MAXCACHE; }
+   };
+
+   /** Reads and parses the given XML file. */
+   public StaticTrace(File file) throws Err {
+      this.filename = Util.canon(file.getPath());
+      this.lastModified = file.lastModified();
+      this.length = file.length();
+      try {
+         XMLNode root = new XMLNode(file);
+         this.isMeta = StaticInstanceReader.isMeta(root);
+         this.sol = A4SolutionReader.read(new ArrayList<Sig>(), root);
+      } catch(IOException ex) {
+         throw new ErrorFatal("Error reading the XML file: " + ex, ex);
+      }
+   }
+
+   /** Returns true if this trace was loaded from the given file, and the file has not changed since. */
+   public boolean isFor(File file) {
+      return filename.equals(Util.canon(file.getPath())) && file.lastModified()==lastModified && file.length()==length;
+   }
+
+   /** Returns the index of the last state of the trace. */
+   public synchronized int getLastState() { return sol.getLastState(); }
+
+   /** Returns the index of the state that follows the last state. */
+   public synchronized int getLoopState() { return sol.getLoopState(); }
+
+   /** Returns the AlloyInstance for the given state. */
+   public synchronized AlloyInstance getInstance(int state) throws Err {
+      AlloyInstance ans = states.get(state);
+      if (ans==null) {
+         ans = StaticInstanceReader.parseInstance(sol, isMeta, state);
+         states.put(state, ans);
+      }
+      return ans;
+   }
+}
@@ -0,0 +1,172 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ * Electrum -- Copyright (c) 2015-present, Nuno Macedo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4viz;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import edu.mit.csail.sdg.alloy4graph.Graph;
+
+/** Mutable; this speculatively builds and lays out the graphs of the states next to the current state of a trace,
+ * in a background thread, so that stepping forward or backward through the trace does not have to wait for the layout.
+ *
+ * <p> A graph prepared in advance is only used if it was prepared for the same trace, the same projection, and the same theme;
+ * graphs for states that are no longer next to the current state, or for an older theme, are cancelled.
+ *
+ * <p><b>Thread Safety:</b> Can be called only by the AWT event thread (the background thread only works on private copies).
+ */
+
+final class TracePrefetcher {
+
+   /** Immutable; this is a graph that is being prepared (or has been prepared) for a given state. */
+   private static final class Task {
+      /** The trace. */
+      private final StaticTrace trace;
+      /** The theme that the graph is prepared for. */
+      private final VizState view;
+      /** The version of that theme. */
+      private final int themeVersion;
+      /** The projection that was current when the task was created (the projection for the new state is derived from it). */
+      private final AlloyProjection proj;
+      /** The instance and projection and graph (once they are ready). */
+      private final Future<Object[]> future;
+      /** Constructs a new task. */
+      private Task(StaticTrace trace, VizState view, AlloyProjection proj, Future<Object[]> future) {
+         this.trace = trace;
+         this.view = view;
+         this.themeVersion = view.getThemeVersion();
+         this.proj = proj;
+         this.future = future;
+      }
+      /** Returns true if this task was created for the given trace and theme and projection, and the theme has not changed since. */
+      private boolean isFor(StaticTrace trace, VizState view, AlloyProjection proj) {
+         return this.trace==trace && this.view==view && themeVersion==view.getThemeVersion() && this.proj.equals(proj);
+      }
+   }
+
+   /** The background thread (created when first needed). */
+   private ExecutorService executor = null;
+
+   /** Maps each state to the task that is preparing its graph. */
+   private final Map<Integer,Task> tasks = new LinkedHashMap<Integer,Task>();
+
+   /** Returns the states that the user is most likely to visit after the given state (the previous state, the next state, and the loop target). */
+   static List<Integer> neighbours(StaticTrace trace, int state) {
+      List<Integer> ans = new ArrayList<Integer>(3);
+      int last = trace.getLastState(), loop = trace.getLoopState();
+      if (state<last) ans.add(state+1); else if (loop!=state) ans.add(loop);
+      if (state>0 && !ans.contains(state-1)) ans.add(state-1);
+      return ans;
+   }
+
+   /** Starts preparing the graphs of the given states (unless they're already being prepared), and cancels every other task.
+    * @param trace - the trace
+    * @param view - the current theme (it will be copied right away)
+    * @param proj - the current projection
+    * @param states - the states to prepare
+    */
+   void prefetch(final StaticTrace trace, VizState view, final AlloyProjection proj, Collection<Integer> states) {
+      for(Iterator<Map.Entry<Integer,Task>> it = tasks.entrySet().iterator(); it.hasNext();) {
+         Map.Entry<Integer,Task> e = it.next();
+         if (!states.contains(e.getKey()) || !e.getValue().isFor(trace, view, proj)) { e.getValue().future.cancel(true); it.remove(); }
+      }
+      // Remember the atoms of each projected type in the current instance, so that we can guess what projection the next state will use
+      final Map<AlloyType,List<AlloyAtom>> current = new LinkedHashMap<AlloyType,List<AlloyAtom>>();
+      for(AlloyType t: proj.getProjectedTypes()) current.put(t, sorted(view.getOriginalInstance().type2atoms(t)));
+      final Graph.Seed seed = view.getSeed();
+      for(final Integer state: states) if (!tasks.containsKey(state)) {
+         final VizState copy = new VizState(view);
+         if (executor==null) executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Visualizer prefetch");
+               t.setDaemon(true);
+               t.setPriority(Thread.MIN_PRIORITY);
+               return t;
+            }
+         });
+         Future<Object[]> future = executor.submit(new Callable<Object[]>() {
+            public Object[] call() throws Exception {
+               AlloyInstance inst = trace.getInstance(state);
+               if (Thread.interrupted()) throw new CancellationException();
+               copy.loadInstance(inst);
+               AlloyProjection p = guess(proj, current, inst);
+               Graph graph = StaticGraphMaker.makeGraph(inst, copy, p);
+               if (Thread.interrupted()) throw new CancellationException();
+               StaticGraphMaker.layout(graph, seed);
+               return new Object[]{inst, p, graph};
+            }
+         });
+         tasks.put(state, new Task(trace, view, proj, future));
+      }
+   }
+
+   /** If the graph for the given state has been prepared (or is being prepared) for the given trace and theme and projection,
+    * then wait for it and add it to the theme's cache of graphs (assuming the theme has already loaded the instance of that state).
+    * <p> Since this is called by the AWT event thread, it waits for at most BackgroundLayout.WAIT milliseconds;
+    * if the graph still isn't ready by then, the task is cancelled and the graph will be laid out again in the usual way.
+    */
+   void take(StaticTrace trace, VizState view, AlloyProjection proj, int state) {
+      Task task = tasks.remove(state);
+      if (task==null || !task.isFor(trace, view, proj)) { if (task!=null) task.future.cancel(true); return; }
+      try {
+         Object[] ans = task.future.get(BackgroundLayout.WAIT, TimeUnit.MILLISECONDS);
+         if (ans[0]==view.getOriginalInstance()) view.cacheGraph((AlloyProjection)ans[1], (Graph)ans[2]);
+      } catch(Throwable ex) {
+         // the graph will simply be generated again in the usual way
+         task.future.cancel(true);
+      }
+   }
+
+   /** Cancels every task. */
+   void cancel() {
+      for(Task task: tasks.values()) task.future.cancel(true);
+      tasks.clear();
+   }
+
+   /** Returns a sorted copy of the given list. */
+   private static List<AlloyAtom> sorted(List<AlloyAtom> atoms) {
+      atoms = new ArrayList<AlloyAtom>(atoms);
+      Collections.sort(atoms);
+      return atoms;
+   }
+
+   /** Guess the projection that the graph panel will choose for the given instance, given its current projection.
+    * <p> (If the atoms of a projected type are unchanged, the same atom remains selected; otherwise the first atom is selected.)
+    */
+   private static AlloyProjection guess(AlloyProjection proj, Map<AlloyType,List<AlloyAtom>> current, AlloyInstance inst) {
+      if (current.isEmpty()) return proj;
+      Map<AlloyType,AlloyAtom> map = new LinkedHashMap<AlloyType,AlloyAtom>();
+      for(Map.Entry<AlloyType,List<AlloyAtom>> e: current.entrySet()) {
+         List<AlloyAtom> atoms = sorted(inst.type2atoms(e.getKey()));
+         if (atoms.equals(e.getValue())) map.put(e.getKey(), proj.getProjectedAtom(e.getKey()));
+         else map.put(e.getKey(), atoms.isEmpty() ? null : atoms.get(0));
+      }
+      return new AlloyProjection(map);
+   }
+}
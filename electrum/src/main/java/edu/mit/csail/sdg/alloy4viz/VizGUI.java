@@ -56,9 +56,12 @@ import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTextArea;
+import javax.swing.JTextField;
 import javax.swing.JToolBar;
 import javax.swing.ListCellRenderer;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.plaf.basic.BasicSplitPaneUI;
 
 import edu.mit.csail.sdg.alloy4.A4Preferences.IntPref;
@@ -192,6 +195,15 @@ public final class VizGUI implements ComponentListener {
 	   /** Returns the current XML filename; "" if no file is currently loaded. */
 	   public String getXMLfilename() { return xmlFileName; }
 
+	   /** The parsed trace of the current XML file (so that moving between states does not reread the file); null if not loaded yet. */
+	   private StaticTrace trace = null;
+
+	   /** The state of the trace that is currently displayed. */
+	   private int state = 0;
+
+	   /** This prepares the graphs of the states next to the current state in the background. */
+	   private final TracePrefetcher prefetcher = new TracePrefetcher();
+
 	   //==============================================================================================//
 
 	   /** The list of XML files loaded in this session so far. */
@@ -554,7 +566,21 @@ public final class VizGUI implements ComponentListener {
 	               public final void focusGained(FocusEvent e) { t.requestFocusInWindow(); }
 	               public final void focusLost(FocusEvent e) { }
 	            });
-	            content = scroll;
+	            final JTextField filter = OurUtil.textfield("", 20);
+	            filter.setToolTipText("Only show the atoms whose name starts with this text");
+	            filter.getDocument().addDocumentListener(new DocumentListener() {
+	               public final void insertUpdate(DocumentEvent e) { t.setFilter(filter.getText()); }
+	               public final void removeUpdate(DocumentEvent e) { t.setFilter(filter.getText()); }
+	               public final void changedUpdate(DocumentEvent e) { t.setFilter(filter.getText()); }
+	            });
+	            JPanel filterBox = new JPanel(new BorderLayout());
+	            filterBox.setBorder(new EmptyBorder(2, 2, 2, 2));
+	            filterBox.add(OurUtil.label(" Filter: "), BorderLayout.WEST);
+	            filterBox.add(filter, BorderLayout.CENTER);
+	            JPanel treeArea = new JPanel(new BorderLayout());
+	            treeArea.add(filterBox, BorderLayout.NORTH);
+	            treeArea.add(scroll, BorderLayout.CENTER);
+	            content = treeArea;
 	            break;
 	         }
 	         case TEXT: {
@@ -619,6 +645,11 @@ public final class VizGUI implements ComponentListener {
 	      if (settingsOpen!=2) content.requestFocusInWindow(); else myEvaluatorPanel.requestFocusInWindow();
 	      repopulateProjectionPopup();
 	      if (frame!=null) frame.validate(); else splitpane.validate();
+	      // Finally, start preparing the graphs of the states that the user is likely to visit next
+	      if (trace!=null && currentMode==VisualizerMode.Viz && myGraphPanel!=null && myGraphPanel.getProjection()!=null)
+	         prefetcher.prefetch(trace, myState, myGraphPanel.getProjection(), TracePrefetcher.neighbours(trace, state));
+	      else
+	         prefetcher.cancel();
 	   }
 
 	   /** Helper method that creates a button and add it to both the "SolutionButtons" list, as well as the toolbar. */
@@ -677,6 +708,7 @@ public final class VizGUI implements ComponentListener {
 
 	   /** Load the XML instance. */
 	   public void loadXML(final String fileName, boolean forcefully) {
+		   if (forcefully) trace = null; // the file may have been overwritten with a new instance
 		   loadXML(fileName, forcefully, 0); // [HASLab] first state
 		   repopulateTemporalPanel(); // [HASLab] must only be initially and not whenever the state changes
 	   }
@@ -690,8 +722,10 @@ public final class VizGUI implements ComponentListener {
 	         AlloyInstance myInstance;
 	         try {
 	            if (!f.exists()) throw new IOException("File " + xmlFileName + " does not exist.");
-	            myInstance = StaticInstanceReader.parseInstance(f,state); // [HASLab] state
+	            if (trace==null || !trace.isFor(f)) { trace = null; trace = new StaticTrace(f); }
+	            myInstance = trace.getInstance(state); // [HASLab] state
 	         } catch (Throwable e) {
+	            trace = null;
 	            xmlLoaded.remove(fileName);
 	            xmlLoaded.remove(xmlFileName);
 	            OurDialog.alert("Cannot read or parse Alloy instance: "+xmlFileName+"\n\nError: "+e.getMessage());
@@ -702,6 +736,8 @@ public final class VizGUI implements ComponentListener {
 	            return;
 	         }
 	         if (myState==null) myState=new VizState(myInstance); else myState.loadInstance(myInstance);
+	         if (myGraphPanel!=null) prefetcher.take(trace, myState, myGraphPanel.getProjection(), state);
+	         this.state = state;
 	         repopulateProjectionPopup();
 	         xml2title.put(xmlFileName, makeVizTitle());
 	         this.xmlFileName = xmlFileName;
@@ -805,6 +841,9 @@ public final class VizGUI implements ComponentListener {
 	      if (wrap) return wrapMe();
 	      xmlLoaded.clear();
 	      xmlFileName="";
+	      trace = null;
+	      prefetcher.cancel();
+	      if (myGraphPanel!=null) myGraphPanel.cancelLayout();
 	      if (standalone) System.exit(0); else if (frame!=null) frame.setVisible(false);
 	      return null;
 	   }
@@ -1143,7 +1182,8 @@ public final class VizGUI implements ComponentListener {
 					xmlLoaded.remove(getXMLfilename());
 					if (comboTime.getSelectedIndex() >= 0)  {
 						loadXML(getXMLfilename(), true, comboTime.getSelectedIndex());
-						if (thmFileName != "") loadThemeFile(thmFileName);
+						// reloading an unmodified theme would give the same theme, but would discard the graphs prepared in advance
+						if (thmFileName != "" && myState.changedSinceLastSave()) loadThemeFile(thmFileName);
 					}
 				}
 		
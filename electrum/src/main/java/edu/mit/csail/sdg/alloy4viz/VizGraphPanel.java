@@ -52,6 +52,7 @@ import edu.mit.csail.sdg.alloy4.OurBorder;
 import edu.mit.csail.sdg.alloy4.OurCombobox;
 import edu.mit.csail.sdg.alloy4.OurUtil;
 import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4graph.Graph;
 import edu.mit.csail.sdg.alloy4graph.GraphViewer;
 
 /** GUI panel that houses the actual graph, as well as any projection comboboxes.
@@ -73,6 +74,9 @@ public final class VizGraphPanel extends JPanel {
    /** The current GraphViewer (or null if we are not looking at a GraphViewer) */
    private GraphViewer viewer=null;
 
+   /** This lays out the graphs in a background thread. */
+   private final BackgroundLayout backgroundLayout = new BackgroundLayout();
+
    /** The scrollpane containing the upperhalf of the panel (showing the graph) */
    private final JScrollPane diagramScrollPanel;
 
@@ -239,7 +243,9 @@ public final class VizGraphPanel extends JPanel {
          map.put(tp.getAlloyType(), tp.getAlloyAtom());
       }
       currentProjection = new AlloyProjection(map);
-      JPanel graph = vizState.getGraph(currentProjection);
+      JPanel graph = backgroundLayout.getGraph(vizState, currentProjection, new Runnable() {
+         public void run() { remakeAll(); }
+      });
       if (seeDot && (graph instanceof GraphViewer)) {
          viewer = null;
          JTextArea txt = OurUtil.textarea(graph.toString(), 10, 10, false, true, getFont());
@@ -266,10 +272,27 @@ public final class VizGraphPanel extends JPanel {
       remakeAll();
    }
 
+   /** Returns the DOT source of the current graph.
+    * <p> If the graph has been laid out already, it is reused; otherwise the graph is generated without being laid out
+    * (since the DOT source does not include the layout), so this never waits for a layout.
+    * <p> If the graph cannot be generated, the error is reported as a comment in an empty DOT graph (just as the panel shows the error instead of the graph).
+    */
    public String toDot() {
-       return vizState.getGraph(currentProjection).toString();
+      try {
+         Graph graph = vizState.getCachedLayout(currentProjection);
+         if (graph==null) graph = StaticGraphMaker.makeGraph(vizState.getOriginalInstance(), vizState, currentProjection);
+         return graph.toString();
+      } catch(Throwable ex) {
+         return "// An error has occurred: " + ex.toString().replace('\n', ' ') + "\ndigraph \"graph\" {\n}\n";
+      }
    }
 
+   /** Abandons the graph that is being laid out in the background (if any). */
+   void cancelLayout() { backgroundLayout.cancel(); }
+
+   /** Returns the projection currently chosen (or null if no graph has been generated yet). */
+   AlloyProjection getProjection() { return currentProjection; }
+
    /** Retrieves the actual GraphViewer object that contains the graph (or null if the graph hasn't loaded yet) */
    public GraphViewer alloyGetViewer() { return viewer; }
 
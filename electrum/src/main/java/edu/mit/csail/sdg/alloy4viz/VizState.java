@@ -19,7 +19,10 @@ package edu.mit.csail.sdg.alloy4viz;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -35,6 +38,8 @@ import edu.mit.csail.sdg.alloy4graph.DotColor;
 import edu.mit.csail.sdg.alloy4graph.DotPalette;
 import edu.mit.csail.sdg.alloy4graph.DotShape;
 import edu.mit.csail.sdg.alloy4graph.DotStyle;
+import edu.mit.csail.sdg.alloy4graph.Graph;
+import edu.mit.csail.sdg.alloy4graph.GraphViewer;
 
 /** Mutable; this stores an unprojected model as well as the current theme customization.
  *
@@ -135,7 +140,8 @@ public final class VizState {
       for (AlloySet r : currentModel.getSets()) // [HASLab] paint variable sets differently
     	  if (r.isVar) nodeStyle.put(r, DotStyle.DASHED);
       // Done
-      cache.clear();
+      clearCache();
+      themeVersion++;
       changedSinceLastSave=false;
    }
 
@@ -146,7 +152,7 @@ public final class VizState {
       this.originalInstance=unprojectedInstance;
       for (AlloyType t:getProjectedTypes()) if (!unprojectedInstance.model.hasType(t)) projectedTypes.remove(t);
       currentModel = StaticProjector.project(unprojectedInstance.model, projectedTypes);
-      cache.clear();
+      clearCache();
    }
 
    /** Erase the current theme customizations and then load it from a file.
@@ -155,7 +161,8 @@ public final class VizState {
    public void loadPaletteXML(String filename) throws IOException {
       resetTheme();
       StaticThemeReaderWriter.readAlloy(filename,this);
-      cache.clear();
+      clearCache();
+      themeVersion++;
       changedSinceLastSave=false;
    }
 
@@ -170,26 +177,99 @@ public final class VizState {
    /** Caches previously generated graphs. */
    private LinkedHashMap<AlloyProjection,JPanel> cache=new LinkedHashMap<AlloyProjection,JPanel>();
 
+   /** The graph shown by each cached panel (error panels have no graph). */
+   private final Map<AlloyProjection,Graph> graphs=new HashMap<AlloyProjection,Graph>();
+
+   /** The cached graphs whose colors and styles are out of date (but whose layout is still valid). */
+   private final Set<AlloyProjection> stale=new HashSet<AlloyProjection>();
+
+   /** Flush all cached graphs. */
+   private void clearCache() { cache.clear(); graphs.clear(); stale.clear(); }
+
+   /** Returns the cached panel for the given projection choice (or null if none);
+    * if only the colors and styles have changed since it was generated, they are updated in place, so the layout is kept.
+    */
+   private JPanel cached(AlloyProjection projectionChoice) {
+      JPanel ans = cache.get(projectionChoice);
+      if (ans==null || !stale.remove(projectionChoice)) return ans;
+      try {
+         if (graphs.get(projectionChoice).restyle(StaticGraphMaker.makeGraph(originalInstance, this, projectionChoice))) { ans.repaint(); return ans; }
+      } catch(Throwable ex) {
+         // The graph will be generated from scratch
+      }
+      cache.remove(projectionChoice);
+      graphs.remove(projectionChoice);
+      return null;
+   }
+
+   /** This is incremented whenever the theme changes, so that graphs prepared in advance for an older theme can be detected. */
+   private int themeVersion = 0;
+
+   /** Returns a number that changes whenever the theme changes. */
+   int getThemeVersion() { return themeVersion; }
+
+   /** The graph that was most recently generated (or null if none); its layout is used as the starting point for the next graph. */
+   private Graph lastGraph = null;
+
+   /** Returns a record of the layout of the graph that was most recently generated (or null if none). */
+   Graph.Seed getSeed() { return lastGraph==null ? null : lastGraph.seed(); }
+
+   /** Caches a graph that has been laid out in advance for the current instance, the given projection choice, and the current theme. */
+   void cacheGraph(AlloyProjection projectionChoice, Graph graph) {
+      JPanel ans = new GraphViewer(graph);
+      ans.setBorder(null);
+      cache.put(projectionChoice, ans);
+      graphs.put(projectionChoice, graph);
+      stale.remove(projectionChoice);
+      lastGraph = graph;
+   }
+
+   /** Caches a panel that explains why the graph for the given projection choice could not be generated. */
+   void cacheError(AlloyProjection projectionChoice, Throwable ex) {
+      JPanel ans = errorPanel(ex);
+      ans.setBorder(null);
+      cache.put(projectionChoice, ans);
+      graphs.remove(projectionChoice);
+      stale.remove(projectionChoice);
+   }
+
+   /** Returns the graph for the given projection choice if it has been generated already for the current instance and theme, else returns null. */
+   JPanel getCachedGraph(AlloyProjection projectionChoice) { return cached(projectionChoice); }
+
+   /** Returns the laid out graph for the given projection choice if it has been generated already for the current instance and theme, else returns null. */
+   Graph getCachedLayout(AlloyProjection projectionChoice) { return cached(projectionChoice)==null ? null : graphs.get(projectionChoice); }
+
    /** Generate a VizGraphPanel for a given projection choice, using the current settings. */
    public JPanel getGraph(AlloyProjection projectionChoice) {
-      JPanel ans = cache.get(projectionChoice);
+      JPanel ans = cached(projectionChoice);
       if (ans!=null) return ans;
       AlloyInstance inst = originalInstance;
       try {
-         ans = StaticGraphMaker.produceGraph(inst, this, projectionChoice);
+         // Start from the layout of the previous graph, so that atoms stay in place when stepping through the states of a trace
+         Graph graph = StaticGraphMaker.makeGraph(inst, this, projectionChoice);
+         StaticGraphMaker.layout(graph, getSeed());
+         ans = new GraphViewer(graph);
          cache.put(projectionChoice, ans);
+         graphs.put(projectionChoice, graph);
+         lastGraph = graph;
       } catch(Throwable ex) {
-         String msg = "An error has occurred: " + ex + "\n\nStackTrace:\n" + MailBug.dump(ex) + "\n";
-         JScrollPane scroll = OurUtil.scrollpane(OurUtil.textarea(msg, 0, 0, false, false));
-         ans = new JPanel();
-         ans.setLayout(new BorderLayout());
-         ans.add(scroll, BorderLayout.CENTER);
-         ans.setBackground(Color.WHITE);
+         ans = errorPanel(ex);
       }
       ans.setBorder(null);
       return ans;
    }
 
+   /** Returns a panel that shows the given exception. */
+   private static JPanel errorPanel(Throwable ex) {
+      String msg = "An error has occurred: " + ex + "\n\nStackTrace:\n" + MailBug.dump(ex) + "\n";
+      JScrollPane scroll = OurUtil.scrollpane(OurUtil.textarea(msg, 0, 0, false, false));
+      JPanel ans = new JPanel();
+      ans.setLayout(new BorderLayout());
+      ans.add(scroll, BorderLayout.CENTER);
+      ans.setBackground(Color.WHITE);
+      return ans;
+   }
+
    /** True if the theme has been modified since last save. */
    private boolean changedSinceLastSave=false;
 
@@ -197,7 +277,15 @@ public final class VizState {
    public boolean changedSinceLastSave() { return changedSinceLastSave; }
 
    /** Sets the "changed since last save" flag, then flush any cached generated graphs. */
-   private void change() { changedSinceLastSave=true; cache.clear(); }
+   private void change() { changedSinceLastSave=true; clearCache(); themeVersion++; }
+
+   /** Sets the "changed since last save" flag, then mark the cached graphs as needing new colors and styles (their layouts are kept). */
+   private void restyle() {
+      changedSinceLastSave=true;
+      themeVersion++;
+      cache.keySet().retainAll(graphs.keySet());
+      stale.addAll(graphs.keySet());
+   }
 
    /** If oldValue is different from newValue, then sets the "changed since last save" flag and flush the cache. */
    private void changeIf(Object oldValue, Object newValue) {
@@ -337,7 +425,7 @@ public final class VizState {
 
    /** Sets the default node palette. */
    public void setNodePalette(DotPalette x) {
-      if (nodePalette!=x && x!=null) {change(); nodePalette=x;}
+      if (nodePalette!=x && x!=null) {restyle(); nodePalette=x;}
    }
 
    /*============================================================================================*/
@@ -350,7 +438,7 @@ public final class VizState {
 
    /** Sets the default edge palette. */
    public void setEdgePalette(DotPalette x) {
-      if (edgePalette!=x && x!=null) {change(); edgePalette=x;}
+      if (edgePalette!=x && x!=null) {restyle(); edgePalette=x;}
    }
 
    /*============================================================================================*/
@@ -359,10 +447,10 @@ public final class VizState {
    // An important invariant to maintain: every map here must map null to a nonnull value.
    public final MInt weight = new MInt();
    public final MString label = new MString();
-   public final MMap<DotColor> nodeColor      = new MMap<DotColor>();
-   public final MMap<DotColor> edgeColor      = new MMap<DotColor>();
-   public final MMap<DotStyle> nodeStyle      = new MMap<DotStyle>();
-   public final MMap<DotStyle> edgeStyle      = new MMap<DotStyle>();
+   public final MMap<DotColor> nodeColor      = new MMap<DotColor>(true);
+   public final MMap<DotColor> edgeColor      = new MMap<DotColor>(true);
+   public final MMap<DotStyle> nodeStyle      = new MMap<DotStyle>(true);
+   public final MMap<DotStyle> edgeStyle      = new MMap<DotStyle>(true);
    public final MMap<DotShape> shape          = new MMap<DotShape>();
    public final MMap<Boolean> attribute       = new MMap<Boolean>(true, false);
    public final MMap<Boolean> mergeArrows     = new MMap<Boolean>(true, false);
@@ -397,8 +485,11 @@ public final class VizState {
       private final LinkedHashMap<AlloyElement,T> map = new LinkedHashMap<AlloyElement,T>();
       private final T onValue;
       private final T offValue;
-      private MMap() { onValue=null; offValue=null; }
-      private MMap(T on, T off) { this.onValue=on; this.offValue=off; }
+      /** If true, changing a value only changes the colors and styles of the graph, not its layout. */
+      private final boolean cosmetic;
+      private MMap() { onValue=null; offValue=null; cosmetic=false; }
+      private MMap(boolean cosmetic) { onValue=null; offValue=null; this.cosmetic=cosmetic; }
+      private MMap(T on, T off) { this.onValue=on; this.offValue=off; cosmetic=false; }
       private void clear() { map.clear(); change(); }
       private void putAll(MMap<T> x) { map.putAll(x.map); change(); }
       public T get(AlloyElement obj) { return map.get(obj); }
@@ -410,7 +501,7 @@ public final class VizState {
       public void put(AlloyElement obj, T value) {
          if (obj==null && value==null) return;
          Object old = map.put(obj, value);
-         if ((old==null && value!=null) || (old!=null && !old.equals(value))) change();
+         if ((old==null && value!=null) || (old!=null && !old.equals(value))) { if (cosmetic) restyle(); else change(); }
       }
       OurCheckbox pick(String label, String tooltip) {
          return new OurCheckbox(label, tooltip, (Boolean.TRUE.equals(get(null)) ? OurCheckbox.ON : OurCheckbox.OFF)) {
@@ -20,7 +20,14 @@ import static edu.mit.csail.sdg.alloy4.Util.encode;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.OurTree;
@@ -74,45 +81,115 @@ public final class VizTree extends OurTree {
    /** {@inheritDoc} */
    @Override public List<?> do_ask(Object parent) {
       List<Object> ans = new ArrayList<Object>();
-      try {
-         if (parent instanceof A4Solution) {
-            return toplevel;
-         } else if (parent instanceof Sig || parent instanceof ExprVar) {
-            A4TupleSet ts = (A4TupleSet) (instance.eval((Expr)parent));
-            for(A4Tuple t: ts) ans.add(t.atom(0));
-         } else if (parent instanceof String) {
-            String atom = (String)parent;
-            for(Sig s: instance.getAllReachableSigs()) for(Field f: s.getFields()) for(A4Tuple t: instance.eval(f)) {
-               if (t.atom(0).equals(atom)) { ans.add(new Pair<String,ExprHasName>(atom, f)); break; }
-            }
-            for(ExprVar f: instance.getAllSkolems()) if (f.type().arity()>1) for(A4Tuple t: (A4TupleSet)(instance.eval(f))) {
-               if (t.atom(0).equals(atom)) { ans.add(new Pair<String,ExprHasName>(atom, f)); break; }
-            }
-         } else if (parent instanceof Pair) {
-            Pair<?,?> p = (Pair<?,?>)parent;
-            ExprHasName rel = (ExprHasName) (p.b);
-            String atom = (String) (p.a);
-            for(A4Tuple tuple: (A4TupleSet) (instance.eval(rel))) if (tuple.atom(0).equals(atom)) {
-               if (tuple.arity()==2) ans.add(tuple.atom(1)); else ans.add(tuple);
-            }
-         } else if (parent instanceof A4Tuple) {
-            A4Tuple tp = (A4Tuple)parent;
-            for(int i=1; i<tp.arity(); i++) if (!ans.contains(tp.atom(i))) ans.add(tp.atom(i));
-            return ans; // we don't want to sort this; we want the original order
-         }
-         Collections.sort(ans, new Comparator<Object>() {
-            public int compare(Object a, Object b) {
-               String t1, t2;
-               if (a instanceof Pair) { t1=((ExprHasName)(((Pair<?,?>)a).b)).label; t2=((ExprHasName)(((Pair<?,?>)b).b)).label; }
-                  else { t1=a.toString(); t2=b.toString(); }
-               int i = t1.compareToIgnoreCase(t2);
-               if (i!=0) return i; else return t1.compareTo(t2);
-            }
-         });
+      if (parent instanceof A4Solution) {
+         if (filter.length()==0) return toplevel;
+         for(Object x: toplevel) if (!do_ask(x).isEmpty()) ans.add(x);
          return ans;
-      } catch(Err er) {
+      } else if (parent instanceof Sig || parent instanceof ExprVar) {
+         if (filter.length()==0) return atoms(parent);
+         Set<String> matches = matches();
+         for(String atom: atoms(parent)) if (matches.contains(atom)) ans.add(atom);
          return ans;
+      } else if (parent instanceof String) {
+         String atom = (String)parent;
+         Map<ExprHasName,List<Object>> map = index().get(atom);
+         if (map!=null) for(ExprHasName f: map.keySet()) ans.add(new Pair<String,ExprHasName>(atom, f));
+      } else if (parent instanceof Pair) {
+         Pair<?,?> p = (Pair<?,?>)parent;
+         Map<ExprHasName,List<Object>> map = index().get(p.a);
+         if (map!=null && map.get(p.b)!=null) ans.addAll(map.get(p.b));
+      } else if (parent instanceof A4Tuple) {
+         A4Tuple tp = (A4Tuple)parent;
+         for(int i=1; i<tp.arity(); i++) if (!ans.contains(tp.atom(i))) ans.add(tp.atom(i));
+         return ans; // we don't want to sort this; we want the original order
       }
+      Collections.sort(ans, order);
+      return ans;
+   }
+
+   /** The order in which atoms, fields and tuples are listed. */
+   private static final Comparator<Object> order = new Comparator<Object>() {
+      public int compare(Object a, Object b) {
+         String t1, t2;
+         if (a instanceof Pair) { t1=((ExprHasName)(((Pair<?,?>)a).b)).label; t2=((ExprHasName)(((Pair<?,?>)b).b)).label; }
+            else { t1=a.toString(); t2=b.toString(); }
+         int i = t1.compareToIgnoreCase(t2);
+         if (i!=0) return i; else return t1.compareTo(t2);
+      }
+   };
+
+   /** Returns the sorted list of atoms in the given toplevel sig or set. */
+   private List<String> atoms(Object parent) {
+      List<String> ans = atoms.get(parent);
+      if (ans!=null) return ans;
+      ans = new ArrayList<String>();
+      try {
+         for(A4Tuple t: (A4TupleSet) (instance.eval((Expr)parent))) ans.add(t.atom(0));
+      } catch(Err er) {
+         // The sig or set will be shown as empty
+      }
+      Collections.sort(ans, order);
+      ans = Collections.unmodifiableList(ans);
+      atoms.put(parent, ans);
+      return ans;
+   }
+
+   /** Returns a map from each atom to the fields and skolems where it is the first atom of some tuple;
+    * each of them is in turn mapped to the rest of those tuples (or just the second atom, if the tuple is binary).
+    * <p> This is computed the first time it is needed, by going over every tuple once.
+    */
+   private Map<String,Map<ExprHasName,List<Object>>> index() {
+      if (index!=null) return index;
+      index = new HashMap<String,Map<ExprHasName,List<Object>>>();
+      for(Sig s: instance.getAllReachableSigs()) for(Field f: s.getFields()) index(f, instance.eval(f));
+      for(ExprVar f: instance.getAllSkolems()) if (f.type().arity()>1) {
+         try {
+            index(f, (A4TupleSet)(instance.eval(f)));
+         } catch(Err er) {
+            // The skolem will not be shown
+         }
+      }
+      return index;
+   }
+
+   /** Adds the tuples of the given field or skolem to the index. */
+   private void index(ExprHasName rel, A4TupleSet tuples) {
+      for(A4Tuple t: tuples) {
+         Map<ExprHasName,List<Object>> map = index.get(t.atom(0));
+         if (map==null) index.put(t.atom(0), map = new LinkedHashMap<ExprHasName,List<Object>>());
+         List<Object> list = map.get(rel);
+         if (list==null) map.put(rel, list = new ArrayList<Object>());
+         list.add(t.arity()==2 ? t.atom(1) : t);
+      }
+   }
+
+   /** Returns the set of atoms whose label starts with the current filter (ignoring case). */
+   private Set<String> matches() {
+      if (matches!=null) return matches;
+      if (labels==null) {
+         labels = new TreeMap<String,List<String>>();
+         for(Object x: toplevel) for(String atom: atoms(x)) {
+            String key = atom.toLowerCase(Locale.US);
+            List<String> list = labels.get(key);
+            if (list==null) labels.put(key, list = new ArrayList<String>(1));
+            if (!list.contains(atom)) list.add(atom);
+         }
+      }
+      String key = filter.toLowerCase(Locale.US);
+      matches = new HashSet<String>();
+      for(List<String> list: labels.subMap(key, key+Character.MAX_VALUE).values()) matches.addAll(list);
+      return matches;
+   }
+
+   /** Only show the atoms whose label starts with the given text (ignoring case); if the text is empty, show every atom. */
+   public void setFilter(String text) {
+      if (text==null) text="";
+      if (filter.equals(text)) return;
+      filter = text;
+      matches = null;
+      do_start();
+      // Expand every sig and set, so that the matching atoms are visible
+      if (filter.length()>0) for(int i=getRowCount()-1; i>0; i--) expandRow(i);
    }
 
    /** This ensures the class can be serialized reliably. */
@@ -130,6 +207,21 @@ public final class VizTree extends OurTree {
    /** The list of toplevel nodes to show. */
    private final List<Object> toplevel;
 
+   /** Caches the sorted list of atoms in each toplevel sig and set. */
+   private final Map<Object,List<String>> atoms = new HashMap<Object,List<String>>();
+
+   /** The index from each atom to its fields and tuples (or null if not computed yet); see index(). */
+   private Map<String,Map<ExprHasName,List<Object>>> index = null;
+
+   /** Maps the lowercase label of each atom to the atom(s) with that label (or null if not computed yet); see matches(). */
+   private TreeMap<String,List<String>> labels = null;
+
+   /** The current filter; never null. */
+   private String filter = "";
+
+   /** The set of atoms that match the current filter (or null if not computed yet); see matches(). */
+   private Set<String> matches = null;
+
    /** Constructs a tree to display the given instance. */
    public VizTree(A4Solution instance, String title, int fontSize) {
       super(fontSize);
@@ -0,0 +1,253 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4whole;
+
+import static edu.mit.csail.sdg.alloy4.A4Preferences.BackgroundCompile;
+import static edu.mit.csail.sdg.alloy4.A4Preferences.ImplicitThis;
+
+import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4.ErrorSyntax;
+import edu.mit.csail.sdg.alloy4.ErrorType;
+import edu.mit.csail.sdg.alloy4.ErrorWarning;
+import edu.mit.csail.sdg.alloy4.OurTabbedSyntaxWidget;
+import edu.mit.csail.sdg.alloy4.Pos;
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4.Version;
+import edu.mit.csail.sdg.alloy4compiler.parser.CompModule;
+import edu.mit.csail.sdg.alloy4compiler.parser.CompUtil;
+
+/** This helper class typechecks the text buffers in a background thread while the user is typing.
+ *
+ * <p> Every change to the text restarts a short timer; when the timer fires, the text buffers are compiled in the background,
+ * and if the text has not changed in the meantime, the errors and warnings are highlighted in the text buffers.
+ * A compilation that is overtaken by newer changes is abandoned at the next opportunity, and its result is ignored.
+ *
+ * <p> The latest result is kept, so that the caller can reuse it if the text buffers have not changed since.
+ *
+ * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
+ */
+
+final class BackgroundCompiler {
+
+   /** The number of milliseconds of inactivity before we start compiling. */
+   private static final int DELAY = 700;
+
+   /** The color for highlighting errors. */
+   private static final Color ERROR = new Color(0.9f, 0.4f, 0.4f);
+
+   /** The color for highlighting warnings. */
+   private static final Color WARNING = new Color(0.95f, 0.85f, 0.4f);
+
+   /** This is thrown from the reporter's callbacks to abandon a compilation that has been overtaken by newer changes. */
+   private static final class Abandoned extends RuntimeException {
+      private static final long serialVersionUID = 0;
+   }
+
+   /** The text buffers. */
+   private final OurTabbedSyntaxWidget text;
+
+   /** The timer that starts a compilation once the user stops typing. */
+   private final Timer timer;
+
+   /** This is incremented whenever a new compilation starts (or compilation is disabled), which abandons all older compilations. */
+   private volatile int generation = 0;
+
+   /** The input of the compilation that is currently running (or null if none). */
+   private Input running = null;
+
+   /** The input of the latest compilation that finished (or null if none). */
+   private Input latest = null;
+
+   /** The result of the latest compilation that finished (or null if it failed). */
+   private CompModule latestModule = null;
+
+   /** The error from the latest compilation that finished (or null if it succeeded). */
+   private Err latestError = null;
+
+   /** Every file read by the latest compilation that finished, including the text buffers (or null if none). */
+   private Map<String,String> latestFiles = null;
+
+   /** The length and last-modified time of every file that the latest compilation read from disk, as of when it was read (or null if none). */
+   private Map<String,long[]> latestStamps = null;
+
+   /** Immutable; this is the input to a compilation. */
+   private static final class Input {
+      /** The content of every text buffer. */
+      private final Map<String,String> map;
+      /** The main file. */
+      private final String filename;
+      /** The initial resolution mode. */
+      private final int resolutionMode;
+      /** Constructs a new input. */
+      private Input(Map<String,String> map, String filename, int resolutionMode) {
+         this.map = map;
+         this.filename = filename;
+         this.resolutionMode = resolutionMode;
+      }
+      /** Returns true if the given input is the same as this input. */
+      private boolean same(Map<String,String> map, String filename, int resolutionMode) {
+         return this.resolutionMode==resolutionMode && this.filename.equals(filename) && this.map.equals(map);
+      }
+   }
+
+   /** Constructs a new background compiler for the given text buffers. */
+   BackgroundCompiler(OurTabbedSyntaxWidget text) {
+      this.text = text;
+      timer = new Timer(DELAY, new ActionListener() {
+         public void actionPerformed(ActionEvent e) { start(); }
+      });
+      timer.setRepeats(false);
+   }
+
+   /** This should be called whenever the text buffers may have changed. */
+   void changed() {
+      if (BackgroundCompile.get()) timer.restart(); else stop();
+   }
+
+   /** Abandons any running compilation and forgets the latest result. */
+   void stop() {
+      timer.stop();
+      generation++;
+      running = null;
+      latest = null;
+      latestModule = null;
+      latestError = null;
+      latestFiles = null;
+      latestStamps = null;
+   }
+
+   /** Returns true if the latest compilation was compiled from exactly the given input,
+    * and the files it read from disk or from the jar (rather than from the text buffers) have not changed since.
+    */
+   private boolean isLatest(Map<String,String> map, String filename, int resolutionMode) {
+      if (latest==null || !latest.same(map, filename, resolutionMode)) return false;
+      for(Map.Entry<String,String> e: latestFiles.entrySet()) if (!map.containsKey(e.getKey())) {
+         long[] old = latestStamps.get(e.getKey()), now = stamp(e.getKey());
+         if (old==null || Arrays.equals(old, now)) continue; // the files in the jar never change
+         // the file was touched, so we compare its content (and if it is the same, we remember the new stamp so we don't read it again)
+         try { if (!e.getValue().equals(Util.readAll(e.getKey()))) return false; } catch(Throwable ex) { return false; }
+         latestStamps.put(e.getKey(), now);
+      }
+      return true;
+   }
+
+   /** Returns the length and last-modified time of the given file. */
+   private static long[] stamp(String filename) {
+      File file = new File(filename);
+      return new long[]{ file.length(), file.lastModified() };
+   }
+
+   /** Returns the module from the latest compilation if it was compiled from exactly the given input and succeeded, else returns null. */
+   CompModule getModule(Map<String,String> map, String filename, int resolutionMode) {
+      return (latestModule!=null && isLatest(map, filename, resolutionMode)) ? latestModule : null;
+   }
+
+   /** Returns the error from the latest compilation if it was compiled from exactly the given input and failed with a syntax or type error,
+    * else returns null.
+    * <p> Other errors (such as running out of stack space in the background thread) may not happen in a real run, so they are not returned.
+    */
+   Err getError(Map<String,String> map, String filename, int resolutionMode) {
+      if (!(latestError instanceof ErrorSyntax) && !(latestError instanceof ErrorType)) return null;
+      return isLatest(map, filename, resolutionMode) ? latestError : null;
+   }
+
+   /** Returns the current input. */
+   private Input current() {
+      int resolutionMode = (Version.experimental && ImplicitThis.get()) ? 2 : 1;
+      return new Input(text.takeSnapshot(), Util.canon(text.get().getFilename()), resolutionMode);
+   }
+
+   /** Starts compiling the text buffers in the background, unless they have not changed since the latest or the running compilation. */
+   private void start() {
+      if (!BackgroundCompile.get() || text.count()==0) return;
+      final Input input = current();
+      if (latest!=null && latest.same(input.map, input.filename, input.resolutionMode)) return;
+      if (running!=null && running.same(input.map, input.filename, input.resolutionMode)) return;
+      final int me = ++generation;
+      running = input;
+      Thread thread = new Thread(new Runnable() {
+         public void run() { compile(me, input); }
+      }, "Background compiler");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      thread.start();
+   }
+
+   /** Compiles the given input (this is called from a background thread). */
+   private void compile(final int me, final Input input) {
+      final List<ErrorWarning> warnings = new ArrayList<ErrorWarning>();
+      final A4Reporter rep = new A4Reporter() {
+         private void check() { if (generation!=me) throw new Abandoned(); }
+         @Override public void debug(String msg) { check(); }
+         @Override public void parse(String msg) { check(); }
+         @Override public void typecheck(String msg) { check(); }
+         @Override public void warning(ErrorWarning msg) { check(); warnings.add(msg); }
+      };
+      final Map<String,String> files = new LinkedHashMap<String,String>(input.map);
+      CompModule module = null;
+      Err error = null;
+      try {
+         module = CompUtil.parseEverything_fromFile(rep, files, input.filename, input.resolutionMode);
+      } catch(Abandoned ex) {
+         return;
+      } catch(Err ex) {
+         error = ex;
+      } catch(Throwable ex) {
+         if (generation!=me) return;
+         error = new ErrorFatal("Unknown exception occurred: "+ex, ex);
+      }
+      final Map<String,long[]> stamps = new HashMap<String,long[]>();
+      final String jar = Util.jarPrefix();
+      for(String name: files.keySet()) if (!input.map.containsKey(name) && !name.startsWith(jar)) stamps.put(name, stamp(name));
+      final CompModule finalModule = module;
+      final Err finalError = error;
+      SwingUtilities.invokeLater(new Runnable() {
+         public void run() { finish(me, input, files, stamps, finalModule, finalError, warnings); }
+      });
+   }
+
+   /** Records the result of a compilation, and highlights its errors and warnings if the text has not changed since. */
+   private void finish(int me, Input input, Map<String,String> files, Map<String,long[]> stamps, CompModule module, Err error, List<ErrorWarning> warnings) {
+      if (generation!=me) return;
+      running = null;
+      latest = input;
+      latestFiles = files;
+      latestStamps = stamps;
+      latestModule = module;
+      latestError = error;
+      if (!current().same(input.map, input.filename, input.resolutionMode)) return;
+      List<Pos> list = new ArrayList<Pos>(warnings.size());
+      for(ErrorWarning w: warnings) list.add(w.pos);
+      text.mark(list, WARNING);
+      if (error!=null) text.mark(Util.asList(error.pos), ERROR);
+   }
+}
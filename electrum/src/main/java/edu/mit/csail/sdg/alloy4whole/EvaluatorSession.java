@@ -0,0 +1,120 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4whole;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4.XMLNode;
+import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprVar;
+import edu.mit.csail.sdg.alloy4compiler.ast.Module;
+import edu.mit.csail.sdg.alloy4compiler.parser.CompUtil;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4SolutionReader;
+
+/** Mutable; this holds the instance XML file that the evaluator is currently working on,
+ * together with its parsed modules and its solution, so that each query does not need to reload them.
+ *
+ * <p> It also remembers the answers to the most recent distinct queries,
+ * so that repeating a query (for example, by pressing UP in the evaluator) does not parse and translate it again.
+ *
+ * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
+ */
+
+final class EvaluatorSession {
+
+   /** The maximum number of queries whose answers we remember. */
+   private static final int MAXCACHE = 100;
+
+   /** The absolute filename of the instance XML file. */
+   private final String filename;
+
+   /** The timestamp and the length of the XML file when it was loaded (so we can detect if it has been overwritten since). */
+   private final long lastModified, length;
+
+   /** The initial resolution mode used to parse the modules. */
+   private final int resolutionMode;
+
+   /** The root module (with every atom and skolem added as a global). */
+   public final Module root;
+
+   /** The solution. */
+   public final A4Solution solution;
+
+   /** Maps each recent query to its answer, from the least recently used to the most recently used. */
+   private final LinkedHashMap<String,String> answers = new LinkedHashMap<String,String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 0;
+      @Override protected boolean removeEldestEntry(Map.Entry<String,String> eldest) { return size() > MAXCACHE; }
+   };
+
+   /** Loads the given instance XML file, and parses the modules embedded in it. */
+   EvaluatorSession(String filename, int resolutionMode) throws Err {
+      File file = new File(filename);
+      this.filename = filename;
+      this.lastModified = file.lastModified();
+      this.length = file.length();
+      this.resolutionMode = resolutionMode;
+      try {
+         Map<String,String> fc = new LinkedHashMap<String,String>();
+         XMLNode x = new XMLNode(file);
+         if (!x.is("alloy")) throw new Exception();
+         String mainname=null;
+         for(XMLNode sub: x) if (sub.is("instance")) {
+            mainname=sub.getAttribute("filename");
+            break;
+         }
+         if (mainname==null) throw new Exception();
+         for(XMLNode sub: x) if (sub.is("source")) {
+            String name = sub.getAttribute("filename");
+            String content = sub.getAttribute("content");
+            fc.put(name, content);
+         }
+         root = CompUtil.parseEverything_fromFile(A4Reporter.NOP, fc, mainname, resolutionMode);
+         solution = A4SolutionReader.read(root.getAllReachableSigs(), x);
+         for(ExprVar a:solution.getAllAtoms())   { root.addGlobal(a.label, a); }
+         for(ExprVar a:solution.getAllSkolems()) { root.addGlobal(a.label, a); }
+      } catch(Throwable ex) {
+         throw new ErrorFatal("Failed to read or parse the XML file.");
+      }
+   }
+
+   /** Returns true if this session was loaded from the given file with the given resolution mode, and the file has not changed since. */
+   boolean isFor(String filename, int resolutionMode) {
+      if (!this.filename.equals(filename) || this.resolutionMode!=resolutionMode) return false;
+      File file = new File(filename);
+      return file.lastModified()==lastModified && file.length()==length;
+   }
+
+   /** Parses the given query. */
+   Expr parse(String query) throws Err {
+      return CompUtil.parseOneExpression_fromString(root, query);
+   }
+
+   /** Evaluates the given query, and returns the answer as a String. */
+   String eval(String query) throws Err {
+      String ans = answers.get(query);
+      if (ans==null) {
+         ans = solution.eval(parse(query)).toString();
+         answers.put(query, ans);
+      }
+      return ans;
+   }
+}
@@ -15,16 +15,26 @@
 
 package edu.mit.csail.sdg.alloy4whole;
 
+import java.io.File;
 import java.io.StringReader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Env;
+import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.MailBug;
 import edu.mit.csail.sdg.alloy4.SafeList;
+import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.XMLNode;
 import edu.mit.csail.sdg.alloy4compiler.ast.Command;
+import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
 import edu.mit.csail.sdg.alloy4compiler.ast.ExprVar;
 import edu.mit.csail.sdg.alloy4compiler.ast.Module;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
@@ -34,6 +44,10 @@ import edu.mit.csail.sdg.alloy4compiler.translator.A4Options;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4SolutionReader;
 import edu.mit.csail.sdg.alloy4compiler.translator.TranslateAlloyToKodkod;
+import edu.mit.csail.sdg.alloy4graph.Graph;
+import edu.mit.csail.sdg.alloy4graph.GraphEdge;
+import edu.mit.csail.sdg.alloy4graph.GraphNode;
+import edu.mit.csail.sdg.alloy4viz.StaticGraphExporter;
 
 /** API-specific regression test suite; the larger collection of models that test both the compiler and translator are in models/tests/*.als 
  * 
@@ -191,6 +205,74 @@ final class InternalTest {
         check(err.contains("cyclic inheritance"));
     }
 
+    static void testSolutionValidator() throws Exception {
+        Map<String,String> fc = new HashMap<String,String>();
+        fc.put("/tmp/validate.als", "sig A {} var sig B in A {} run { some B } for 3");
+        Module world = CompUtil.parseEverything_fromFile(A4Reporter.NOP, fc, "/tmp/validate.als");
+        A4Options options = new A4Options();
+        options.solver = A4Options.SatSolver.SAT4J;
+        A4Solution sol = TranslateAlloyToKodkod.execute_command(A4Reporter.NOP, world.getAllReachableSigs(), world.getAllCommands().get(0), options);
+        check(sol.satisfiable());
+        List<Expr> properties = new ArrayList<Expr>();
+        properties.add(CompUtil.parseOneExpression_fromString(world, "some B"));
+        properties.add(CompUtil.parseOneExpression_fromString(world, "no A"));
+        properties.add(CompUtil.parseOneExpression_fromString(world, "B in A"));
+        Boolean[][] one = SolutionValidator.validate(world, SolutionValidator.enumerate(sol, 3), properties, 1);
+        Boolean[][] two = SolutionValidator.validate(world, SolutionValidator.enumerate(sol, 3), properties, 2);
+        check(one.length==3);
+        check(one[0].length>=1 && one[0].length<=3);
+        for(int j=0; j<one[0].length; j++) {
+            check(one[0][j], Boolean.TRUE);
+            check(one[1][j], Boolean.FALSE);
+            check(one[2][j], Boolean.TRUE);
+        }
+        for(int i=0; i<one.length; i++) check(Arrays.asList(one[i]), Arrays.asList(two[i]));
+        String err = "";
+        try { SolutionValidator.validate(world, SolutionValidator.enumerate(sol, 1), Arrays.asList(CompUtil.parseOneExpression_fromString(world, "A")), 1); } catch(Err ex) { err = ex.toString(); }
+        check(err.contains("must be a formula"));
+    }
+
+    static void testStaticGraphExporter() throws Exception {
+        String xml = "<alloy builddate='unknown'>"
+           + "<instance tracelength='1' backloop='0' bitwidth='2' maxseq='1' command='Run show' filename='export.als'>"
+           + "<sig label='univ' ID='0' builtin='yes'> <atom label='-2'/> <atom label='-1'/> <atom label='0'/> <atom label='1'/> <atom label='State$0'/> <atom label='State$1'/> </sig>"
+           + "<sig label='Int' ID='1' parentID='0' builtin='yes'> <atom label='-2'/> <atom label='-1'/> <atom label='0'/> <atom label='1'/> </sig>"
+           + "<sig label='seq/Int' ID='2' parentID='1' builtin='yes'> <atom label='0'/> </sig>"
+           + "<sig label='State' ID='5' parentID='0'> <atom label='State$0'/> <atom label='State$1'/> </sig>"
+           + "<field label='next' parentID='5' ID='6'>"
+           + "   <tuple> <atom label='State$0'/> <atom label='State$1'/> </tuple>"
+           + "   <types> <type ID='5'/> <type ID='5'/> </types>"
+           + "</field>"
+           + "</instance>"
+           + "</alloy>";
+        File dir = new File(System.getProperty("java.io.tmpdir"), "alloy-export-test-" + System.nanoTime());
+        check(dir.mkdirs());
+        List<File> inputs = new ArrayList<File>();
+        for(String name: new String[]{"a", "b", "c"}) {
+            File file = new File(dir, name + ".xml");
+            Util.writeAll(file.getPath(), xml);
+            inputs.add(file);
+        }
+        for(String format: new String[]{"png", "pdf", "svg"}) {
+            check(StaticGraphExporter.exportAll(inputs, null, dir, format, 1, 72, 2)==0);
+            for(File input: inputs) {
+                File output = new File(dir, input.getName().replace(".xml", "." + format));
+                check(output.length() > 0);
+                check(output.delete());
+            }
+        }
+        // two instance files with the same name cannot be exported into the same directory
+        File sub = new File(dir, "sub"), same = new File(sub, "a.xml");
+        check(sub.mkdirs());
+        Util.writeAll(same.getPath(), xml);
+        check(StaticGraphExporter.exportAll(Arrays.asList(inputs.get(0), same), null, dir, "svg", 1, 72, 2)==1);
+        check(new File(dir, "a.svg").delete());
+        check(same.delete());
+        check(sub.delete());
+        for(File input: inputs) check(input.delete());
+        check(dir.delete());
+    }
+
     /** Displays the amount of memory taken per solution enumeration. */
     public static void main2(String[] args) throws Exception {
         String filename = "models/examples/algorithms/dijkstra.als";
@@ -216,12 +298,101 @@ final class InternalTest {
         }
     }
 
-    /** Runs every test case. */
+    /** Displays the time taken to parse and resolve generated models with 1k, 10k and 100k declarations (or the sizes given as arguments). */
+    public static void main3(String[] args) throws Exception {
+        if (args.length==0) args = new String[]{"1000", "10000", "100000"};
+        for(String arg: args) {
+            int n = Integer.parseInt(arg);
+            StringBuilder sb = new StringBuilder();
+            for(int i=0; i<n; i++) sb.append("sig S").append(i).append(" { f").append(i).append(": set S").append((i+1)%n).append(" }\n");
+            sb.append("fact {\n");
+            for(int i=0; i<n; i++) sb.append("  some f").append(i).append("\n");
+            sb.append("}\nrun {} for 3\n");
+            Map<String,String> fc = new HashMap<String,String>();
+            fc.put("generated.als", sb.toString());
+            long start = System.currentTimeMillis();
+            Module world = CompUtil.parseEverything_fromFile(A4Reporter.NOP, fc, "generated.als");
+            long end = System.currentTimeMillis();
+            check(world.getAllSigs().size()==n);
+            System.out.println(n + " declarations: " + (end-start) + "ms"); System.out.flush();
+        }
+    }
+
+    /** Displays the time taken to push and pop scoped bindings in an Env, and to translate (but not solve) every command in the given models (by default, models/examples). */
+    public static void main4(String[] args) throws Exception {
+        final ExprVar[] vars = new ExprVar[64];
+        for(int i=0; i<vars.length; i++) vars[i] = ExprVar.make(null, "v"+i);
+        final Env<ExprVar,Object> env = new Env<ExprVar,Object>();
+        long start = System.currentTimeMillis();
+        for(int round=0; round<100000; round++) {
+            for(int i=0; i<vars.length; i++) env.put(vars[i], vars[(i+1) % vars.length]);
+            int mark = env.enter();
+            for(int i=0; i<vars.length; i+=2) { env.put(vars[i], vars[i]); check(env.get(vars[i+1])==null); }
+            env.leave(mark);
+            for(int i=vars.length-1; i>=0; i--) { check(env.get(vars[i])==vars[(i+1) % vars.length]); env.remove(vars[i]); }
+        }
+        System.out.println("Env: " + (System.currentTimeMillis()-start) + "ms"); System.out.flush();
+        final List<String> files = new ArrayList<String>();
+        if (args.length==0) args = new String[]{"models/examples"};
+        for(String arg: args) listModels(new File(arg), files);
+        final long[] translated = new long[1];
+        final A4Reporter rep = new A4Reporter() {
+            @Override public void translate(String solver, String strat, int bitwidth, int maxseq, int skolemDepth, int symmetry) {
+                translated[0] = System.currentTimeMillis();
+                throw new IllegalStateException(); // we only want to measure the translation, so stop before solving
+            }
+        };
+        long total = 0;
+        for(String filename: files) {
+            Module world = CompUtil.parseEverything_fromFile(A4Reporter.NOP, null, filename);
+            for(Command command: world.getAllCommands()) {
+                start = translated[0] = System.currentTimeMillis();
+                try { TranslateAlloyToKodkod.execute_command(rep, world.getAllReachableSigs(), command, new A4Options()); } catch(Err ex) { }
+                total = total + (translated[0]-start);
+            }
+        }
+        System.out.println("Translation of " + files.size() + " models: " + total + "ms"); System.out.flush();
+    }
+
+    /** Displays the time taken to lay out synthetic graphs with 1k, 2k, 5k, 10k and 20k nodes (or the sizes given as arguments);
+     * each node has one or two labeled edges to random nodes among the 100 nodes created just before it.
+     */
+    public static void main5(String[] args) throws Exception {
+        if (args.length==0) args = new String[]{"1000", "2000", "5000", "10000", "20000"};
+        for(String arg: args) {
+            int n = Integer.parseInt(arg);
+            Random random = new Random(n);
+            Graph graph = new Graph(1.0D);
+            GraphNode[] nodes = new GraphNode[n];
+            for(int i=0; i<n; i++) {
+                nodes[i] = new GraphNode(graph, "N"+i, "Node"+i);
+                if (i>0) for(int j=random.nextInt(2); j>=0; j--) new GraphEdge(nodes[i], nodes[Math.max(0, i-1-random.nextInt(100))], null, "f", null);
+            }
+            int edges = graph.edges.size();
+            long start = System.currentTimeMillis();
+            graph.layout();
+            long end = System.currentTimeMillis();
+            System.out.println(n + " nodes, " + edges + " edges, " + (graph.nodes.size()-n) + " dummy nodes: " + (end-start) + "ms"); System.out.flush();
+        }
+    }
+
+    /** Adds every .als file in the given directory (or the given file itself) to the list. */
+    private static void listModels(File file, List<String> files) {
+        if (file.isDirectory()) {
+            String[] names = file.list();
+            Arrays.sort(names);
+            for(String name: names) listModels(new File(file, name), files);
+        } else if (file.getName().endsWith(".als")) {
+            files.add(file.getPath());
+        }
+    }
+
+    /** Runs every test case (or if test case names are given, only those test cases). */
     public static void main(String[] args) throws Exception {
         try {
             for(Method m: InternalTest.class.getDeclaredMethods()) {
                 String name = m.getName();
-                if (name.startsWith("test")) {
+                if (name.startsWith("test") && (args.length==0 || Arrays.asList(args).contains(name))) {
                     System.out.print("Running "+name+"..."); System.out.flush();
                     m.invoke(null, new Object[0]);
                     System.out.print(" Done.\n"); System.out.flush();
@@ -2,6 +2,7 @@ package edu.mit.csail.sdg.alloy4whole;
 
 import static edu.mit.csail.sdg.alloy4.A4Preferences.AntiAlias;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.AutoVisualize;
+import static edu.mit.csail.sdg.alloy4.A4Preferences.BackgroundCompile;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.CoreGranularity;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.CoreMinimization;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.FontName;
@@ -330,6 +331,7 @@ public class PreferencesDialog extends JFrame {
       addToGrid(p, mkCheckBox(Welcome),         gbc().pos(0, r++).gridwidth(2));
       addToGrid(p, mkCheckBox(WarningNonfatal), gbc().pos(0, r++).gridwidth(2));
       addToGrid(p, mkCheckBox(AutoVisualize),   gbc().pos(0, r++).gridwidth(2));
+      addToGrid(p, mkCheckBox(BackgroundCompile), gbc().pos(0, r++).gridwidth(2));
       return makeTabPane(p);
    }
 
@@ -40,6 +40,7 @@ import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.ErrorWarning;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4compiler.ast.Command;
+import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
 import edu.mit.csail.sdg.alloy4compiler.ast.Func;
 import edu.mit.csail.sdg.alloy4compiler.ast.Module;
 import edu.mit.csail.sdg.alloy4compiler.parser.CompUtil;
@@ -194,6 +195,27 @@ public final class SimpleCLI {
     				.required(false)
     				.desc("print full output if SAT").build());
 
+       		options.addOption(Option.builder("p")
+    				.longOpt("property")
+    				.hasArg(true)
+    				.argName("formula")
+    				.required(false)
+    				.desc("check the formula against every solution found, without solving again (can be repeated)").build());
+
+       		options.addOption(Option.builder("e")
+    				.longOpt("enumerate")
+    				.hasArg(true)
+    				.argName("count")
+    				.required(false)
+    				.desc("with --property, enumerate up to count solutions per command (default 1)").build());
+
+       		options.addOption(Option.builder("t")
+    				.longOpt("threads")
+    				.hasArg(true)
+    				.argName("threads")
+    				.required(false)
+    				.desc("with --property, check the solutions using this many threads (default one per processor)").build());
+
        		options.addOption(Option.builder("so")
     				.longOpt("solver-options")
     				.hasArg(true)
@@ -229,6 +251,16 @@ public final class SimpleCLI {
 	    	        formatter.printHelp("electrum [options] [FILE]",options());
 	    	        return;
 	    	    }
+
+	    		int count = positive("enumerate", 1);
+	    		int threads = positive("threads", Runtime.getRuntime().availableProcessors());
+	    		if (count < 1 || threads < 1) {
+	    			String option = count < 1 ? "enumerate" : "threads";
+	    			System.err.println( "Parsing failed.  Reason: the value given to --" + option + " must be a positive integer, not \"" + clargs.getOptionValue(option) + "\"." );
+	    			HelpFormatter formatter = new HelpFormatter();
+	    			formatter.printHelp("electrum [options] [FILE]",options());
+	    			return;
+	    		}
 	    	
 	    		if (clargs.hasOption("v")) System.setProperty("debug","yes");
 	
@@ -266,13 +298,19 @@ public final class SimpleCLI {
 				} else {
 					rep.info("Running all commands.");
 				}
+				List<Expr> properties = new ArrayList<Expr>();
+				if (clargs.hasOption("property"))
+					for (String p : clargs.getOptionValues("property"))
+						properties.add(CompUtil.parseOneExpression_fromString(world, p));
 				for (int i = i0; i < i1; i++) {
 					Command c = cmds.get(i);
 					rep.cmd_index(i);
 					rep.info("Executing \"" + c + "\"\n");
 					options.skolemDepth = 2;
 					start_time = System.currentTimeMillis();
-					TranslateAlloyToKodkod.execute_commandFromBook(rep, world.getAllReachableSigs(), c, options);
+					A4Solution sol = TranslateAlloyToKodkod.execute_commandFromBook(rep, world.getAllReachableSigs(), c, options);
+					if (properties.size() > 0 && sol.satisfiable())
+						rep.info(validation(i, world, sol, properties, count, threads));
 				}
 				rep.info("Shutting down.");
 				System.exit(0);
@@ -283,6 +321,29 @@ public final class SimpleCLI {
     		}
 	}
     
+    /** Returns the value of the given option if it is a positive integer, or 0 if it is not, or the given default if the option was not given. */
+    private static int positive(String option, int otherwise) {
+    		if (!clargs.hasOption(option)) return otherwise;
+    		try { int n = Integer.parseInt(clargs.getOptionValue(option).trim()); return n > 0 ? n : 0; } catch(NumberFormatException ex) { return 0; }
+    }
+
+    /** Checks the given properties against up to the given number of solutions using the given number of threads, and returns the property/solution matrix.
+     * <p> Each line reads VALIDATE ((index i) (property "...") (results ...)) where each result is 1, 0, or ? if it could not be evaluated.
+     */
+    private static String validation(int index, Module world, A4Solution sol, List<Expr> properties, int count, int threads) throws Err {
+    		Boolean[][] matrix = SolutionValidator.validate(world, SolutionValidator.enumerate(sol, count), properties, threads);
+    		StringBuilder sb = new StringBuilder();
+    		for (int i = 0; i < matrix.length; i++) {
+    			sb.append("VALIDATE (");
+    			sb.append("(index "+index+") ");
+    			sb.append("(property \""+clargs.getOptionValues("property")[i].replace("\"", "\\\"")+"\") ");
+    			sb.append("(results");
+    			for (Boolean b : matrix[i]) sb.append(b == null ? " ?" : (b ? " 1" : " 0"));
+    			sb.append("))\n");
+    		}
+    		return sb.toString();
+    }
+
     /** Copy the required files from the JAR into a temporary directory. */
     private static void copyFromJAR() {
         // Compute the appropriate platform
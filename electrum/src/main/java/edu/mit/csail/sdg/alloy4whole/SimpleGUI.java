@@ -22,6 +22,7 @@ import static edu.mit.csail.sdg.alloy4.A4Preferences.AnalyzerX;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.AnalyzerY;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.AntiAlias;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.AutoVisualize;
+import static edu.mit.csail.sdg.alloy4.A4Preferences.BackgroundCompile;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.CoreGranularity;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.CoreMinimization;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.FontName;
@@ -73,7 +74,6 @@ import java.io.ObjectInputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -143,7 +143,6 @@ import edu.mit.csail.sdg.alloy4.Runner;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.Version;
 import edu.mit.csail.sdg.alloy4.WorkerEngine;
-import edu.mit.csail.sdg.alloy4.XMLNode;
 import edu.mit.csail.sdg.alloy4compiler.ast.Browsable;
 import edu.mit.csail.sdg.alloy4compiler.ast.Command;
 import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
@@ -158,7 +157,6 @@ import edu.mit.csail.sdg.alloy4compiler.sim.SimTupleset;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Options;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Options.SatSolver;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
-import edu.mit.csail.sdg.alloy4compiler.translator.A4SolutionReader;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Tuple;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4TupleSet;
 import edu.mit.csail.sdg.alloy4viz.VizGUI;
@@ -227,6 +225,9 @@ public final class SimpleGUI implements ComponentListener, Listener {
     /** The text editor. */
     private OurTabbedSyntaxWidget text;
 
+    /** The background compiler that typechecks the text buffers while the user is typing. */
+    private BackgroundCompiler compiler;
+
     /** The "message panel" on the right. */
     private SwingLogPanel log;
 
@@ -312,6 +313,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
         if (wrap) return wrapMe();
         commands=null;
         if (text==null) return null; // If this was called prior to the "text" being fully initialized
+        if (compiler!=null) compiler.changed();
         OurSyntaxWidget t = text.get();
         if (Util.onMac()) frame.getRootPane().putClientProperty("windowModified", Boolean.valueOf(t.modified()));
         if (t.isFile()) frame.setTitle(t.getFilename()); else frame.setTitle("Alloy Analyzer "+Version.version() + " (Electrum Analyzer "+Version.eleVersion()+")"); // [HASLab]
@@ -989,6 +991,14 @@ public final class SimpleGUI implements ComponentListener, Listener {
         task.map = text.takeSnapshot();
         task.options = opt.dup();
         task.resolutionMode = (Version.experimental && ImplicitThis.get()) ? 2 : 1;
+        Err known = compiler.getError(task.map, opt.originalFilename, task.resolutionMode);
+        if (known!=null) {
+            // The background compiler has already found a syntax or type error in exactly this text, so report it without starting the solver
+            cb.callback(known);
+            log.logDivider();
+            log.flush();
+            return null;
+        }
         task.tempdir = maketemp();
         try {
             runmenu.setEnabled(false);
@@ -1062,7 +1072,9 @@ public final class SimpleGUI implements ComponentListener, Listener {
                 opt.tempDirectory = alloyHome() + fs + "tmp";
                 opt.solverDirectory = alloyHome() + fs + "binary";
                 opt.originalFilename = Util.canon(text.get().getFilename());
-                world = CompUtil.parseEverything_fromFile(A4Reporter.NOP, text.takeSnapshot(), opt.originalFilename, resolutionMode);
+                Map<String,String> map = text.takeSnapshot();
+                world = compiler.getModule(map, opt.originalFilename, resolutionMode);
+                if (world==null) world = CompUtil.parseEverything_fromFile(A4Reporter.NOP, map, opt.originalFilename, resolutionMode);
             } catch(Err er) {
                 text.shade(er.pos);
                 log.logRed(er.toString()+"\n\n");
@@ -1168,7 +1180,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
 
             optmenu.addSeparator();
 
-            addToMenu(optmenu, WarningNonfatal);
+            addToMenu(optmenu, WarningNonfatal, BackgroundCompile);
             addToMenu(optmenu, SubMemory, SubStack, VerbosityPref);
 
             optmenu.addSeparator();
@@ -1236,6 +1248,12 @@ public final class SimpleGUI implements ComponentListener, Listener {
         return wrapMe();
     }
 
+    /** This method toggles the "typecheck while typing" checkbox. */
+    private Runner doOptBackgroundCompile() {
+        if (!wrap) compiler.changed();
+        return wrapMe();
+    }
+
     /** This method toggles the "syntax highlighting" checkbox. */
     private Runner doOptSyntaxHighlighting() {
         if (!wrap) { text.enableSyntax(!SyntaxDisabled.get()); }
@@ -1495,42 +1513,24 @@ public final class SimpleGUI implements ComponentListener, Listener {
     /** This object performs expression evaluation. */
     private static Computer evaluator = new Computer() {
         private String filename = null;
+        private EvaluatorSession session = null;
         public final String compute(final Object input) throws Exception {
             if (input instanceof File) { filename = ((File)input).getAbsolutePath(); return ""; }
             if (!(input instanceof String)) return "";
             final String str = (String)input;
             if (str.trim().length()==0) return ""; // Empty line
-            Module root = null;
-            A4Solution ans = null;
-            try {
-                Map<String,String> fc = new LinkedHashMap<String,String>();
-                XMLNode x = new XMLNode(new File(filename));
-                if (!x.is("alloy")) throw new Exception();
-                String mainname=null;
-                for(XMLNode sub: x) if (sub.is("instance")) {
-                   mainname=sub.getAttribute("filename");
-                   break;
-                }
-                if (mainname==null) throw new Exception();
-                for(XMLNode sub: x) if (sub.is("source")) {
-                   String name = sub.getAttribute("filename");
-                   String content = sub.getAttribute("content");
-                   fc.put(name, content);
-                }
-                root = CompUtil.parseEverything_fromFile(A4Reporter.NOP, fc, mainname, (Version.experimental && ImplicitThis.get()) ? 2 : 1);
-                ans = A4SolutionReader.read(root.getAllReachableSigs(), x);
-                for(ExprVar a:ans.getAllAtoms())   { root.addGlobal(a.label, a); }
-                for(ExprVar a:ans.getAllSkolems()) { root.addGlobal(a.label, a); }
-            } catch(Throwable ex) {
-                throw new ErrorFatal("Failed to read or parse the XML file.");
+            final int resolutionMode = (Version.experimental && ImplicitThis.get()) ? 2 : 1;
+            if (session==null || !session.isFor(filename, resolutionMode)) {
+                session = null; // so that we don't keep the old instance alive if we fail to load the new one
+                session = new EvaluatorSession(filename, resolutionMode);
             }
             try {
-                Expr e = CompUtil.parseOneExpression_fromString(root, str);
                 if ("yes".equals(System.getProperty("debug")) && VerbosityPref.get()==Verbosity.FULLDEBUG) {
-                    SimInstance simInst = convert(root, ans);
+                    Expr e = session.parse(str);
+                    SimInstance simInst = convert(session.root, session.solution);
                     return simInst.visitThis(e).toString() + (simInst.wasOverflow() ? " (OF)" : "");
                 } else
-                	return ans.eval(e).toString();
+                	return session.eval(str);
             } catch(HigherOrderDeclException ex) {
                 throw new ErrorType("Higher-order quantification is not allowed in the evaluator.");
             }
@@ -1733,6 +1733,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
         text = new OurTabbedSyntaxWidget(fontName, fontSize, TabSize.get());
         text.listeners.add(this);
         text.enableSyntax(! SyntaxDisabled.get());
+        compiler = new BackgroundCompiler(text);
 
         // Add everything to the frame, then display the frame
         Container all=frame.getContentPane();
@@ -1784,6 +1785,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
            prefDialog.addChangeListener(wrapToChangeListener(doOptRefreshFont()), FontName, FontSize, TabSize);
            prefDialog.addChangeListener(wrapToChangeListener(doOptAntiAlias()), AntiAlias);
            prefDialog.addChangeListener(wrapToChangeListener(doOptSyntaxHighlighting()), SyntaxDisabled);
+           prefDialog.addChangeListener(wrapToChangeListener(doOptBackgroundCompile()), BackgroundCompile);
            prefDialog.addChangeListener(wrapToChangeListener(doLookAndFeel()), LAF);
         } finally {
            wrap = false;
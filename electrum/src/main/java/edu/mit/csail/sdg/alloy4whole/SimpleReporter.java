@@ -25,6 +25,7 @@ import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -380,6 +381,39 @@ final class SimpleReporter extends A4Reporter {
     /** The XML filename corresponding to the latest metamodel generated by TranslateAlloyToMetamodel; this field must be synchronized. */
     private static String latestMetamodelXML=null;
 
+    /** The text buffers given to the latest successful parse in this process (or null if none). */
+    private static Map<String,String> latestParsedInput=null;
+
+    /** Every file read by the latest successful parse in this process, including the ones given in latestParsedInput. */
+    private static Map<String,String> latestParsedFiles=null;
+
+    /** The main filename and the initial resolution mode of the latest successful parse in this process. */
+    private static String latestParsedFilename=null; private static int latestParsedMode=0;
+
+    /** The result and the warnings of the latest successful parse in this process. */
+    private static Module latestParsedWorld=null; private static List<ErrorWarning> latestParsedWarnings=null;
+
+    /** Returns the warnings from the latest successful parse. */
+    private static synchronized List<ErrorWarning> latestParsedWarnings() { return latestParsedWarnings; }
+
+    /** Returns the module from the latest successful parse if it used exactly the same files, else returns null.
+     * <p> If the result is not null, the map is updated to contain every file that was read (as parseEverything_fromFile would).
+     */
+    private static Module reuseParse(Map<String,String> map, String filename, int resolutionMode) {
+        final Map<String,String> files;
+        final Module world;
+        synchronized(SimpleReporter.class) {
+            if (latestParsedWorld==null || resolutionMode!=latestParsedMode || !filename.equals(latestParsedFilename) || !map.equals(latestParsedInput)) return null;
+            files=latestParsedFiles; world=latestParsedWorld;
+        }
+        // Files that were not given in the text buffers were read from disk or from the jar, so make sure they have not changed since
+        for(Map.Entry<String,String> e: files.entrySet()) if (!map.containsKey(e.getKey())) {
+            try { if (!e.getValue().equals(Util.readAll(e.getKey()))) return null; } catch(Throwable ex) { return null; }
+        }
+        map.putAll(files);
+        return world;
+    }
+
     /** Constructor is private. */
     private SimpleReporter(WorkerCallback cb, boolean recordKodkod) { this.cb=cb; this.recordKodkod=recordKodkod; }
 
@@ -456,7 +490,22 @@ final class SimpleReporter extends A4Reporter {
         public void run(WorkerCallback out) throws Exception {
             cb(out, "S2", "Starting the solver...\n\n");
             final SimpleReporter rep = new SimpleReporter(out, options.recordKodkod);
-            final Module world = CompUtil.parseEverything_fromFile(rep, map, options.originalFilename, resolutionMode);
+            Module world = reuseParse(map, options.originalFilename, resolutionMode);
+            if (world!=null) {
+                // The text has not changed since the previous execution, so we don't need to parse it again
+                for(ErrorWarning w: latestParsedWarnings()) rep.warning(w);
+            } else {
+                final List<ErrorWarning> warnings = new ArrayList<ErrorWarning>();
+                final Map<String,String> input = new LinkedHashMap<String,String>(map);
+                world = CompUtil.parseEverything_fromFile(new A4Reporter(rep) {
+                    @Override public void warning(ErrorWarning msg) { warnings.add(msg); super.warning(msg); }
+                }, map, options.originalFilename, resolutionMode);
+                synchronized(SimpleReporter.class) {
+                    latestParsedInput=input; latestParsedFiles=new LinkedHashMap<String,String>(map);
+                    latestParsedFilename=options.originalFilename; latestParsedMode=resolutionMode;
+                    latestParsedWorld=world; latestParsedWarnings=warnings;
+                }
+            }
             final List<Sig> sigs = world.getAllReachableSigs();
             final ConstList<Command> cmds = world.getAllCommands();
             cb(out, "warnings", bundleWarningNonFatal);
@@ -0,0 +1,198 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4whole;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorAPI;
+import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprVar;
+import edu.mit.csail.sdg.alloy4compiler.ast.Module;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
+import edu.mit.csail.sdg.alloy4compiler.sim.SimAtom;
+import edu.mit.csail.sdg.alloy4compiler.sim.SimInstance;
+import edu.mit.csail.sdg.alloy4compiler.sim.SimTrace;
+import edu.mit.csail.sdg.alloy4compiler.sim.SimTuple;
+import edu.mit.csail.sdg.alloy4compiler.sim.SimTupleset;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Tuple;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4TupleSet;
+
+/** This helper class checks a list of properties against many solutions, without calling the solver again.
+ *
+ * <p> Each solution is converted into a SimTrace (reading the atoms by their index in the Kodkod universe, so each atom name
+ * is looked up only once per solution), and then every property is evaluated concretely at the first state of that trace.
+ *
+ * <p><b>Thread Safety:</b> Safe.
+ */
+
+public final class SolutionValidator {
+
+    /** Constructor is private, since this class never needs to be instantiated. */
+    private SolutionValidator() { }
+
+    /** Returns an Iterable that yields the given solution, followed by its next solutions, up to the given number of solutions in total.
+     * <p> The iteration stops early once an unsatisfiable solution is reached; each call to next() may invoke the solver.
+     */
+    public static Iterable<A4Solution> enumerate(final A4Solution first, final int max) {
+        return new Iterable<A4Solution>() {
+            public Iterator<A4Solution> iterator() {
+                return new Iterator<A4Solution>() {
+                    private A4Solution sol = first;
+                    private int n = 0;
+                    public boolean hasNext() { return n<max && sol!=null && sol.satisfiable(); }
+                    public A4Solution next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        A4Solution ans = sol;
+                        n++;
+                        if (n<max) try { sol = sol.next(); } catch(Err ex) { throw new RuntimeException(ex); }
+                        return ans;
+                    }
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        };
+    }
+
+    /** Converts the given satisfiable solution into a SimTrace whose states have the same sigs, fields, atoms and skolems as the solution. */
+    public static SimTrace convert(Module root, A4Solution sol) throws Err {
+        if (!sol.satisfiable()) throw new ErrorAPI("This solution is unsatisfiable, so it cannot be converted.");
+        Converter c = new Converter();
+        int last = sol.getLastState();
+        List<SimInstance> states = new ArrayList<SimInstance>(last+1);
+        SimInstance prev = null;
+        for(int i=0; i<=last; i++) {
+            SimInstance ct = new SimInstance(root, sol.getBitwidth(), sol.getMaxSeq());
+            for(Sig s: sol.getAllReachableSigs()) {
+                if (!s.builtin) ct.init(s, c.convert(prev, s, sol.eval(s, i)));
+                for(Field f: s.getFields()) if (!f.defined) ct.init(f, c.convert(prev, f, sol.eval(f, i)));
+            }
+            for(ExprVar a: sol.getAllAtoms())   ct.init(a, c.convert(prev, a, prev==null ? sol.eval(a, i) : null));
+            for(ExprVar a: sol.getAllSkolems()) ct.init(a, c.convert(prev, a, sol.eval(a, i)));
+            states.add(ct);
+            prev = ct;
+        }
+        return new SimTrace(states, sol.getLoopState());
+    }
+
+    /** Mutable; this converts the tuplesets of one solution, remembering the SimAtom for each Kodkod atom index. */
+    private static final class Converter {
+        /** Maps each Kodkod atom index to its SimAtom (or null if we haven't seen it yet). */
+        private SimAtom[] atoms = new SimAtom[64];
+        /** Converts the given A4TupleSet; if it is equal to the value of the given expression in the previous state, then reuse that value instead. */
+        private SimTupleset convert(SimInstance prev, Expr x, Object object) throws Err {
+            SimTupleset old = (prev==null) ? null : prev.cset(x);
+            if (object==null && old!=null) return old;
+            if (!(object instanceof A4TupleSet)) throw new ErrorFatal("Unexpected type error: expecting an A4TupleSet.");
+            A4TupleSet s = (A4TupleSet)object;
+            if (s.size()==0) return SimTupleset.EMPTY;
+            List<SimTuple> list = new ArrayList<SimTuple>(s.size());
+            List<SimAtom> array = new ArrayList<SimAtom>(s.arity());
+            for(A4Tuple t: s) {
+                array.clear();
+                for(int i=0; i<t.arity(); i++) array.add(atom(t, i));
+                list.add(SimTuple.make(array));
+            }
+            SimTupleset ans = SimTupleset.make(list);
+            return ans.equals(old) ? old : ans;
+        }
+        /** Returns the SimAtom for the i-th atom of the given tuple. */
+        private SimAtom atom(A4Tuple t, int i) {
+            int index = t.atomIndex(i);
+            while(index >= atoms.length) {
+                SimAtom[] atoms2 = new SimAtom[atoms.length * 2];
+                System.arraycopy(atoms, 0, atoms2, 0, atoms.length);
+                atoms = atoms2;
+            }
+            SimAtom ans = atoms[index];
+            if (ans==null) { ans = SimAtom.make(t.atom(i)); atoms[index] = ans; }
+            return ans;
+        }
+    }
+
+    /** Evaluates every property at the first state of the given trace; an entry is null if that property could not be evaluated. */
+    private static Boolean[] check(SimTrace trace, List<Expr> properties) {
+        Boolean[] ans = new Boolean[properties.size()];
+        for(int i=0; i<ans.length; i++) {
+            try { ans[i] = trace.cform(properties.get(i), 0); } catch(Err ex) { ans[i] = null; }
+        }
+        return ans;
+    }
+
+    /** Checks every property against every solution, and returns the property/solution matrix.
+     *
+     * <p> The answer has one row per property, and one column per solution (in the order they were given);
+     * each entry is TRUE or FALSE, or null if the property could not be evaluated (for example, due to an integer overflow).
+     *
+     * <p> The solutions are read and converted one at a time in the caller's thread (since enumerating them may call the solver),
+     * while the properties are evaluated using up to the given number of threads.
+     *
+     * @param root - the module that every solution and every property came from
+     * @param solutions - the satisfiable solutions to check
+     * @param properties - the formulas to evaluate
+     * @param parallelism - the number of threads used to evaluate the properties (must be 1 or above)
+     */
+    public static Boolean[][] validate(Module root, Iterable<A4Solution> solutions, final List<Expr> properties, int parallelism) throws Err {
+        if (parallelism < 1) throw new ErrorAPI("The parallelism must be positive.");
+        for(Expr p: properties) if (!p.type().is_bool) throw new ErrorAPI(p.span(), "This property must be a formula.");
+        List<Boolean[]> columns = new ArrayList<Boolean[]>();
+        ForkJoinPool pool = null;
+        try {
+            if (parallelism==1) {
+                for(A4Solution sol: solutions) columns.add(check(convert(root, sol), properties));
+            } else {
+                pool = new ForkJoinPool(parallelism);
+                List<Future<Boolean[]>> futures = new ArrayList<Future<Boolean[]>>();
+                LinkedList<Future<Boolean[]>> pending = new LinkedList<Future<Boolean[]>>();
+                for(A4Solution sol: solutions) {
+                    final SimTrace trace = convert(root, sol);
+                    Future<Boolean[]> f = pool.submit(new Callable<Boolean[]>() {
+                        public Boolean[] call() { return check(trace, properties); }
+                    });
+                    futures.add(f);
+                    pending.add(f);
+                    // don't let the converted traces pile up faster than we can evaluate them
+                    if (pending.size() > 2*parallelism) pending.removeFirst().get();
+                }
+                for(Future<Boolean[]> f: futures) columns.add(f.get());
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ErrorFatal("The validation was interrupted.", ex);
+        } catch(ExecutionException ex) {
+            throw new ErrorFatal("Unknown exception occurred: "+ex.getCause(), ex.getCause());
+        } catch(RuntimeException ex) {
+            if (ex.getCause() instanceof Err) throw (Err)(ex.getCause());
+            throw ex;
+        } finally {
+            if (pool!=null) pool.shutdownNow();
+        }
+        Boolean[][] ans = new Boolean[properties.size()][columns.size()];
+        for(int j=0; j<columns.size(); j++) for(int i=0; i<ans.length; i++) ans[i][j] = columns.get(j)[i];
+        return ans;
+    }
+}
@@ -263,7 +263,62 @@ public abstract class lr_parser {
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
   /** The parse stack itself. */
-  protected Stack stack = new Stack();
+  protected Stack stack = new parse_stack();
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** The parse stack is only ever touched by the thread running the parser,
+   *  so this Stack skips the monitor that every java.util.Vector method 
+   *  acquires on the hot operations (push, pop, peek and elementAt), and 
+   *  lets the parser pop a whole handle at once.  It is still a Stack so 
+   *  that the generated action code can keep using it as one. 
+   */
+  @SuppressWarnings("serial")
+  protected static final class parse_stack extends Stack
+    {
+      public Object push(Object item)
+    {
+      if (elementCount == elementData.length) super.ensureCapacity(elementCount + 1);
+      modCount++;
+      elementData[elementCount++] = item;
+      return item;
+    }
+
+      public Object pop()
+    {
+      if (elementCount == 0) throw new java.util.EmptyStackException();
+      modCount++;
+      Object ans = elementData[--elementCount];
+      elementData[elementCount] = null;
+      return ans;
+    }
+
+      /** Remove the top n elements (n must not exceed the size of the stack). */
+      public void pop(int n)
+    {
+      if (n > elementCount) throw new java.util.EmptyStackException();
+      if (n <= 0) return;
+      modCount++;
+      for (int i = elementCount - n; i < elementCount; i++) elementData[i] = null;
+      elementCount -= n;
+    }
+
+      public Object peek()
+    {
+      if (elementCount == 0) throw new java.util.EmptyStackException();
+      return elementData[elementCount - 1];
+    }
+
+      public boolean empty() { return elementCount == 0; }
+
+      public int size() { return elementCount; }
+
+      public Object elementAt(int index)
+    {
+      if (index < 0 || index >= elementCount) throw new ArrayIndexOutOfBoundsException(index);
+      return elementData[index];
+    }
+    }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
@@ -589,7 +644,12 @@ public Symbol parse() throws java.lang.Exception
           handle_size = production_tab[(-act)-1][1];
 
           /* pop the handle off the stack */
-          for (int i = 0; i < handle_size; i++)
+          if (stack instanceof parse_stack)
+        {
+          ((parse_stack)stack).pop(handle_size);
+          tos -= handle_size;
+        }
+          else for (int i = 0; i < handle_size; i++)
         {
           stack.pop();
           tos--;